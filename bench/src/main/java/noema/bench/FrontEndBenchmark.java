@@ -0,0 +1,65 @@
+package noema.bench;
+
+import noema.AST;
+import noema.Interpreter;
+import noema.Lexer;
+import noema.Parser;
+import noema.Token;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing, parsing and compiling stories of growing size.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrontEndBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private String source;
+    private List<Token> tokens;
+    private AST.Program program;
+
+    @Setup
+    public void setUp() {
+        source = Story.generate(size);
+        tokens = new Lexer(source).scanTokens();
+        program = new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public List<Token> lex() {
+        return new Lexer(source).scanTokens();
+    }
+
+    @Benchmark
+    public AST.Program parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(program);
+        return interpreter;
+    }
+}
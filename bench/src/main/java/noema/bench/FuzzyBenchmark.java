@@ -0,0 +1,64 @@
+package noema.bench;
+
+import noema.FuzzyIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Typo-tolerant search among thousands of similar phrases, all starting
+ * with the same words. A search should stay well under a millisecond.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FuzzyBenchmark {
+
+    @Param({"1000", "5000"})
+    public int phrases;
+
+    private FuzzyIndex index;
+    private String query;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] words = new String[400];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int j = 3 + random.nextInt(6); j > 0; j--) word.append((char) ('a' + random.nextInt(26)));
+            words[i] = word.toString();
+        }
+        List<String> all = new ArrayList<>();
+        for (int i = 0; i < phrases; i++) {
+            StringBuilder phrase = new StringBuilder("tell me about");
+            for (int j = 2 + random.nextInt(4); j > 0; j--) phrase.append(' ').append(words[random.nextInt(words.length)]);
+            all.add(phrase.toString());
+        }
+        index = new FuzzyIndex(all);
+        String target = all.get(phrases * 4 / 5);
+        query = target.substring(0, 20) + target.substring(21);
+    }
+
+    @Benchmark
+    public List<FuzzyIndex.Match> search() {
+        return index.search(query, 0.6);
+    }
+}
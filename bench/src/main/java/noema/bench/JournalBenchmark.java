@@ -0,0 +1,69 @@
+package noema.bench;
+
+import noema.CompiledProgram;
+import noema.Journal;
+import noema.Lexer;
+import noema.Parser;
+import noema.Session;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Restoring a session from a journal of many changes and no snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    @Param({"100000", "2000000"})
+    public int changes;
+
+    private CompiledProgram program;
+    private Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        program = CompiledProgram.compile(new Parser(new Lexer(Story.generate(10)).scanTokens()).parse());
+        directory = Files.createTempDirectory("noema-journal");
+        try (Journal journal = Journal.open(directory).setCompactEvery(Long.MAX_VALUE)) {
+            Session session = program.newSession();
+            session.setJournal(journal);
+            for (int i = 0; i < changes; i++) {
+                if (i % 2 == 0) session.setVariable("counter_" + (i % 100), (double) i);
+                else session.setNPCState("npc_" + (i % 50), "mood", i % 3 == 0 ? "calm" : "tense");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Journal.open(directory).delete();
+    }
+
+    @Benchmark
+    public long replay() throws IOException {
+        try (Journal journal = Journal.open(directory)) {
+            return journal.replay(program.newSession());
+        }
+    }
+}
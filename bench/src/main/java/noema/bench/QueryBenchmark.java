@@ -0,0 +1,72 @@
+package noema.bench;
+
+import noema.CompiledProgram;
+import noema.Lexer;
+import noema.Parser;
+import noema.QueryEngine;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recursive queries over a chain of {@code knows} facts: who trusts whom,
+ * where trust follows any path of acquaintances.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    @Param({"300", "1000"})
+    public int size;
+
+    private String source;
+    private CompiledProgram warm;
+
+    @Setup
+    public void setUp() {
+        StringBuilder facts = new StringBuilder();
+        for (int i = 0; i < size; i++) facts.append("fact knows(\"npc").append(i).append("\", \"npc").append(i + 1).append("\")\n");
+        facts.append("fact trusts(X, Z) if knows(X, Z)\n");
+        facts.append("fact trusts(X, Z) if trusts(X, Y) and knows(Y, Z)\n");
+        source = facts.toString();
+        warm = compile();
+        warm.query("trusts(npc0, Z)");
+    }
+
+    private CompiledProgram compile() {
+        return CompiledProgram.compile(new Parser(new Lexer(source).scanTokens()).parse());
+    }
+
+    /**
+     * A query whose answers are already tabled.
+     */
+    @Benchmark
+    public List<Map<String, Object>> cachedQuery() {
+        return warm.query("trusts(npc0, Z)");
+    }
+
+    /**
+     * Derive every {@code trusts} fact bottom-up, semi-naively.
+     */
+    @Benchmark
+    public QueryEngine.Derivation materialize() {
+        return compile().queries().materialize();
+    }
+}
@@ -0,0 +1,69 @@
+package noema.bench;
+
+import noema.Interpreter;
+import noema.Lexer;
+import noema.Parser;
+import noema.Session;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rule evaluation and input dispatch on a loaded story.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuntimeBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private Interpreter interpreter;
+    private Session session;
+    private String[] inputs;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(Story.generate(size)).scanTokens()).parse());
+        session = interpreter.getSession();
+        interpreter.setScene(Story.scene(0));
+
+        // Every trigger of the scene, and one line that matches none
+        inputs = new String[Story.TRIGGERS_PER_SCENE + 1];
+        for (int t = 0; t < Story.TRIGGERS_PER_SCENE; t++) inputs[t] = Story.line(0, t);
+        inputs[Story.TRIGGERS_PER_SCENE] = "something else entirely";
+    }
+
+    /**
+     * Change one counter, alternately above and below its rule's threshold,
+     * and evaluate the rules.
+     */
+    @Benchmark
+    public void evaluateRules() {
+        int i = next++;
+        session.setVariable(Story.counter(i % size), (i / size) % 2 == 0 ? 5.0 : 0.0);
+        interpreter.evaluateRules();
+    }
+
+    @Benchmark
+    public String processInput() {
+        return interpreter.processInput(inputs[next++ % inputs.length]);
+    }
+}
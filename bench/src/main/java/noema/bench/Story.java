@@ -0,0 +1,70 @@
+package noema.bench;
+
+/**
+ * Generates synthetic Noema stories of a given size.
+ *
+ * A story of size n has n NPCs, each with a mood and trust fact, a counter
+ * variable and a rule that reacts to it, spread over n / 10 scenes (at least
+ * one) of ten triggers each. Every trigger line is unique, so dispatch sees
+ * realistic keys.
+ */
+public final class Story {
+
+    public static final int TRIGGERS_PER_SCENE = 10;
+
+    private Story() {}
+
+    public static int scenes(int size) {
+        return Math.max(1, size / 10);
+    }
+
+    public static String npc(int i) {
+        return "npc_" + i;
+    }
+
+    public static String counter(int i) {
+        return "counter_" + i;
+    }
+
+    public static String scene(int s) {
+        return "scene_" + s;
+    }
+
+    public static String line(int scene, int trigger) {
+        return "line " + scene + " " + trigger;
+    }
+
+    public static String generate(int size) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            out.append("fact mood(\"").append(npc(i)).append("\", \"calm\")\n");
+            out.append("fact trust(\"").append(npc(i)).append("\", \"low\")\n");
+            out.append("fact ").append(counter(i)).append("(0)\n");
+        }
+        out.append('\n');
+
+        for (int i = 0; i < size; i++) {
+            out.append("rule tense_").append(i).append(" if ").append(counter(i)).append(" > 3 {\n");
+            out.append("  mood(\"").append(npc(i)).append("\") = \"tense\"\n");
+            out.append("}\n");
+        }
+        out.append('\n');
+
+        int scenes = scenes(size);
+        for (int s = 0; s < scenes; s++) {
+            out.append("scene \"").append(scene(s)).append("\" {\n");
+            for (int i = s; i < size; i += scenes) {
+                out.append("  npc \"").append(npc(i)).append("\" feels mood(\"").append(npc(i)).append("\")\n");
+            }
+            for (int t = 0; t < TRIGGERS_PER_SCENE; t++) {
+                String npc = npc((s + t * scenes) % size);
+                out.append("  when player says \"").append(line(s, t)).append("\" and mood(\"")
+                        .append(npc).append("\") == \"calm\" {\n");
+                out.append("    ").append(npc).append(" responds \"Reply ").append(t).append("\"\n");
+                out.append("  }\n");
+            }
+            out.append("}\n");
+        }
+        return out.toString();
+    }
+}
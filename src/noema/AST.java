@@ -17,7 +17,9 @@ public class AST {
 
     public interface Visitor<R> {
         R visitProgramNode(Program node);
+        R visitImportNode(Import node);
         R visitFactNode(Fact node);
+        R visitClauseNode(Clause node);
         R visitRuleNode(Rule node);
         R visitSceneNode(Scene node);
         R visitNPCNode(NPC node);
@@ -44,6 +46,23 @@ public class AST {
         }
     }
 
+    /**
+     * {@code import "file.noema"}: the declarations of another file, with
+     * the path relative to the importing file.
+     */
+    public static class Import implements Node {
+        public final String path;
+
+        public Import(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitImportNode(this);
+        }
+    }
+
     // --- Expressions & Literals ---
 
     public static class Expression implements Node {
@@ -69,6 +88,61 @@ public class AST {
         }
     }
 
+    /**
+     * A logic variable in a goal or clause, such as {@code X} or {@code T1}:
+     * an identifier without lowercase letters that starts with an uppercase
+     * letter or {@code _}. Where a value is expected, such as the NPC of
+     * {@code mood(HAL)}, it stands for its own name.
+     */
+    public static class LogicVariable {
+        public final String name;
+
+        public LogicVariable(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return Whether an identifier names a logic variable
+         */
+        public static boolean isName(String identifier) {
+            char first = identifier.charAt(0);
+            if (!Character.isUpperCase(first) && first != '_') return false;
+            for (int i = 1; i < identifier.length(); i++) {
+                if (Character.isLowerCase(identifier.charAt(i))) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static class Comparison {
+        public final Expression left;
+        public final String operator;
+        public final Expression right;
+
+        public Comparison(Expression left, String operator, Expression right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+    }
+
+    /**
+     * {@code mentions "phrase"}: the phrase occurs in the player's input as
+     * whole words, in any case.
+     */
+    public static class Mention {
+        public final String phrase;
+
+        public Mention(String phrase) {
+            this.phrase = phrase;
+        }
+    }
+
     // --- Facts ---
 
     public static class Fact implements Node {
@@ -86,6 +160,28 @@ public class AST {
         }
     }
 
+    /**
+     * {@code fact trusts(X, Z) if knows(X, Y) and trusts(Y, Z)}: the head
+     * holds for every binding of its variables that satisfies all the body
+     * goals.
+     */
+    public static class Clause implements Node {
+        public final String predicate;
+        public final List<Expression> arguments;
+        public final List<FunctionCall> body;
+
+        public Clause(String predicate, List<Expression> arguments, List<FunctionCall> body) {
+            this.predicate = predicate;
+            this.arguments = arguments;
+            this.body = body;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitClauseNode(this);
+        }
+    }
+
     // --- Conditions ---
 
     public static class Condition implements Node {
@@ -0,0 +1,136 @@
+package noema;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a batch of player inputs, such as everything gathered in one game
+ * tick, across cores on a {@link ForkJoinPool}.
+ *
+ * A batch is given as two parallel arrays: {@code sessions[i]} receives
+ * {@code inputs[i]}. Inputs are chained per session in batch order, and
+ * each chain runs on a single thread, so a session sees its inputs in order
+ * and is never used by two threads at once; different sessions run in
+ * parallel. Responses come back in one array, allocated once per batch, at
+ * the index of their input.
+ */
+public class BatchProcessor {
+
+    private final ForkJoinPool pool;
+
+    public BatchProcessor() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BatchProcessor(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Process a batch and wait for all of it.
+     * @param sessions Session of each input; a session may appear any number of times
+     * @param inputs Player inputs, same length as sessions
+     */
+    public Result process(Session[] sessions, String[] inputs) {
+        if (sessions.length != inputs.length) {
+            throw new IllegalArgumentException("Batch has " + sessions.length + " sessions but " + inputs.length + " inputs");
+        }
+        long start = System.nanoTime();
+        int n = inputs.length;
+
+        // next[i] is the following input of the same session, or -1
+        int[] next = new int[n];
+        int[] heads = new int[n];
+        int chains = 0;
+        Map<Session, Integer> last = new IdentityHashMap<>();
+        for (int i = 0; i < n; i++) {
+            next[i] = -1;
+            Integer previous = last.put(sessions[i], i);
+            if (previous == null) heads[chains++] = i;
+            else next[previous] = i;
+        }
+
+        String[] responses = new String[n];
+        if (chains > 0) {
+            int grain = Math.max(1, chains / (pool.getParallelism() * 4));
+            pool.invoke(new Chains(sessions, inputs, responses, next, heads, 0, chains, grain));
+        }
+        return new Result(responses, chains, System.nanoTime() - start);
+    }
+
+    /**
+     * Runs the chains starting at heads[from, to), splitting while the range
+     * is larger than the grain.
+     */
+    private static final class Chains extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Session[] sessions;
+        private final String[] inputs;
+        private final String[] responses;
+        private final int[] next;
+        private final int[] heads;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        Chains(Session[] sessions, String[] inputs, String[] responses, int[] next, int[] heads,
+               int from, int to, int grain) {
+            this.sessions = sessions;
+            this.inputs = inputs;
+            this.responses = responses;
+            this.next = next;
+            this.heads = heads;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int c = from; c < to; c++) {
+                    for (int i = heads[c]; i >= 0; i = next[i]) {
+                        responses[i] = sessions[i].processInput(inputs[i]);
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Chains(sessions, inputs, responses, next, heads, from, mid, grain),
+                      new Chains(sessions, inputs, responses, next, heads, mid, to, grain));
+        }
+    }
+
+    /**
+     * Responses of a batch and how fast it ran.
+     */
+    public static final class Result {
+        /** Response to each input, at the input's index */
+        public final String[] responses;
+        /** Number of distinct sessions in the batch */
+        public final int sessions;
+        public final long elapsedNanos;
+
+        Result(String[] responses, int sessions, long elapsedNanos) {
+            this.responses = responses;
+            this.sessions = sessions;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return Inputs processed per second
+         */
+        public double throughput() {
+            return elapsedNanos == 0 ? 0 : responses.length * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d inputs from %d sessions in %.2f ms (%.0f inputs/s)",
+                    responses.length, sessions, elapsedNanos / 1e6, throughput());
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package noema;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes the precompiled {@code .noemac} program format.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header    magic "NOEM", u16 version, i32 offsets of the sections below
+ *   symbols   i32 count, then per symbol i32 length + UTF-8 bytes;
+ *             variable slots (symbol) and NPC state slots (npc, key)
+ *   state     functional predicates, initial value of every slot
+ *   facts     per predicate: symbol, row count, rows of (arity, values);
+ *             then clauses: head call, goal count, goal calls
+ *   rules     per rule: name, compiled condition, actions
+ *   scenes    table of (name, offset) followed by the scene bodies
+ * </pre>
+ *
+ * Every identifier and string literal is stored once in the symbol table and
+ * referenced by its ID, which is the ID in the program's {@link SymbolTable};
+ * compiled operands store their variable or state slot directly. Loading maps
+ * the file, rebuilds the symbol table and decodes rules, facts and initial
+ * state; scenes are decoded on first use, so startup does no lexing or
+ * parsing.
+ * Loaded rules and triggers carry their compiled conditions and actions but
+ * not the source {@link AST.Condition}, which is left null.
+ */
+public final class BinaryProgram {
+
+    public static final int MAGIC = 0x4E4F454D; // "NOEM"
+    public static final int VERSION = 3;
+
+    // Value tags
+    private static final byte NULL = 0, STRING = 1, NUMBER = 2, CALL = 3, LOGIC_VARIABLE = 4;
+    // Predicate tags
+    private static final byte AND = 0, OR = 1, SAYS = 2, COMPARE = 3, MENTIONS = 4, QUERY = 5;
+    // Operand tags
+    private static final byte CONSTANT = 0, VARIABLE = 1, STATE = 2;
+    // Action tags
+    private static final byte RESPONSE = 0, ASSIGN = 1;
+
+    private BinaryProgram() {}
+
+    // --- Writing ---
+
+    public static void write(CompiledProgram program, Path path) throws IOException {
+        Files.write(path, encode(program));
+    }
+
+    public static byte[] encode(CompiledProgram program) throws IOException {
+        SymbolTable table = program.symbols();
+        Writer w = new Writer(table);
+
+        Section state = w.section();
+        state.out.writeInt(program.facts().functionalPredicates().size());
+        for (String p : program.facts().functionalPredicates()) state.symbol(p);
+        for (int i = 0; i < table.variableCount(); i++) state.value(program.variable(i));
+        for (int i = 0; i < table.stateCount(); i++) state.value(program.npcState(i));
+
+        Section facts = w.section();
+        FactStore store = program.facts();
+        facts.out.writeInt(store.predicates().size());
+        for (String predicate : store.predicates()) {
+            facts.symbol(predicate);
+            facts.out.writeInt(store.count(predicate));
+            for (FactStore.Tuple t : store.all(predicate)) {
+                facts.out.writeInt(t.arity());
+                for (int i = 0; i < t.arity(); i++) facts.value(t.get(i));
+            }
+        }
+        facts.out.writeInt(program.clauses().size());
+        for (AST.Clause clause : program.clauses()) {
+            facts.value(new AST.FunctionCall(clause.predicate, clause.arguments));
+            facts.goals(clause.body);
+        }
+
+        Section rules = w.section();
+        rules.out.writeInt(program.rules().size());
+        for (int i = 0; i < program.rules().size(); i++) {
+            AST.Rule rule = program.rules().get(i);
+            rules.symbol(rule.name);
+            rules.predicate(program.ruleConditions().get(i));
+            rules.actions(rule.actions);
+        }
+
+        List<String> names = new ArrayList<>(program.sceneNames());
+        List<byte[]> bodies = new ArrayList<>();
+        for (String name : names) {
+            CompiledProgram.Scene scene = program.scene(name);
+            Section body = w.section();
+            body.out.writeInt(scene.node.npcs.size());
+            for (AST.NPC npc : scene.node.npcs) {
+                body.symbol(npc.name);
+                body.value(npc.mood == null ? null : npc.mood.value);
+            }
+            body.out.writeInt(scene.conditions.length);
+            for (int i = 0; i < scene.conditions.length; i++) {
+                body.predicate(scene.conditions[i]);
+                body.actions(scene.node.triggers.get(i).actions);
+            }
+            bodies.add(body.bytes());
+        }
+
+        // Symbols are complete only once every section has been encoded.
+        for (String name : names) w.symbol(name);
+        ByteArrayOutputStream symbolBytes = new ByteArrayOutputStream();
+        DataOutputStream symbols = new DataOutputStream(symbolBytes);
+        symbols.writeInt(w.symbols.size());
+        for (String s : w.symbols) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            symbols.writeInt(utf8.length);
+            symbols.write(utf8);
+        }
+        symbols.writeInt(table.variableCount());
+        for (int i = 0; i < table.variableCount(); i++) symbols.writeInt(w.symbol(table.variableName(i)));
+        symbols.writeInt(table.stateCount());
+        for (int i = 0; i < table.stateCount(); i++) {
+            symbols.writeInt(w.symbol(table.stateNpc(i)));
+            symbols.writeInt(w.symbol(table.stateKey(i)));
+        }
+
+        byte[][] sections = { symbolBytes.toByteArray(), state.bytes(), facts.bytes(), rules.bytes() };
+        int headerSize = 4 + 2 + 4 * 5;
+        int offset = headerSize;
+        int[] offsets = new int[5];
+        for (int i = 0; i < sections.length; i++) {
+            offsets[i] = offset;
+            offset += sections[i].length;
+        }
+        offsets[4] = offset;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        for (int o : offsets) out.writeInt(o);
+        for (byte[] section : sections) out.write(section);
+
+        int sceneTableSize = 4 + names.size() * 8;
+        int bodyOffset = offsets[4] + sceneTableSize;
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            out.writeInt(w.symbol(names.get(i)));
+            out.writeInt(bodyOffset);
+            bodyOffset += bodies.get(i).length;
+        }
+        for (byte[] body : bodies) out.write(body);
+        return bytes.toByteArray();
+    }
+
+    private static final class Writer {
+        final List<String> symbols = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+
+        /**
+         * Start from the program's own symbols so IDs in the file match it.
+         */
+        Writer(SymbolTable table) {
+            for (int i = 0; i < table.size(); i++) symbol(table.name(i));
+        }
+
+        int symbol(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = symbols.size();
+                symbols.add(s);
+                ids.put(s, id);
+            }
+            return id;
+        }
+
+        Section section() {
+            return new Section(this);
+        }
+    }
+
+    private static final class Section {
+        final Writer writer;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Section(Writer writer) {
+            this.writer = writer;
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+
+        void symbol(String s) throws IOException {
+            out.writeInt(writer.symbol(s));
+        }
+
+        void value(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                symbol((String) value);
+            } else if (value instanceof Number) {
+                out.writeByte(NUMBER);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof AST.FunctionCall) {
+                AST.FunctionCall call = (AST.FunctionCall) value;
+                out.writeByte(CALL);
+                symbol(call.name);
+                out.writeInt(call.arguments.size());
+                for (AST.Expression arg : call.arguments) value(arg.value);
+            } else if (value instanceof AST.LogicVariable) {
+                out.writeByte(LOGIC_VARIABLE);
+                symbol(((AST.LogicVariable) value).name);
+            } else {
+                throw new IllegalArgumentException("Cannot encode value: " + value);
+            }
+        }
+
+        void predicate(Predicate p) throws IOException {
+            if (p instanceof Predicate.And) {
+                out.writeByte(AND);
+                predicate(((Predicate.And) p).left);
+                predicate(((Predicate.And) p).right);
+            } else if (p instanceof Predicate.Or) {
+                out.writeByte(OR);
+                predicate(((Predicate.Or) p).left);
+                predicate(((Predicate.Or) p).right);
+            } else if (p instanceof Predicate.Says) {
+                out.writeByte(SAYS);
+                operand(((Predicate.Says) p).utterance);
+            } else if (p instanceof Predicate.Mentions) {
+                out.writeByte(MENTIONS);
+                symbol(((Predicate.Mentions) p).phrase);
+            } else if (p instanceof Predicate.Compare) {
+                Predicate.Compare c = (Predicate.Compare) p;
+                out.writeByte(COMPARE);
+                out.writeByte(c.operator.ordinal());
+                operand(c.left);
+                operand(c.right);
+            } else if (p instanceof Predicate.Query) {
+                out.writeByte(QUERY);
+                goals(((Predicate.Query) p).goals);
+            } else {
+                throw new IllegalArgumentException("Cannot encode predicate: " + p);
+            }
+        }
+
+        void goals(List<AST.FunctionCall> goals) throws IOException {
+            out.writeInt(goals.size());
+            for (AST.FunctionCall goal : goals) value(goal);
+        }
+
+        void operand(Predicate.Operand operand) throws IOException {
+            if (operand instanceof Predicate.Variable) {
+                out.writeByte(VARIABLE);
+                out.writeInt(((Predicate.Variable) operand).slot);
+            } else if (operand instanceof Predicate.StateRead) {
+                out.writeByte(STATE);
+                out.writeInt(((Predicate.StateRead) operand).slot);
+            } else {
+                out.writeByte(CONSTANT);
+                value(((Predicate.Constant) operand).value);
+            }
+        }
+
+        void actions(List<AST.Action> actions) throws IOException {
+            out.writeInt(actions.size());
+            for (AST.Action action : actions) {
+                if (action.type.equals("response")) {
+                    AST.Response r = (AST.Response) action.value;
+                    out.writeByte(RESPONSE);
+                    symbol(r.character);
+                    symbol(r.text);
+                } else if (action.type.equals("assignment")) {
+                    Object[] parts = (Object[]) action.value;
+                    out.writeByte(ASSIGN);
+                    value(parts[0]);
+                    value(((AST.Expression) parts[1]).value);
+                } else {
+                    throw new IllegalArgumentException("Cannot encode action: " + action.type);
+                }
+            }
+        }
+    }
+
+    // --- Reading ---
+
+    /**
+     * Map a {@code .noemac} file and load it as a program.
+     */
+    public static CompiledProgram load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static CompiledProgram decode(ByteBuffer buffer) {
+        Reader r = new Reader(buffer);
+        if (buffer.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a compiled Noema program");
+        int version = buffer.getShort(4);
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported program version: " + version);
+        int[] offsets = new int[5];
+        for (int i = 0; i < offsets.length; i++) offsets[i] = buffer.getInt(6 + 4 * i);
+
+        SymbolTable table = r.readSymbolTable(offsets[0]);
+
+        ByteBuffer in = r.at(offsets[1]);
+        FactStore facts = new FactStore();
+        int functional = in.getInt();
+        for (int i = 0; i < functional; i++) facts.declareFunctional(r.symbol(in));
+        Object[] variables = new Object[table.variableCount()];
+        for (int i = 0; i < variables.length; i++) variables[i] = r.value(in);
+        Object[] states = new Object[table.stateCount()];
+        for (int i = 0; i < states.length; i++) states[i] = r.value(in);
+
+        in = r.at(offsets[2]);
+        int predicates = in.getInt();
+        for (int i = 0; i < predicates; i++) {
+            String predicate = r.symbol(in);
+            int rows = in.getInt();
+            for (int row = 0; row < rows; row++) {
+                Object[] args = new Object[in.getInt()];
+                for (int a = 0; a < args.length; a++) args[a] = r.value(in);
+                facts.assertFact(predicate, args);
+            }
+        }
+        List<AST.Clause> clauses = new ArrayList<>();
+        int clauseCount = in.getInt();
+        for (int i = 0; i < clauseCount; i++) {
+            AST.FunctionCall head = (AST.FunctionCall) r.value(in);
+            clauses.add(new AST.Clause(head.name, head.arguments, r.goals(in)));
+        }
+
+        in = r.at(offsets[3]);
+        List<AST.Rule> rules = new ArrayList<>();
+        List<Predicate> conditions = new ArrayList<>();
+        List<CompiledAction[]> actions = new ArrayList<>();
+        int ruleCount = in.getInt();
+        for (int i = 0; i < ruleCount; i++) {
+            String name = r.symbol(in);
+            conditions.add(r.predicate(in));
+            AST.Rule rule = new AST.Rule(name, null, r.actions(in));
+            rules.add(rule);
+            actions.add(CompiledAction.compile(rule.actions, table));
+        }
+
+        in = r.at(offsets[4]);
+        Map<String, Integer> sceneOffsets = new HashMap<>();
+        int sceneCount = in.getInt();
+        for (int i = 0; i < sceneCount; i++) sceneOffsets.put(r.symbol(in), in.getInt());
+        Set<String> sceneNames = new HashSet<>(sceneOffsets.keySet());
+
+        return new CompiledProgram(table, sceneNames, new HashMap<>(), name -> r.scene(name, sceneOffsets.get(name)),
+                rules, conditions, actions, facts, clauses, variables, states);
+    }
+
+    /**
+     * Decoder over the mapped file. Each decode works on its own view of the
+     * buffer, so lazily loaded scenes may be decoded from any thread.
+     */
+    private static final class Reader {
+        final ByteBuffer buffer;
+        SymbolTable table;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        ByteBuffer at(int offset) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            return view;
+        }
+
+        /**
+         * Rebuild the program's symbol table, interning symbols and slots in
+         * file order so every ID and slot matches the one it was written with.
+         */
+        SymbolTable readSymbolTable(int offset) {
+            ByteBuffer in = at(offset);
+            table = new SymbolTable();
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] utf8 = new byte[in.getInt()];
+                in.get(utf8);
+                table.intern(new String(utf8, StandardCharsets.UTF_8));
+            }
+            int variables = in.getInt();
+            for (int i = 0; i < variables; i++) table.variableSlot(table.name(in.getInt()));
+            int states = in.getInt();
+            for (int i = 0; i < states; i++) table.stateSlot(table.name(in.getInt()), table.name(in.getInt()));
+            return table.freeze();
+        }
+
+        String symbol(ByteBuffer in) {
+            return table.name(in.getInt());
+        }
+
+        Object value(ByteBuffer in) {
+            byte tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case STRING: return symbol(in);
+                case NUMBER: return in.getDouble();
+                case CALL:
+                    String name = symbol(in);
+                    List<AST.Expression> args = new ArrayList<>();
+                    int n = in.getInt();
+                    for (int i = 0; i < n; i++) args.add(new AST.Expression(value(in)));
+                    return new AST.FunctionCall(name, args);
+                case LOGIC_VARIABLE: return new AST.LogicVariable(symbol(in));
+                default:
+                    throw new IllegalArgumentException("Corrupt value tag: " + tag);
+            }
+        }
+
+        Predicate predicate(ByteBuffer in) {
+            byte tag = in.get();
+            switch (tag) {
+                case AND: return new Predicate.And(predicate(in), predicate(in));
+                case OR: return new Predicate.Or(predicate(in), predicate(in));
+                case SAYS: return new Predicate.Says(operand(in));
+                case MENTIONS: return new Predicate.Mentions(symbol(in));
+                case COMPARE:
+                    Predicate.Operator op = Predicate.Operator.values()[in.get()];
+                    return new Predicate.Compare(operand(in), op, operand(in));
+                case QUERY: return new Predicate.Query(goals(in));
+                default:
+                    throw new IllegalArgumentException("Corrupt predicate tag: " + tag);
+            }
+        }
+
+        List<AST.FunctionCall> goals(ByteBuffer in) {
+            int n = in.getInt();
+            List<AST.FunctionCall> goals = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) goals.add((AST.FunctionCall) value(in));
+            return goals;
+        }
+
+        Predicate.Operand operand(ByteBuffer in) {
+            byte tag = in.get();
+            switch (tag) {
+                case VARIABLE:
+                    int variable = in.getInt();
+                    return new Predicate.Variable(table.variableName(variable), variable);
+                case STATE:
+                    int state = in.getInt();
+                    return new Predicate.StateRead(table.stateNpc(state), table.stateKey(state), state);
+                case CONSTANT: return new Predicate.Constant(value(in));
+                default:
+                    throw new IllegalArgumentException("Corrupt operand tag: " + tag);
+            }
+        }
+
+        List<AST.Action> actions(ByteBuffer in) {
+            int n = in.getInt();
+            List<AST.Action> actions = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                byte tag = in.get();
+                if (tag == RESPONSE) {
+                    actions.add(new AST.Action("response", new AST.Response(symbol(in), symbol(in))));
+                } else if (tag == ASSIGN) {
+                    Object target = value(in);
+                    actions.add(new AST.Action("assignment", new Object[] { target, new AST.Expression(value(in)) }));
+                } else {
+                    throw new IllegalArgumentException("Corrupt action tag: " + tag);
+                }
+            }
+            return actions;
+        }
+
+        CompiledProgram.Scene scene(String name, int offset) {
+            ByteBuffer in = at(offset);
+            List<AST.NPC> npcs = new ArrayList<>();
+            int npcCount = in.getInt();
+            for (int i = 0; i < npcCount; i++) {
+                String npc = symbol(in);
+                Object mood = value(in);
+                npcs.add(new AST.NPC(npc, mood == null ? null : new AST.Expression(mood)));
+            }
+            int triggerCount = in.getInt();
+            Predicate[] conditions = new Predicate[triggerCount];
+            CompiledAction[][] actions = new CompiledAction[triggerCount][];
+            List<AST.When> triggers = new ArrayList<>(triggerCount);
+            for (int i = 0; i < triggerCount; i++) {
+                conditions[i] = predicate(in);
+                AST.When trigger = new AST.When(null, actions(in));
+                triggers.add(trigger);
+                actions[i] = CompiledAction.compile(trigger.actions, table);
+            }
+            return new CompiledProgram.Scene(new AST.Scene(name, npcs, triggers), conditions, actions);
+        }
+    }
+}
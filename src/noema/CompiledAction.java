@@ -0,0 +1,131 @@
+package noema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled form of an {@link AST.Action}: responses are compiled into
+ * {@link ResponseTemplate}s and assignments are resolved to variable or NPC
+ * state slots.
+ */
+public abstract class CompiledAction {
+
+    /**
+     * Apply the action's changes to a session. Responses change nothing and
+     * are not rendered.
+     */
+    abstract void execute(Session session);
+
+    /**
+     * Apply the action's changes to a session.
+     * @return Whether a value changed
+     */
+    boolean update(Session session) {
+        execute(session);
+        return false;
+    }
+
+    /**
+     * Apply the action and write its response line, if it has one.
+     * @return Whether a line was written
+     */
+    boolean respond(Session session, Appendable out) throws IOException {
+        execute(session);
+        return false;
+    }
+
+    public static CompiledAction[] compile(List<AST.Action> actions, SymbolTable symbols) {
+        List<CompiledAction> compiled = new ArrayList<>(actions.size());
+        for (AST.Action action : actions) {
+            if (action == null) continue;
+            switch (action.type) {
+                case "response":
+                    AST.Response r = (AST.Response) action.value;
+                    compiled.add(new Response(symbols.literal(r.character), ResponseTemplate.compile(r.text, symbols)));
+                    break;
+                case "assignment":
+                    Object[] parts = (Object[]) action.value;
+                    Predicate.Operand value = ConditionCompiler.value((AST.Expression) parts[1], symbols);
+                    if (parts[0] instanceof AST.FunctionCall) {
+                        AST.FunctionCall target = (AST.FunctionCall) parts[0];
+                        String npc = String.valueOf(target.arguments.get(0).value);
+                        compiled.add(new SetState(symbols.stateSlot(npc, target.name), value));
+                    } else {
+                        compiled.add(new SetVariable(symbols.variableSlot((String) parts[0]), value));
+                    }
+                    break;
+                default:
+                    System.err.println("Unknown action: " + action.type);
+            }
+        }
+        return compiled.toArray(new CompiledAction[0]);
+    }
+
+    static final class Response extends CompiledAction {
+        final String prefix;
+        final ResponseTemplate text;
+
+        Response(String character, ResponseTemplate text) {
+            this.prefix = character + ": ";
+            this.text = text;
+        }
+
+        @Override
+        void execute(Session session) {
+        }
+
+        @Override
+        boolean respond(Session session, Appendable out) throws IOException {
+            out.append(prefix);
+            text.render(session, out);
+            return true;
+        }
+    }
+
+    static final class SetVariable extends CompiledAction {
+        final int slot;
+        final Predicate.Operand value;
+
+        SetVariable(int slot, Predicate.Operand value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        void execute(Session session) {
+            session.setVariable(slot, value.value(session));
+        }
+
+        @Override
+        boolean update(Session session) {
+            Object v = value.value(session);
+            if (Predicate.valuesEqual(session.getVariable(slot), v)) return false;
+            session.setVariable(slot, v);
+            return true;
+        }
+    }
+
+    static final class SetState extends CompiledAction {
+        final int slot;
+        final Predicate.Operand value;
+
+        SetState(int slot, Predicate.Operand value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        void execute(Session session) {
+            session.setNPCState(slot, value.value(session));
+        }
+
+        @Override
+        boolean update(Session session) {
+            Object v = value.value(session);
+            if (Predicate.valuesEqual(session.getNPCState(slot), v)) return false;
+            session.setNPCState(slot, v);
+            return true;
+        }
+    }
+}
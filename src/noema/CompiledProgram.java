@@ -0,0 +1,579 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * An immutable, compiled Noema program: the symbol table, scenes with their
+ * trigger indexes, the rule network, the fact base with its clauses and the
+ * initial world state.
+ *
+ * A program is built once and shared by any number of {@link Session}s,
+ * which only hold their own state changes. Nothing in a program is modified
+ * after {@link Builder#build()}, so sessions on different threads may read
+ * it without locking.
+ */
+public final class CompiledProgram {
+
+    private final SymbolTable symbols;
+    private final Set<String> sceneNames;
+    private final Map<String, Scene> scenes = new ConcurrentHashMap<>();
+    private final Function<String, Scene> sceneLoader;
+    private final List<AST.Rule> rules;
+    private final List<Predicate> ruleConditions;
+    private final List<CompiledAction[]> ruleActions;
+    private final RuleNetwork network;
+    private final RuleSchedule schedule;
+    private final FactStore facts;
+    private final List<AST.Clause> clauses;
+    private final QueryEngine queries;
+    private final Object[] variables;
+    private final Object[] states;
+
+    /**
+     * @param symbols Frozen symbol table everything was compiled against
+     * @param sceneNames Names of all scenes in the program
+     * @param scenes Scenes available up front
+     * @param sceneLoader Loads any other scene on first use, or null
+     * @param rules Rules in declaration order
+     * @param ruleConditions Compiled condition of each rule
+     * @param ruleActions Compiled actions of each rule
+     * @param facts Fact base; no longer modified by the caller
+     * @param clauses Clauses deriving further facts, in declaration order
+     * @param variables Initial value of each variable slot
+     * @param states Initial value of each NPC state slot
+     */
+    CompiledProgram(SymbolTable symbols, Set<String> sceneNames, Map<String, Scene> scenes,
+                    Function<String, Scene> sceneLoader, List<AST.Rule> rules, List<Predicate> ruleConditions,
+                    List<CompiledAction[]> ruleActions, FactStore facts, List<AST.Clause> clauses,
+                    Object[] variables, Object[] states) {
+        this.symbols = symbols;
+        this.sceneNames = Collections.unmodifiableSet(sceneNames);
+        this.scenes.putAll(scenes);
+        this.sceneLoader = sceneLoader;
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.ruleConditions = Collections.unmodifiableList(new ArrayList<>(ruleConditions));
+        this.ruleActions = Collections.unmodifiableList(new ArrayList<>(ruleActions));
+        this.network = new RuleNetwork(this.rules, this.ruleConditions, symbols);
+        this.schedule = new RuleSchedule(this.ruleConditions, this.ruleActions, symbols);
+        this.facts = facts.readOnly();
+        this.clauses = Collections.unmodifiableList(new ArrayList<>(clauses));
+        this.queries = new QueryEngine(this.facts, this.clauses);
+        this.variables = variables;
+        this.states = states;
+    }
+
+    public static CompiledProgram compile(AST.Program program) {
+        FlightEvents.Compile event = FlightEvents.beginCompile();
+        Builder builder = new Builder();
+        builder.add(program);
+        CompiledProgram compiled = builder.build();
+        FlightEvents.commitCompile(event, "interpret", program.statements.size());
+        return compiled;
+    }
+
+    public Session newSession() {
+        return new Session(this);
+    }
+
+    public SymbolTable symbols() {
+        return symbols;
+    }
+
+    public Scene scene(String name) {
+        Scene scene = scenes.get(name);
+        if (scene == null && sceneLoader != null && sceneNames.contains(name)) {
+            scene = scenes.computeIfAbsent(name, sceneLoader);
+        }
+        return scene;
+    }
+
+    public Set<String> sceneNames() {
+        return sceneNames;
+    }
+
+    public List<AST.Rule> rules() {
+        return rules;
+    }
+
+    List<Predicate> ruleConditions() {
+        return ruleConditions;
+    }
+
+    CompiledAction[] ruleActions(int rule) {
+        return ruleActions.get(rule);
+    }
+
+    public RuleNetwork network() {
+        return network;
+    }
+
+    public RuleSchedule schedule() {
+        return schedule;
+    }
+
+    /**
+     * @return The program's facts, read-only since every session shares them
+     */
+    public FactStore facts() {
+        return facts;
+    }
+
+    public List<AST.Clause> clauses() {
+        return clauses;
+    }
+
+    public QueryEngine queries() {
+        return queries;
+    }
+
+    /**
+     * Solve a goal over the facts and clauses, e.g.
+     * {@code trusts("Jade", X) and knows(X, Y)}.
+     * @return The bindings of the goal's variables in each solution
+     * @throws IllegalArgumentException If the goal doesn't parse
+     */
+    public List<Map<String, Object>> query(String goal) {
+        ErrorReporter reporter = new ErrorReporter();
+        Parser parser = new Parser(new Lexer(goal, reporter).scanTokens(), reporter);
+        List<AST.FunctionCall> goals = parser.parseQuery();
+        if (reporter.hadError()) throw new IllegalArgumentException("Invalid query: " + goal);
+        return queries.query(goals);
+    }
+
+    /**
+     * @return The initial value of a global variable, or null
+     */
+    public Object variable(String name) {
+        int slot = symbols.findVariable(name);
+        return slot < 0 ? null : variables[slot];
+    }
+
+    Object variable(int slot) {
+        return variables[slot];
+    }
+
+    /**
+     * @return Names of the variables with an initial value
+     */
+    public Set<String> variableNames() {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] != null) names.add(symbols.variableName(i));
+        }
+        return names;
+    }
+
+    /**
+     * @return The initial NPC state, set by {@code feels} or by a fact
+     *         {@code key(npc, value)}, or null
+     */
+    public Object npcState(String npc, String key) {
+        int slot = symbols.findState(npc, key);
+        return slot < 0 ? facts.value(key, npc) : states[slot];
+    }
+
+    Object npcState(int slot) {
+        return states[slot];
+    }
+
+    /**
+     * A scene with its triggers compiled into a dispatch index.
+     */
+    public static final class Scene {
+        public final String name;
+        public final AST.Scene node;
+        final Predicate[] conditions;
+        final CompiledAction[][] actions;
+        final TriggerIndex index;
+
+        Scene(AST.Scene node, Predicate[] conditions, CompiledAction[][] actions) {
+            this.name = node.name;
+            this.node = node;
+            this.conditions = conditions;
+            this.actions = actions;
+            this.index = new TriggerIndex(conditions);
+        }
+    }
+
+    // --- Building ---
+
+    /**
+     * Replays declarations in order, interning symbols, compiling conditions
+     * and actions and collecting the initial state. A builder can keep
+     * accepting declarations after {@link #build()}; every build takes an
+     * independent snapshot, and symbols keep their IDs and slots across builds.
+     *
+     * Declarations can come from several sources, such as the files of a
+     * {@link ProgramWatcher}. Each is tracked by source and
+     * {@link ProgramDiff} key, with the values it compiled to; of the
+     * declarations sharing a key, the one from the source added last is in
+     * effect, unless {@link #precede(Object, Object)} ranked it lower. Removing a declaration takes back only what its source
+     * declared, and a declaration of the same key from another source takes
+     * effect again.
+     */
+    public static final class Builder implements AST.Visitor<Object> {
+        private final SymbolTable symbols = new SymbolTable();
+        private final Map<String, Scene> scenes = new HashMap<>();
+        private final Map<String, AST.Rule> rules = new LinkedHashMap<>();
+        private final Map<String, Predicate> ruleConditions = new HashMap<>();
+        private final Map<String, CompiledAction[]> ruleActions = new HashMap<>();
+        private final FactStore facts = new FactStore();
+        private final Map<String, AST.Clause> clauses = new LinkedHashMap<>();
+        private final Map<String, Object> variables = new HashMap<>();
+        private final Map<String, Map<String, Object>> npcStates = new HashMap<>();
+        /** Declarations of each key, ordered by source; the last is in effect */
+        private final Map<String, List<Declaration>> declared = new HashMap<>();
+        private final Map<Object, Integer> sourceOrder = new HashMap<>();
+        private Object source = null;
+
+        public Builder() {
+            facts.declareFunctional("mood");
+        }
+
+        /**
+         * Add a whole program or a single scene, rule or fact.
+         */
+        public Builder add(AST.Node node) {
+            node.accept(this);
+            return this;
+        }
+
+        /**
+         * {@link #add(AST.Node)} on behalf of a source, such as a file path.
+         */
+        public Builder add(Object source, AST.Node node) {
+            sourceOrder.computeIfAbsent(source, k -> sourceOrder.size());
+            Object previous = this.source;
+            this.source = source;
+            try {
+                return add(node);
+            } finally {
+                this.source = previous;
+            }
+        }
+
+        /**
+         * Add a separately compiled module, such as one loaded from a
+         * {@code .noemac} file. Its conditions are rebound to this builder's
+         * slots and its actions recompiled; nothing is lexed or parsed.
+         * Facts and rules follow the module's own order, and scenes come
+         * after its facts.
+         */
+        public Builder add(CompiledProgram module) {
+            FactStore moduleFacts = module.facts();
+            for (String predicate : moduleFacts.functionalPredicates()) facts.declareFunctional(predicate);
+            for (String predicate : moduleFacts.predicates()) {
+                symbols.intern(predicate);
+                for (FactStore.Tuple tuple : moduleFacts.all(predicate)) {
+                    Object[] args = tuple.toArray();
+                    for (int i = 0; i < args.length; i++) {
+                        if (args[i] instanceof String) args[i] = symbols.literal((String) args[i]);
+                    }
+                    facts.assertFact(predicate, args);
+                }
+            }
+            for (AST.Clause clause : module.clauses()) visitClauseNode(clause);
+            // The last one-argument fact of a predicate is its variable value
+            SymbolTable moduleSymbols = module.symbols();
+            for (int i = 0; i < moduleSymbols.variableCount(); i++) {
+                String name = moduleSymbols.variableName(i);
+                symbols.variableSlot(name);
+                Object value = module.variable(i);
+                if (value != null) variables.put(name, value instanceof String ? symbols.literal((String) value) : value);
+            }
+
+            for (int i = 0; i < module.rules().size(); i++) {
+                AST.Rule rule = module.rules().get(i);
+                symbols.intern(rule.name);
+                rules.put(rule.name, rule);
+                ruleConditions.put(rule.name, Predicate.rebind(module.ruleConditions().get(i), symbols));
+                ruleActions.put(rule.name, CompiledAction.compile(rule.actions, symbols));
+            }
+
+            for (String name : module.sceneNames()) {
+                Scene scene = module.scene(name);
+                symbols.intern(name);
+                Predicate[] conditions = new Predicate[scene.conditions.length];
+                CompiledAction[][] actions = new CompiledAction[conditions.length][];
+                for (int i = 0; i < conditions.length; i++) {
+                    conditions[i] = Predicate.rebind(scene.conditions[i], symbols);
+                    actions[i] = CompiledAction.compile(scene.node.triggers.get(i).actions, symbols);
+                }
+                scenes.put(name, new Scene(scene.node, conditions, actions));
+                npcs(scene.node.npcs);
+            }
+            return this;
+        }
+
+        /**
+         * Take back a scene, rule or fact added earlier. Its symbols stay
+         * interned, so the slots of everything else are unchanged.
+         */
+        public Builder remove(AST.Node declaration) {
+            String key = ProgramDiff.key(declaration);
+            List<Declaration> list = declared.get(key);
+            int at = list == null ? -1 : indexOf(list, source);
+            if (at < 0) return this;
+            Declaration removed = list.remove(at);
+            if (list.isEmpty()) declared.remove(key);
+            // A later source's declaration stays in effect
+            if (at < list.size()) return this;
+            Declaration fallback = list.isEmpty() ? null : list.get(list.size() - 1);
+
+            if (declaration instanceof AST.Scene) {
+                scenes.remove(((AST.Scene) declaration).name);
+                Object[] moods = removed.values;
+                for (int i = 0; i < moods.length; i += 2) {
+                    Map<String, Object> state = npcStates.get((String) moods[i]);
+                    if (state != null) state.remove("mood", moods[i + 1]);
+                }
+                if (fallback != null) add(fallback.source, fallback.node);
+            } else if (declaration instanceof AST.Rule) {
+                if (fallback != null) {
+                    add(fallback.source, fallback.node);
+                } else {
+                    String name = ((AST.Rule) declaration).name;
+                    rules.remove(name);
+                    ruleConditions.remove(name);
+                    ruleActions.remove(name);
+                }
+            } else if (declaration instanceof AST.Fact) {
+                String predicate = ((AST.Fact) declaration).predicate;
+                facts.retract(predicate, removed.values);
+                if (removed.values.length == 1) variables.remove(predicate, removed.values[0]);
+                if (fallback != null) assertFact(predicate, fallback.values);
+            } else if (declaration instanceof AST.Clause) {
+                if (fallback == null) clauses.remove(key);
+            }
+            return this;
+        }
+
+        /**
+         * {@link #remove(AST.Node)} on behalf of the source that added it.
+         */
+        public Builder remove(Object source, AST.Node declaration) {
+            Object previous = this.source;
+            this.source = source;
+            try {
+                return remove(declaration);
+            } finally {
+                this.source = previous;
+            }
+        }
+
+        /**
+         * Swap a declaration for a new version of the same scene, rule or
+         * fact. A rule keeps its position in declaration order.
+         */
+        public Builder replace(AST.Node old, AST.Node replacement) {
+            if (!(old instanceof AST.Rule)) remove(old);
+            return add(replacement);
+        }
+
+        /**
+         * {@link #replace(AST.Node, AST.Node)} on behalf of the source that
+         * added the old version.
+         */
+        public Builder replace(Object source, AST.Node old, AST.Node replacement) {
+            Object previous = this.source;
+            this.source = source;
+            try {
+                return replace(old, replacement);
+            } finally {
+                this.source = previous;
+            }
+        }
+
+        /**
+         * Rank a source that declares nothing, such as one not added yet,
+         * just below another, as for a file imported by that one: its
+         * declarations lose to those of {@code other} and of every source
+         * ranked after it, and win over those of the sources before.
+         */
+        public Builder precede(Object source, Object other) {
+            Integer was = sourceOrder.remove(source);
+            if (was != null) sourceOrder.replaceAll((s, order) -> order > was ? order - 1 : order);
+            int at = sourceOrder.computeIfAbsent(other, k -> sourceOrder.size());
+            sourceOrder.replaceAll((s, order) -> order >= at ? order + 1 : order);
+            sourceOrder.put(source, at);
+            return this;
+        }
+
+        /**
+         * Record a declaration of the current source, in place of its
+         * earlier declaration of the same key.
+         * @param values What it compiled to, for taking it back later
+         * @return Whether it is in effect: no later source declares the key
+         */
+        private boolean declare(AST.Node node, Object[] values) {
+            List<Declaration> list = declared.computeIfAbsent(ProgramDiff.key(node), k -> new ArrayList<>());
+            Declaration declaration = new Declaration(source, node, values);
+            int at = indexOf(list, source);
+            if (at >= 0) {
+                list.set(at, declaration);
+                return at == list.size() - 1;
+            }
+            int order = sourceOrder.computeIfAbsent(source, k -> sourceOrder.size());
+            at = list.size();
+            while (at > 0 && sourceOrder.get(list.get(at - 1).source) > order) at--;
+            list.add(at, declaration);
+            return at == list.size() - 1;
+        }
+
+        private static int indexOf(List<Declaration> list, Object source) {
+            for (int i = 0; i < list.size(); i++) {
+                if (Objects.equals(list.get(i).source, source)) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * A declaration of one source and the values it compiled to: a
+         * fact's arguments, or the NPC and mood pairs of a scene.
+         */
+        private static final class Declaration {
+            final Object source;
+            final AST.Node node;
+            final Object[] values;
+
+            Declaration(Object source, AST.Node node, Object[] values) {
+                this.source = source;
+                this.node = node;
+                this.values = values;
+            }
+        }
+
+        public CompiledProgram build() {
+            SymbolTable table = symbols.copy().freeze();
+
+            Object[] initialVariables = new Object[table.variableCount()];
+            for (int i = 0; i < initialVariables.length; i++) {
+                initialVariables[i] = variables.get(table.variableName(i));
+            }
+            Object[] initialStates = new Object[table.stateCount()];
+            for (int i = 0; i < initialStates.length; i++) {
+                Map<String, Object> state = npcStates.get(table.stateNpc(i));
+                Object value = state == null ? null : state.get(table.stateKey(i));
+                initialStates[i] = value != null ? value : facts.value(table.stateKey(i), table.stateNpc(i));
+            }
+
+            List<Predicate> conditions = new ArrayList<>();
+            List<CompiledAction[]> actions = new ArrayList<>();
+            for (AST.Rule rule : rules.values()) {
+                conditions.add(ruleConditions.get(rule.name));
+                actions.add(ruleActions.get(rule.name));
+            }
+            return new CompiledProgram(table, new HashSet<>(scenes.keySet()), scenes, null,
+                    new ArrayList<>(rules.values()), conditions, actions, facts.copy(),
+                    new ArrayList<>(clauses.values()), initialVariables, initialStates);
+        }
+
+        private Object getNPCState(String npc, String key) {
+            Map<String, Object> state = npcStates.get(npc);
+            Object value = state == null ? null : state.get(key);
+            if (value == null) value = facts.value(key, npc);
+            return value == null ? "neutral" : value;
+        }
+
+        private Object evaluate(AST.Expression expr) {
+            if (expr.value instanceof AST.FunctionCall) {
+                AST.FunctionCall call = (AST.FunctionCall) expr.value;
+                if (call.arguments.size() == 1) return getNPCState(String.valueOf(call.arguments.get(0).value), call.name);
+            }
+            if (expr.value instanceof String) return symbols.literal((String) expr.value);
+            // Facts hold values, so a variable there is just its name
+            if (expr.value instanceof AST.LogicVariable) return symbols.literal(expr.value.toString());
+            return expr.value;
+        }
+
+        @Override public Object visitProgramNode(AST.Program node) {
+            for (AST.Node s : node.statements) {
+                if (s != null) s.accept(this);
+            }
+            return null;
+        }
+
+        @Override public Object visitFactNode(AST.Fact node) {
+            symbols.intern(node.predicate);
+            Object[] args = new Object[node.arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = evaluate(node.arguments.get(i));
+            }
+            if (args.length == 1) symbols.variableSlot(node.predicate);
+            if (declare(node, args)) assertFact(node.predicate, args);
+            return null;
+        }
+
+        private void assertFact(String predicate, Object[] args) {
+            facts.assertFact(predicate, args);
+            if (args.length == 1) variables.put(predicate, args[0]);
+        }
+
+        @Override public Object visitClauseNode(AST.Clause node) {
+            symbols.intern(node.predicate);
+            AST.FunctionCall head = QueryEngine.literals(new AST.FunctionCall(node.predicate, node.arguments), symbols);
+            List<AST.FunctionCall> body = new ArrayList<>();
+            for (AST.FunctionCall goal : node.body) body.add(QueryEngine.literals(goal, symbols));
+            if (declare(node, null)) clauses.put(ProgramDiff.key(node), new AST.Clause(head.name, head.arguments, body));
+            return null;
+        }
+
+        @Override public Object visitRuleNode(AST.Rule node) {
+            symbols.intern(node.name);
+            if (!declare(node, null)) return null;
+            rules.put(node.name, node);
+            ruleConditions.put(node.name, ConditionCompiler.compile(node.condition, symbols));
+            ruleActions.put(node.name, CompiledAction.compile(node.actions, symbols));
+            return null;
+        }
+
+        @Override public Object visitSceneNode(AST.Scene node) {
+            symbols.intern(node.name);
+            Predicate[] conditions = new Predicate[node.triggers.size()];
+            CompiledAction[][] actions = new CompiledAction[conditions.length][];
+            for (int i = 0; i < conditions.length; i++) {
+                conditions[i] = ConditionCompiler.compile(node.triggers.get(i).condition, symbols);
+                actions[i] = CompiledAction.compile(node.triggers.get(i).actions, symbols);
+            }
+            List<Object> moods = new ArrayList<>();
+            for (AST.NPC npc : node.npcs) {
+                if (npc.mood != null) Collections.addAll(moods, npc.name, evaluate(npc.mood));
+            }
+            if (!declare(node, moods.toArray())) return null;
+            scenes.put(node.name, new Scene(node, conditions, actions));
+            npcs(node.npcs);
+            return null;
+        }
+
+        private void npcs(List<AST.NPC> npcs) {
+            for (AST.NPC npc : npcs) {
+                npcStates.putIfAbsent(npc.name, new HashMap<>());
+                symbols.intern(npc.name);
+                if (npc.mood != null) {
+                    symbols.stateSlot(npc.name, "mood");
+                    npcStates.get(npc.name).put("mood", evaluate(npc.mood));
+                }
+            }
+        }
+
+        @Override public Object visitImportNode(AST.Import node) { return null; }
+
+        @Override public Object visitNPCNode(AST.NPC node) { return null; }
+        @Override public Object visitWhenNode(AST.When node) { return null; }
+        @Override public Object visitResponseNode(AST.Response node) { return null; }
+        @Override public Object visitExpressionNode(AST.Expression node) { return evaluate(node); }
+        @Override public Object visitConditionNode(AST.Condition node) { return null; }
+        @Override public Object visitActionNode(AST.Action node) { return null; }
+        @Override public Object visitTemporalConditionNode(AST.TemporalCondition node) { return null; }
+    }
+}
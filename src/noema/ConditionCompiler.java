@@ -0,0 +1,119 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles {@link AST.Condition} nodes into {@link Predicate} trees.
+ *
+ * Comparisons bind tighter than {@code and}/{@code or}, which are folded
+ * left to right as the interpreter has always done. The left operand of a
+ * comparison names state (a variable or a call such as {@code mood("Jade")}),
+ * the right operand is a value. A bare operand is matched against the
+ * player's input, and {@code mentions "..."} is looked for within it. A
+ * bare call with other than one argument, such as {@code trusts("Jade", X)},
+ * is a goal over the fact base; goals joined by {@code and} share their
+ * variables. Variables and NPC states are resolved to their slots in
+ * the given {@link SymbolTable}, and string literals to its canonical
+ * instances.
+ */
+public final class ConditionCompiler {
+
+    private ConditionCompiler() {}
+
+    public static Predicate compile(AST.Condition condition, SymbolTable symbols) {
+        Predicate result = null;
+        String connective = null;
+        Predicate comparison = null;
+        AST.Expression last = condition.conditions.get(0);
+
+        for (int i = 0; i < condition.operators.size(); i++) {
+            String op = condition.operators.get(i);
+            AST.Expression next = condition.conditions.get(i + 1);
+            if (isConnective(op)) {
+                result = join(result, connective, comparison != null ? comparison : term(last, symbols));
+                connective = op;
+                comparison = null;
+            } else {
+                comparison = compare(reference(last, symbols), op, value(next, symbols));
+            }
+            last = next;
+        }
+        return join(result, connective, comparison != null ? comparison : term(last, symbols));
+    }
+
+    private static boolean isConnective(String op) {
+        return op.equals("and") || op.equals("or");
+    }
+
+    private static Predicate join(Predicate left, String connective, Predicate right) {
+        if (left == null) return right;
+        if (connective.equals("or")) return new Predicate.Or(left, right);
+        if (right instanceof Predicate.Query) {
+            if (left instanceof Predicate.Query) return conjunction((Predicate.Query) left, (Predicate.Query) right);
+            if (left instanceof Predicate.And && ((Predicate.And) left).right instanceof Predicate.Query) {
+                Predicate.And and = (Predicate.And) left;
+                return new Predicate.And(and.left, conjunction((Predicate.Query) and.right, (Predicate.Query) right));
+            }
+        }
+        return new Predicate.And(left, right);
+    }
+
+    private static Predicate.Query conjunction(Predicate.Query left, Predicate.Query right) {
+        List<AST.FunctionCall> goals = new ArrayList<>(left.goals);
+        goals.addAll(right.goals);
+        return new Predicate.Query(goals);
+    }
+
+    private static Predicate term(AST.Expression expr, SymbolTable symbols) {
+        if (expr.value instanceof AST.Comparison) {
+            AST.Comparison c = (AST.Comparison) expr.value;
+            return compare(reference(c.left, symbols), c.operator, value(c.right, symbols));
+        }
+        if (expr.value instanceof AST.Condition) return compile((AST.Condition) expr.value, symbols);
+        if (expr.value instanceof AST.Mention) {
+            return new Predicate.Mentions(symbols.literal(KeywordAutomaton.fold(((AST.Mention) expr.value).phrase)));
+        }
+        if (expr.value instanceof AST.FunctionCall && ((AST.FunctionCall) expr.value).arguments.size() != 1) {
+            return new Predicate.Query(List.of(QueryEngine.literals((AST.FunctionCall) expr.value, symbols)));
+        }
+        if (expr.value instanceof String) {
+            String utterance = symbols.literal(TriggerIndex.normalize((String) expr.value));
+            return new Predicate.Says(new Predicate.Constant(utterance));
+        }
+        return new Predicate.Says(value(expr, symbols));
+    }
+
+    private static Predicate compare(Predicate.Operand left, String op, Predicate.Operand right) {
+        Predicate.Operator operator = Predicate.Operator.of(op);
+        if (operator == null) throw new IllegalArgumentException("Unknown comparison operator: " + op);
+        return new Predicate.Compare(left, operator, right);
+    }
+
+    private static Predicate.Operand reference(AST.Expression expr, SymbolTable symbols) {
+        if (expr.value instanceof String) {
+            String name = (String) expr.value;
+            return new Predicate.Variable(symbols.name(symbols.intern(name)), symbols.variableSlot(name));
+        }
+        return value(expr, symbols);
+    }
+
+    /**
+     * Compile an expression used as a value: a call such as {@code mood("Jade")}
+     * reads NPC state, anything else is a constant.
+     */
+    static Predicate.Operand value(AST.Expression expr, SymbolTable symbols) {
+        if (expr.value instanceof AST.FunctionCall) return call((AST.FunctionCall) expr.value, symbols);
+        if (expr.value instanceof String) return new Predicate.Constant(symbols.literal((String) expr.value));
+        return new Predicate.Constant(expr.value);
+    }
+
+    private static Predicate.Operand call(AST.FunctionCall call, SymbolTable symbols) {
+        if (call.arguments.size() != 1) {
+            System.err.println("Unsupported call in condition: " + call.name + "/" + call.arguments.size());
+            return new Predicate.Constant(null);
+        }
+        String npc = String.valueOf(call.arguments.get(0).value);
+        return new Predicate.StateRead(symbols.literal(npc), symbols.literal(call.name), symbols.stateSlot(npc, call.name));
+    }
+}
@@ -29,7 +29,8 @@ public class ConditionParser {
         while (match(
                 Token.Type.AND, Token.Type.OR,
                 Token.Type.EQUALS, Token.Type.NOT_EQUALS,
-                Token.Type.GREATER_THAN, Token.Type.LESS_THAN)) {
+                Token.Type.GREATER_THAN, Token.Type.LESS_THAN,
+                Token.Type.GREATER_EQUAL, Token.Type.LESS_EQUAL)) {
 
             String operator = previous().getLexeme();
             condition.operators.add(operator);
@@ -4,44 +4,48 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Error reporting and handling for the Noema language
+ * Error reporting and handling for the Noema language.
+ *
+ * A reporter collects the diagnostics of one compilation unit; the lexer and
+ * parser of a file share one. Nothing is global, so files can be compiled
+ * on different threads at once, each with its own reporter.
  */
 public class ErrorReporter {
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
     
-    private static final List<String> errors = new ArrayList<>();
-    private static final List<String> warnings = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+    private final List<String> warnings = new ArrayList<>();
     
-    public static void reset() {
+    public void reset() {
         hadError = false;
         hadRuntimeError = false;
         errors.clear();
         warnings.clear();
     }
     
-    public static boolean hadError() {
+    public boolean hadError() {
         return hadError;
     }
     
-    public static boolean hadRuntimeError() {
+    public boolean hadRuntimeError() {
         return hadRuntimeError;
     }
     
-    public static List<String> getErrors() {
+    public List<String> getErrors() {
         return new ArrayList<>(errors);
     }
     
-    public static List<String> getWarnings() {
+    public List<String> getWarnings() {
         return new ArrayList<>(warnings);
     }
     
-    public static void error(int line, String message) {
+    public void error(int line, String message) {
         report(line, "", message);
         hadError = true;
     }
     
-    public static void error(Token token, String message) {
+    public void error(Token token, String message) {
         if (token.getType() == Token.Type.EOF) {
             report(token.getLine(), " at end", message);
         } else {
@@ -50,13 +54,13 @@ public class ErrorReporter {
         hadError = true;
     }
     
-    public static void warning(int line, String message) {
+    public void warning(int line, String message) {
         String formattedMessage = String.format("[line %d] Warning: %s", line, message);
         System.err.println(formattedMessage);
         warnings.add(formattedMessage);
     }
     
-    public static void runtimeError(RuntimeError error) {
+    public void runtimeError(RuntimeError error) {
         String message = String.format("[line %d] Runtime Error: %s", 
                 error.getToken().getLine(), error.getMessage());
         System.err.println(message);
@@ -64,7 +68,7 @@ public class ErrorReporter {
         hadRuntimeError = true;
     }
     
-    private static void report(int line, String where, String message) {
+    private void report(int line, String where, String message) {
         String formattedMessage = String.format("[line %d] Error%s: %s", line, where, message);
         System.err.println(formattedMessage);
         errors.add(formattedMessage);
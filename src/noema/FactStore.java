@@ -0,0 +1,265 @@
+package noema;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indexed storage for facts such as {@code trust("Jade", "low")}.
+ *
+ * Every predicate keeps its tuples deduplicated and hash-indexed on the
+ * first argument; further argument positions can be indexed on demand.
+ * Predicates declared functional (like {@code mood/2}) hold at most one
+ * tuple per first argument, so asserting a new one replaces the old.
+ *
+ * Lookups are safe from many threads once a store is no longer modified,
+ * which is how a {@link CompiledProgram} shares its facts between sessions;
+ * it hands out a {@link #readOnly()} view so no caller can modify them.
+ */
+public class FactStore {
+
+    private final Map<String, Relation> relations;
+    private final Set<String> functional;
+    private final boolean readOnly;
+
+    public FactStore() {
+        this(new HashMap<>(), new HashSet<>(), false);
+    }
+
+    private FactStore(Map<String, Relation> relations, Set<String> functional, boolean readOnly) {
+        this.relations = relations;
+        this.functional = functional;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @return A view of this store whose lookups see its facts and whose
+     *         changes throw {@link UnsupportedOperationException}
+     */
+    public FactStore readOnly() {
+        return readOnly ? this : new FactStore(relations, functional, true);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Declare a predicate functional: its first argument determines the rest.
+     */
+    public void declareFunctional(String predicate) {
+        checkWritable();
+        functional.add(predicate);
+        Relation relation = relations.get(predicate);
+        if (relation != null) relation.functional = true;
+    }
+
+    /**
+     * Build (or keep) a hash index on an argument position of a predicate.
+     */
+    public void index(String predicate, int position) {
+        Relation relation = readOnly ? relations.get(predicate) : relation(predicate);
+        if (relation != null) relation.index(position);
+    }
+
+    /**
+     * Add a fact. Duplicates are ignored; for functional predicates any fact
+     * with the same first argument is replaced.
+     * @return True if the store changed
+     */
+    public boolean assertFact(String predicate, Object... args) {
+        checkWritable();
+        return relation(predicate).add(new Tuple(args.clone()));
+    }
+
+    /**
+     * Remove a fact.
+     * @return True if the fact was present
+     */
+    public boolean retract(String predicate, Object... args) {
+        checkWritable();
+        Relation relation = relations.get(predicate);
+        return relation != null && relation.remove(new Tuple(args));
+    }
+
+    public boolean contains(String predicate, Object... args) {
+        Relation relation = relations.get(predicate);
+        return relation != null && relation.rows.contains(new Tuple(args));
+    }
+
+    /**
+     * All facts of a predicate whose first argument equals the given value.
+     */
+    public Collection<Tuple> lookup(String predicate, Object first) {
+        return lookup(predicate, 0, first);
+    }
+
+    /**
+     * All facts of a predicate with the given value at an argument position.
+     * The position is indexed on first use.
+     */
+    public Collection<Tuple> lookup(String predicate, int position, Object value) {
+        Relation relation = relations.get(predicate);
+        if (relation == null) return Collections.emptySet();
+        Set<Tuple> bucket = relation.index(position).get(value);
+        return bucket == null ? Collections.emptySet() : Collections.unmodifiableSet(bucket);
+    }
+
+    /**
+     * Value of a functional predicate, e.g. {@code value("mood", "Jade")}.
+     * @return The last argument of the fact keyed by {@code first}, or null
+     */
+    public Object value(String predicate, Object first) {
+        Relation relation = relations.get(predicate);
+        if (relation == null) return null;
+        Set<Tuple> bucket = relation.indexes[0].get(first);
+        if (bucket == null || bucket.isEmpty()) return null;
+        Tuple tuple = bucket.iterator().next();
+        return tuple.get(tuple.arity() - 1);
+    }
+
+    public Collection<Tuple> all(String predicate) {
+        Relation relation = relations.get(predicate);
+        return relation == null ? Collections.emptySet() : Collections.unmodifiableSet(relation.rows);
+    }
+
+    public int count(String predicate) {
+        Relation relation = relations.get(predicate);
+        return relation == null ? 0 : relation.rows.size();
+    }
+
+    public Set<String> predicates() {
+        return Collections.unmodifiableSet(relations.keySet());
+    }
+
+    public Set<String> functionalPredicates() {
+        return Collections.unmodifiableSet(functional);
+    }
+
+    /**
+     * @return An independent store holding the same facts and declarations
+     */
+    public FactStore copy() {
+        FactStore copy = new FactStore();
+        copy.functional.addAll(functional);
+        for (Map.Entry<String, Relation> e : relations.entrySet()) {
+            Relation relation = copy.relation(e.getKey());
+            for (Tuple t : e.getValue().rows) relation.add(t);
+        }
+        return copy;
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Fact store is read-only");
+    }
+
+    private Relation relation(String predicate) {
+        return relations.computeIfAbsent(predicate, p -> new Relation(functional.contains(p)));
+    }
+
+    // --- Storage ---
+
+    /**
+     * An immutable fact tuple with a cached hash.
+     */
+    public static final class Tuple {
+        private final Object[] values;
+        private final int hash;
+
+        Tuple(Object[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        public Object get(int i) {
+            return values[i];
+        }
+
+        public int arity() {
+            return values.length;
+        }
+
+        public Object[] toArray() {
+            return values.clone();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Tuple && hash == ((Tuple) o).hash && Arrays.equals(values, ((Tuple) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(values);
+        }
+    }
+
+    private static final class Relation {
+        final Set<Tuple> rows = new LinkedHashSet<>();
+        // Arrays of a generic type can only be created raw; this one never leaves the relation
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        volatile Map<Object, Set<Tuple>>[] indexes = new Map[1];
+        boolean functional;
+
+        Relation(boolean functional) {
+            this.functional = functional;
+            indexes[0] = new HashMap<>();
+        }
+
+        boolean add(Tuple tuple) {
+            if (rows.contains(tuple)) return false;
+            if (functional && tuple.arity() > 0) {
+                Set<Tuple> existing = indexes[0].get(tuple.get(0));
+                if (existing != null) {
+                    for (Tuple old : existing.toArray(new Tuple[0])) remove(old);
+                }
+            }
+            rows.add(tuple);
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] != null && i < tuple.arity()) {
+                    indexes[i].computeIfAbsent(tuple.get(i), k -> new LinkedHashSet<>()).add(tuple);
+                }
+            }
+            return true;
+        }
+
+        boolean remove(Tuple tuple) {
+            if (!rows.remove(tuple)) return false;
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] != null && i < tuple.arity()) {
+                    Set<Tuple> bucket = indexes[i].get(tuple.get(i));
+                    bucket.remove(tuple);
+                    if (bucket.isEmpty()) indexes[i].remove(tuple.get(i));
+                }
+            }
+            return true;
+        }
+
+        Map<Object, Set<Tuple>> index(int position) {
+            Map<Object, Set<Tuple>>[] current = indexes;
+            if (position < current.length && current[position] != null) return current[position];
+            synchronized (this) {
+                current = indexes;
+                if (position < current.length && current[position] != null) return current[position];
+                Map<Object, Set<Tuple>> index = new HashMap<>();
+                for (Tuple t : rows) {
+                    if (position < t.arity()) index.computeIfAbsent(t.get(position), k -> new LinkedHashSet<>()).add(t);
+                }
+                Map<Object, Set<Tuple>>[] next = Arrays.copyOf(current, Math.max(current.length, position + 1));
+                next[position] = index;
+                indexes = next;
+                return index;
+            }
+        }
+    }
+}
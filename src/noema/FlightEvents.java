@@ -0,0 +1,73 @@
+package noema;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for Noema activity, shown under "Noema" next
+ * to GC and thread events. Every emitter checks {@code isEnabled()} before
+ * timing or filling in an event, so nothing is recorded or computed unless a
+ * recording has the event switched on; see {@code noema.jfc} for settings.
+ */
+public final class FlightEvents {
+
+    private FlightEvents() {}
+
+    @Name("noema.Compile")
+    @Label("Compile Phase")
+    @Description("Lexing, parsing or compiling a Noema program")
+    @Category("Noema")
+    @StackTrace(false)
+    public static final class Compile extends Event {
+        @Label("Phase")
+        public String phase;
+
+        @Label("Items")
+        @Description("Tokens lexed, or statements parsed or compiled")
+        public int items;
+    }
+
+    @Name("noema.Input")
+    @Label("Process Input")
+    @Description("A player input dispatched to a scene's triggers")
+    @Category("Noema")
+    @StackTrace(false)
+    public static final class Input extends Event {
+        @Label("Scene")
+        public String scene;
+
+        @Label("Trigger")
+        @Description("Index of the matched trigger in its scene, or -1 if none matched")
+        public int trigger;
+    }
+
+    @Name("noema.RuleFired")
+    @Label("Rule Fired")
+    @Description("A rule's actions run by evaluateRules")
+    @Category("Noema")
+    @StackTrace(false)
+    public static final class RuleFired extends Event {
+        @Label("Rule")
+        public String rule;
+    }
+
+    static Compile beginCompile() {
+        Compile event = new Compile();
+        if (event.isEnabled()) event.begin();
+        return event;
+    }
+
+    static void commitCompile(Compile event, String phase, int items) {
+        if (!event.isEnabled()) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.items = items;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typo-tolerant lookup of phrases through an inverted index of character
+ * n-grams (trigrams by default).
+ *
+ * Phrases and queries are folded with {@link KeywordAutomaton#fold(String)}
+ * and padded with a space at both ends, so word starts and ends count as
+ * grams too. Similarity is the Dice coefficient of the two gram sets,
+ * {@code 2 |A ∩ B| / (|A| + |B|)}, between 0 and 1.
+ *
+ * A search reads only the posting lists of the query's grams. The threshold
+ * bounds how many grams a match must share with the query, so candidates are
+ * drawn from the rarest lists alone; grams common to most phrases (such as
+ * {@code " th"}) then only count towards candidates already found.
+ */
+public final class FuzzyIndex {
+
+    public static final int DEFAULT_GRAM = 3;
+    private static final int[] NONE = new int[0];
+
+    private final int n;
+    private final String[] phrases;
+    private final int[] gramCounts;
+    private final Map<Long, int[]> postings = new HashMap<>();
+
+    public FuzzyIndex(List<String> phrases) {
+        this(phrases, DEFAULT_GRAM);
+    }
+
+    /**
+     * @param phrases Phrases to search; the i-th is reported as i
+     * @param n Gram length, from 1 to 4
+     */
+    public FuzzyIndex(List<String> phrases, int n) {
+        if (n < 1 || n > 4) throw new IllegalArgumentException("Gram length must be 1 to 4: " + n);
+        this.n = n;
+        this.phrases = phrases.toArray(new String[0]);
+        this.gramCounts = new int[this.phrases.length];
+
+        Map<Long, List<Integer>> lists = new HashMap<>();
+        for (int id = 0; id < this.phrases.length; id++) {
+            long[] grams = grams(this.phrases[id]);
+            gramCounts[id] = grams.length;
+            for (long gram : grams) lists.computeIfAbsent(gram, g -> new ArrayList<>()).add(id);
+        }
+        for (Map.Entry<Long, List<Integer>> e : lists.entrySet()) {
+            List<Integer> ids = e.getValue();
+            int[] posting = new int[ids.size()];
+            for (int i = 0; i < posting.length; i++) posting[i] = ids.get(i);
+            postings.put(e.getKey(), posting);
+        }
+    }
+
+    public int size() {
+        return phrases.length;
+    }
+
+    /**
+     * @param threshold Lowest similarity reported, above 0 and at most 1
+     * @return Phrases at least that similar to the input, most similar first;
+     *         equally similar phrases in index order
+     */
+    public List<Match> search(String input, double threshold) {
+        long[] query = grams(input);
+        List<Match> matches = new ArrayList<>();
+        if (query.length == 0 || threshold <= 0) return matches;
+
+        // A phrase of g grams reaching the threshold shares at least
+        // threshold * (q + g) / 2 of them, so g >= q * t / (2 - t) and it
+        // shares at least minShared grams with the query
+        int q = query.length;
+        double t = Math.min(threshold, 1);
+        int minShared = Math.max(1, (int) Math.ceil(q * t / (2 - t) - 1e-9));
+        int[][] lists = new int[q][];
+        for (int i = 0; i < q; i++) lists[i] = postings.getOrDefault(query[i], NONE);
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+
+        // Such a phrase is in at least one of the q - minShared + 1 rarest
+        // lists; the longer ones only add to the counts of known candidates
+        int[] shared = new int[phrases.length];
+        int[] touched = new int[phrases.length];
+        int touchedCount = 0;
+        int generating = q - minShared + 1;
+        for (int l = 0; l < q; l++) {
+            if (l < generating) {
+                for (int id : lists[l]) {
+                    if (shared[id]++ == 0) touched[touchedCount++] = id;
+                }
+            } else {
+                if (touchedCount == 0) break;
+                for (int id : lists[l]) {
+                    if (shared[id] > 0) shared[id]++;
+                }
+            }
+        }
+
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            double score = 2.0 * shared[id] / (q + gramCounts[id]);
+            if (score >= threshold) matches.add(new Match(id, phrases[id], score));
+        }
+        matches.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : Integer.compare(a.phrase, b.phrase));
+        return matches;
+    }
+
+    /**
+     * @return The distinct grams of a text, each packed into a long of up
+     *         to four 16-bit characters
+     */
+    private long[] grams(String text) {
+        String folded = ' ' + KeywordAutomaton.fold(text) + ' ';
+        if (folded.length() == 2) return new long[0];
+        int count = Math.max(1, folded.length() - n + 1);
+        long[] grams = new long[count];
+        for (int i = 0; i < count; i++) {
+            long gram = 0;
+            for (int j = i; j < Math.min(i + n, folded.length()); j++) gram = (gram << 16) | folded.charAt(j);
+            grams[i] = gram;
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) grams[distinct++] = grams[i];
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    /**
+     * A phrase similar to a query.
+     */
+    public static final class Match {
+        /** Index of the phrase */
+        public final int phrase;
+        public final String text;
+        /** Dice similarity, from 0 to 1 */
+        public final double score;
+
+        Match(int phrase, String text, double score) {
+            this.phrase = phrase;
+            this.text = text;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%.2f)", text, score);
+        }
+    }
+}
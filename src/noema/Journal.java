@@ -0,0 +1,555 @@
+package noema;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of a session's state changes, for recovery after a
+ * crash.
+ *
+ * A session with a journal ({@link Session#setJournal(Journal)}) logs every
+ * variable and NPC state it sets and every scene it enters. Records are
+ * gathered in memory and written to the log file in frames, each with its
+ * length and CRC-32; a frame is written when the buffer fills or on
+ * {@link #flush()}, which also forces the file to disk. With a flush
+ * interval, a background thread flushes periodically, so every change made
+ * in that window shares one write and one fsync (group commit). Changes
+ * since the last flush are lost in a crash; a torn frame at the end of the
+ * log is detected by its CRC and dropped.
+ *
+ * Names and string values are written once per log and referred to by
+ * number afterwards. Every {@code compactEvery} records, the session's
+ * whole state is written as a snapshot and a new, empty log is started, so
+ * replay costs the state's size plus the changes since the snapshot. Files
+ * carry a generation number: the snapshot of generation g is followed by
+ * the log of generation g, and logs of other generations are stale.
+ * {@link #replay(Session)} reads both through memory-mapped buffers.
+ *
+ * Directory layout: {@code snapshot} and {@code journal-<generation>.log}.
+ */
+public final class Journal implements AutoCloseable {
+
+    private static final int LOG_MAGIC = 0x4e4f454a; // NOEJ
+    private static final int SNAPSHOT_MAGIC = 0x4e4f4553; // NOES
+    private static final int VERSION = 1;
+    /** Magic, version and generation */
+    private static final int HEADER_BYTES = 16;
+    /** Payload length and CRC-32 */
+    private static final int FRAME_BYTES = 8;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    public static final long DEFAULT_COMPACT_EVERY = 1_000_000;
+
+    // Record tags
+    private static final byte STRING = 1;
+    private static final byte VARIABLE = 2;
+    private static final byte STATE = 3;
+    private static final byte SCENE = 4;
+
+    // Value tags
+    private static final byte NULL = 0;
+    private static final byte NUMBER = 1;
+    private static final byte TEXT = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+
+    private final Path directory;
+    private long generation;
+    private FileChannel channel;
+    private Records records;
+    private long recordCount;
+    private long compactEvery = DEFAULT_COMPACT_EVERY;
+    /** Frames written but not yet forced */
+    private volatile boolean unforced = false;
+    private volatile boolean closed = false;
+    /** Tells the background flusher to stop; it is never interrupted, since
+     * an interrupt during a write or fsync would close the channel for good */
+    private volatile boolean stopping = false;
+    private final Thread flusher;
+
+    /**
+     * Open a journal without a background flusher: changes reach the disk
+     * when the buffer fills and on {@link #flush()}.
+     */
+    public static Journal open(Path directory) throws IOException {
+        return new Journal(directory, 0);
+    }
+
+    /**
+     * Open or create the journal in a directory. A torn frame left at the
+     * end of the log by a crash is cut off.
+     * @param flushMillis Interval of the background flusher, or 0 for none
+     */
+    public Journal(Path directory, long flushMillis) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve("snapshot");
+        generation = Files.exists(snapshot) ? readSnapshot(snapshot, null) : 0;
+
+        List<String> strings = new ArrayList<>();
+        channel = FileChannel.open(log(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_BYTES) {
+            channel.truncate(0);
+            writeHeader(channel, LOG_MAGIC, generation);
+        } else {
+            long end = readLog(channel, null, strings);
+            if (end < channel.size()) channel.truncate(end);
+        }
+        channel.position(channel.size());
+        records = new Records(strings);
+        deleteStaleLogs();
+
+        if (flushMillis > 0) {
+            flusher = new Thread(() -> flushEvery(flushMillis), "noema-journal");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Take a snapshot once this many records have been logged since the last
+     * one.
+     */
+    public synchronized Journal setCompactEvery(long records) {
+        this.compactEvery = records;
+        return this;
+    }
+
+    /**
+     * @return Records logged since the last snapshot, including the ones
+     *         found in the log when it was opened
+     */
+    public synchronized long recordCount() {
+        return recordCount;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    // --- Logging ---
+    // Changes made after close, by a session that outlived its journal, are dropped
+
+    synchronized void variable(String name, Object value) {
+        if (closed) return;
+        records.variable(name, value);
+        appended();
+    }
+
+    synchronized void state(String npc, String key, Object value) {
+        if (closed) return;
+        records.state(npc, key, value);
+        appended();
+    }
+
+    synchronized void scene(String name) {
+        if (closed) return;
+        records.scene(name);
+        appended();
+    }
+
+    private void appended() {
+        recordCount++;
+        if (records.buffer.position() >= BUFFER_BYTES) {
+            try {
+                writeFrame();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    synchronized boolean compactionDue() {
+        return recordCount >= compactEvery;
+    }
+
+    /**
+     * Write buffered records as one frame, without forcing it to disk.
+     */
+    private void writeFrame() throws IOException {
+        ByteBuffer payload = records.buffer;
+        if (payload.position() == 0) return;
+        payload.flip();
+        writeFrame(channel, payload);
+        payload.clear();
+        unforced = true;
+    }
+
+    private static void writeFrame(FileChannel channel, ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(FRAME_BYTES).putInt(payload.remaining()).putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer[] frame = { header, payload };
+        while (payload.hasRemaining()) channel.write(frame);
+    }
+
+    /**
+     * Write buffered records and force the log to disk. The fsync runs
+     * outside the journal's lock, so sessions keep logging meanwhile.
+     */
+    public void flush() throws IOException {
+        FileChannel target;
+        synchronized (this) {
+            if (closed) return;
+            writeFrame();
+            if (!unforced) return;
+            unforced = false;
+            target = channel;
+        }
+        try {
+            target.force(false);
+        } catch (ClosedChannelException e) {
+            // Only a log replaced by a snapshot, which forced it first, or closed since is expected
+            if (e instanceof ClosedByInterruptException) throw e;
+            synchronized (this) {
+                if (target == channel && !closed) throw e;
+            }
+        }
+    }
+
+    private void flushEvery(long millis) {
+        while (!stopping) {
+            LockSupport.parkNanos(this, millis * 1_000_000L);
+            if (stopping) return;
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("Journal flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // --- Compaction ---
+
+    /**
+     * Write the session's whole state as a snapshot and start a new, empty
+     * log. The snapshot replaces the previous one atomically; a crash at any
+     * point leaves either the old snapshot and log or the new ones.
+     */
+    public synchronized void snapshot(Session session) throws IOException {
+        writeFrame();
+        channel.force(false);
+        unforced = false;
+
+        Records state = new Records(new ArrayList<>());
+        session.writeState(state);
+        long next = generation + 1;
+        Path temp = directory.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out, SNAPSHOT_MAGIC, next);
+            state.buffer.flip();
+            writeFrame(out, state.buffer);
+            out.force(true);
+        }
+        try {
+            Files.move(temp, directory.resolve("snapshot"), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, directory.resolve("snapshot"), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        channel.close();
+        Files.deleteIfExists(log(generation));
+        generation = next;
+        channel = FileChannel.open(log(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader(channel, LOG_MAGIC, generation);
+        records = new Records(new ArrayList<>());
+        recordCount = 0;
+    }
+
+    private void deleteStaleLogs() throws IOException {
+        String current = log(generation).getFileName().toString();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : logs) {
+                if (!file.getFileName().toString().equals(current)) Files.delete(file);
+            }
+        }
+    }
+
+    private Path log(long generation) {
+        return directory.resolve("journal-" + generation + ".log");
+    }
+
+    // --- Replay ---
+
+    /**
+     * Restore a session from the snapshot and the log. The session should be
+     * fresh and not yet logging to this journal; replayed changes are not
+     * logged again.
+     * @return Number of records applied
+     */
+    public synchronized long replay(Session session) throws IOException {
+        writeFrame();
+        Journal attached = session.getJournal();
+        session.setJournal(null);
+        try {
+            Replay replay = new Replay(session);
+            Path snapshot = directory.resolve("snapshot");
+            if (Files.exists(snapshot)) readSnapshot(snapshot, replay);
+            readLog(channel, replay, new ArrayList<>());
+            return replay.count;
+        } finally {
+            session.setJournal(attached);
+        }
+    }
+
+    /**
+     * @return The snapshot's generation, after applying it to replay if
+     *         there is one
+     */
+    private static long readSnapshot(Path file, Replay replay) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            long generation = readHeader(bytes, SNAPSHOT_MAGIC, file);
+            ByteBuffer payload = readFrame(bytes);
+            if (payload == null) throw new IOException("Corrupt snapshot: " + file);
+            decode(payload, replay, new ArrayList<>());
+            return generation;
+        }
+    }
+
+    /**
+     * Decode the frames of a log, stopping at the first torn one.
+     * @return Offset just past the last good frame
+     */
+    private long readLog(FileChannel log, Replay replay, List<String> strings) throws IOException {
+        long size = log.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Journal log over 2 GB; compact more often");
+        MappedByteBuffer bytes = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (readHeader(bytes, LOG_MAGIC, log(generation)) != generation) {
+            throw new IOException("Journal log of another generation: " + log(generation));
+        }
+        ByteBuffer payload;
+        while ((payload = readFrame(bytes)) != null) {
+            long count = decode(payload, replay, strings);
+            if (replay == null) recordCount += count;
+        }
+        return bytes.position();
+    }
+
+    private static long readHeader(ByteBuffer bytes, int magic, Path file) throws IOException {
+        if (bytes.remaining() < HEADER_BYTES || bytes.getInt() != magic) throw new IOException("Not a journal file: " + file);
+        int version = bytes.getInt();
+        if (version != VERSION) throw new IOException("Unsupported journal version " + version + ": " + file);
+        return bytes.getLong();
+    }
+
+    private static void writeHeader(FileChannel channel, int magic, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(magic).putInt(VERSION).putLong(generation);
+        header.flip();
+        while (header.hasRemaining()) channel.write(header);
+    }
+
+    /**
+     * @return The next frame's payload, with bytes positioned after it, or
+     *         null if the frame is missing or torn
+     */
+    private static ByteBuffer readFrame(ByteBuffer bytes) {
+        if (bytes.remaining() < FRAME_BYTES) return null;
+        int start = bytes.position();
+        int length = bytes.getInt(start);
+        int checksum = bytes.getInt(start + 4);
+        if (length <= 0 || length > bytes.remaining() - FRAME_BYTES) return null;
+        ByteBuffer payload = bytes.duplicate();
+        payload.position(start + FRAME_BYTES).limit(start + FRAME_BYTES + length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) return null;
+        bytes.position(start + FRAME_BYTES + length);
+        return payload;
+    }
+
+    /**
+     * Decode a frame's records, applying them to replay if not null.
+     * @return Number of state records in the frame
+     */
+    private static long decode(ByteBuffer in, Replay replay, List<String> strings) {
+        long count = 0;
+        while (in.hasRemaining()) {
+            byte tag = in.get();
+            switch (tag) {
+                case STRING: {
+                    byte[] utf8 = new byte[in.getInt()];
+                    in.get(utf8);
+                    strings.add(new String(utf8, StandardCharsets.UTF_8));
+                    break;
+                }
+                case VARIABLE: {
+                    String name = strings.get(in.getInt());
+                    Object value = value(in, strings);
+                    if (replay != null) replay.session.setVariable(name, value);
+                    count++;
+                    break;
+                }
+                case STATE: {
+                    String npc = strings.get(in.getInt());
+                    String key = strings.get(in.getInt());
+                    Object value = value(in, strings);
+                    if (replay != null) replay.session.setNPCState(npc, key, value);
+                    count++;
+                    break;
+                }
+                case SCENE: {
+                    String name = strings.get(in.getInt());
+                    if (replay != null) replay.session.setScene(name);
+                    count++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown journal record " + tag);
+            }
+        }
+        if (replay != null) replay.count += count;
+        return count;
+    }
+
+    private static Object value(ByteBuffer in, List<String> strings) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL: return null;
+            case NUMBER: return in.getDouble();
+            case TEXT: return strings.get(in.getInt());
+            case TRUE: return Boolean.TRUE;
+            case FALSE: return Boolean.FALSE;
+            default: throw new IllegalStateException("Unknown journal value " + tag);
+        }
+    }
+
+    private static final class Replay {
+        final Session session;
+        long count = 0;
+
+        Replay(Session session) {
+            this.session = session;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            stopping = true;
+            LockSupport.unpark(flusher);
+            boolean interrupted = false;
+            while (flusher.isAlive()) {
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (this) {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Close the journal and delete its files, for a session that is gone
+     * for good.
+     */
+    public void delete() throws IOException {
+        close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Encoder of state records into a growable buffer. Each string is
+     * written once, as a STRING record, and then referred to by its number.
+     * Numbers are stored as doubles; values other than numbers, strings and
+     * booleans are stored as their string form.
+     */
+    static final class Records {
+        private final Map<String, Integer> ids = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+        /**
+         * @param strings Strings already written to the log, in order
+         */
+        Records(List<String> strings) {
+            for (String s : strings) ids.put(s, ids.size());
+        }
+
+        void variable(String name, Object value) {
+            int id = string(name);
+            int text = valueString(value);
+            ensure(1 + 4 + 9);
+            buffer.put(VARIABLE).putInt(id);
+            value(value, text);
+        }
+
+        void state(String npc, String key, Object value) {
+            int npcId = string(npc);
+            int keyId = string(key);
+            int text = valueString(value);
+            ensure(1 + 8 + 9);
+            buffer.put(STATE).putInt(npcId).putInt(keyId);
+            value(value, text);
+        }
+
+        void scene(String name) {
+            int id = string(name);
+            ensure(1 + 4);
+            buffer.put(SCENE).putInt(id);
+        }
+
+        private int valueString(Object value) {
+            if (value == null || value instanceof Number || value instanceof Boolean) return -1;
+            return string(value.toString());
+        }
+
+        private void value(Object value, int text) {
+            if (value == null) buffer.put(NULL);
+            else if (value instanceof Number) buffer.put(NUMBER).putDouble(((Number) value).doubleValue());
+            else if (value instanceof Boolean) buffer.put((Boolean) value ? TRUE : FALSE);
+            else buffer.put(TEXT).putInt(text);
+        }
+
+        private int string(String s) {
+            Integer id = ids.get(s);
+            if (id != null) return id;
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            ensure(1 + 4 + utf8.length);
+            buffer.put(STRING).putInt(utf8.length).put(utf8);
+            id = ids.size();
+            ids.put(s, id);
+            return id;
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package noema;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton finding every keyword phrase that occurs in a text
+ * in one pass, whatever the number of phrases.
+ *
+ * Phrases match whole words: text and phrases are folded alike, with letters
+ * and digits lower-cased and every run of other characters (whitespace,
+ * punctuation) turned into one space, and both are padded with a space, so
+ * {@code "key"} matches {@code "Where's the KEY?"} but not {@code "monkey"}.
+ * Folding happens as the text is scanned; nothing is copied.
+ *
+ * Transitions are stored per state as sorted label and target arrays; each
+ * state links to the longest proper suffix that is also a prefix (failure
+ * link) and to the nearest such suffix that ends a phrase (output link).
+ */
+public final class KeywordAutomaton {
+
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] fail;
+    private final int[] outputLink;
+    /** Phrases ending exactly at each state */
+    private final int[][] outputs;
+    private final int phraseCount;
+
+    /**
+     * @param phrases Keyword phrases; the i-th is reported as i
+     */
+    public KeywordAutomaton(List<String> phrases) {
+        this.phraseCount = phrases.size();
+        List<Map<Character, Integer>> edges = new ArrayList<>();
+        List<int[]> ends = new ArrayList<>();
+        edges.add(new TreeMap<>());
+        ends.add(new int[0]);
+
+        for (int id = 0; id < phrases.size(); id++) {
+            String pattern = ' ' + fold(phrases.get(id)) + ' ';
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = edges.get(state).get(pattern.charAt(i));
+                if (next == null) {
+                    next = edges.size();
+                    edges.get(state).put(pattern.charAt(i), next);
+                    edges.add(new TreeMap<>());
+                    ends.add(new int[0]);
+                }
+                state = next;
+            }
+            int[] end = ends.get(state);
+            end = Arrays.copyOf(end, end.length + 1);
+            end[end.length - 1] = id;
+            ends.set(state, end);
+        }
+
+        int n = edges.size();
+        labels = new char[n][];
+        targets = new int[n][];
+        outputs = ends.toArray(new int[0][]);
+        for (int s = 0; s < n; s++) {
+            Map<Character, Integer> out = edges.get(s);
+            labels[s] = new char[out.size()];
+            targets[s] = new int[out.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> e : out.entrySet()) {
+                labels[s][i] = e.getKey();
+                targets[s][i++] = e.getValue();
+            }
+        }
+
+        // Breadth first, so a state's failure target is final before its children's
+        fail = new int[n];
+        outputLink = new int[n];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) queue.add(child);
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int i = 0; i < labels[s].length; i++) {
+                int child = targets[s][i];
+                int f = fail[s];
+                int next;
+                while ((next = edge(f, labels[s][i])) < 0 && f != 0) f = fail[f];
+                fail[child] = next >= 0 && next != child ? next : 0;
+                outputLink[child] = outputs[fail[child]].length > 0 ? fail[child] : outputLink[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    public int phraseCount() {
+        return phraseCount;
+    }
+
+    /**
+     * Scan a text once and mark every phrase occurring in it.
+     * @return Bit set of the phrases found, indexed by phrase id
+     */
+    public long[] scan(CharSequence text) {
+        long[] found = new long[(phraseCount + 63) >>> 6];
+        int state = step(0, ' ', found);
+        boolean space = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                state = step(state, Character.toLowerCase(c), found);
+                space = false;
+            } else if (!space) {
+                state = step(state, ' ', found);
+                space = true;
+            }
+        }
+        if (!space) step(state, ' ', found);
+        return found;
+    }
+
+    private int step(int state, char c, long[] found) {
+        int next;
+        while ((next = edge(state, c)) < 0 && state != 0) state = fail[state];
+        state = next < 0 ? 0 : next;
+        for (int s = outputs[state].length > 0 ? state : outputLink[state]; s > 0; s = outputLink[s]) {
+            for (int id : outputs[s]) found[id >>> 6] |= 1L << id;
+        }
+        return state;
+    }
+
+    private int edge(int state, char c) {
+        int i = Arrays.binarySearch(labels[state], c);
+        return i < 0 ? -1 : targets[state][i];
+    }
+
+    /**
+     * Fold a phrase the way texts are folded while scanning: lower-cased
+     * words separated by single spaces, without leading or trailing space.
+     */
+    public static String fold(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) sb.append(' ');
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Whether a folded phrase occurs in a text as whole words; the
+     *         single-phrase check used outside scene dispatch
+     */
+    public static boolean mentions(String text, String phrase) {
+        if (phrase.isEmpty()) return false;
+        return (' ' + fold(text) + ' ').contains(' ' + phrase + ' ');
+    }
+}
@@ -11,6 +11,7 @@ import java.util.Map;
  */
 public class Lexer {
     private final String source;
+    private final ErrorReporter reporter;
     private final List<Token> tokens = new ArrayList<>();
 
     private int start = 0;
@@ -20,6 +21,7 @@ public class Lexer {
     private static final Map<String, Token.Type> keywords = new HashMap<>();
 
     static {
+        keywords.put("import", Token.Type.IMPORT);
         keywords.put("fact", Token.Type.FACT);
         keywords.put("rule", Token.Type.RULE);
         keywords.put("scene", Token.Type.SCENE);
@@ -40,18 +42,26 @@ public class Lexer {
         keywords.put("days", Token.Type.DAY);
         keywords.put("player", Token.Type.PLAYER);
         keywords.put("says", Token.Type.SAYS);
+        keywords.put("mentions", Token.Type.MENTIONS);
     }
 
     public Lexer(String source) {
+        this(source, new ErrorReporter());
+    }
+
+    public Lexer(String source, ErrorReporter reporter) {
         this.source = source;
+        this.reporter = reporter;
     }
 
     public List<Token> scanTokens() {
+        FlightEvents.Compile event = FlightEvents.beginCompile();
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
         tokens.add(new Token(Token.Type.EOF, "", null, line));
+        FlightEvents.commitCompile(event, "lex", tokens.size());
         return tokens;
     }
 
@@ -78,8 +88,8 @@ public class Lexer {
                 }
                 break;
 
-            case '>': addToken(Token.Type.GREATER_THAN); break;
-            case '<': addToken(Token.Type.LESS_THAN); break;
+            case '>': addToken(match('=') ? Token.Type.GREATER_EQUAL : Token.Type.GREATER_THAN); break;
+            case '<': addToken(match('=') ? Token.Type.LESS_EQUAL : Token.Type.LESS_THAN); break;
 
             case '"': string(); break;
 
@@ -194,6 +204,6 @@ public class Lexer {
     }
 
     private void error(String message) {
-        System.err.println("[Line " + line + "] " + message);
+        reporter.error(line, message);
     }
 }
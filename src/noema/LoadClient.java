@@ -0,0 +1,116 @@
+package noema;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for {@link SessionServer}.
+ *
+ * Usage: java noema.LoadClient &lt;host&gt; &lt;port&gt; &lt;sessions&gt; &lt;inputs per session&gt; &lt;scene&gt; &lt;input&gt;
+ *
+ * Opens one connection per session, creates the session, enters the scene
+ * and sends the input repeatedly, then reports throughput and latency.
+ */
+public class LoadClient {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            System.err.println("Usage: java noema.LoadClient <host> <port> <sessions> <inputs per session> <scene> <input>");
+            System.exit(64);
+        }
+        Result result = run(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), args[4], args[5]);
+        System.out.println(result);
+    }
+
+    /**
+     * Run a load test and wait for every session to finish.
+     */
+    public static Result run(String host, int port, int sessions, int inputs, String scene, String input)
+            throws InterruptedException {
+        // -1 until a reply arrives, so unanswered inputs are left out of the latencies
+        long[] latencies = new long[sessions * inputs];
+        Arrays.fill(latencies, -1);
+        AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            int offset = s * inputs;
+            Thread t = new Thread(() -> {
+                int answered = 0;
+                try (Socket socket = new Socket(host, port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                    if (!request(in, out, "NEW").startsWith("OK")) throw new IOException("NEW failed");
+                    if (!request(in, out, "SCENE " + scene).startsWith("OK")) throw new IOException("SCENE failed");
+                    for (int i = 0; i < inputs; i++) {
+                        long t0 = System.nanoTime();
+                        String reply = request(in, out, "SAY " + input);
+                        latencies[offset + i] = System.nanoTime() - t0;
+                        answered++;
+                        if (!reply.startsWith("OK")) errors.incrementAndGet();
+                    }
+                    request(in, out, "QUIT");
+                } catch (IOException e) {
+                    errors.addAndGet(inputs - answered);
+                }
+            }, "noema-load-" + s);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) t.join();
+        long elapsed = System.nanoTime() - start;
+
+        return new Result(latencies, errors.get(), elapsed);
+    }
+
+    private static String request(BufferedReader in, PrintWriter out, String line) throws IOException {
+        out.println(line);
+        String reply = in.readLine();
+        if (reply == null) throw new IOException("Connection closed");
+        return reply;
+    }
+
+    /**
+     * Summary of a load test run. Throughput and latencies cover the inputs
+     * that got a reply; inputs never sent or never answered are errors.
+     */
+    public static final class Result {
+        /** Inputs that got a reply, including error replies */
+        public final int requests;
+        public final int errors;
+        public final double throughput;
+        public final double p50Micros;
+        public final double p99Micros;
+
+        Result(long[] latencies, int errors, long elapsedNanos) {
+            long[] sorted = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+            this.requests = sorted.length;
+            this.errors = errors;
+            this.throughput = requests / (elapsedNanos / 1e9);
+            this.p50Micros = percentile(sorted, 0.50) / 1e3;
+            this.p99Micros = percentile(sorted, 0.99) / 1e3;
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d errors, %.0f req/s, p50 %.1f us, p99 %.1f us",
+                    requests, errors, throughput, p50Micros, p99Micros);
+        }
+    }
+}
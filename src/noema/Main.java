@@ -2,49 +2,123 @@ package noema;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.time.Duration;
 
 public class Main {
     public static void main(String[] args) {
-        String filename = args.length > 0 ? args[0] : "examples/Example.noema";
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("compile")) {
+            compile(args);
+            return;
+        }
+
+        // Usage: [--tokens] [file]; --tokens prints the root file's tokens before running
+        boolean tokens = args.length > 0 && args[0].equals("--tokens");
+        int first = tokens ? 1 : 0;
+        String filename = args.length > first ? args[first] : "examples/Example.noema";
 
         try {
-            System.out.println("📄 Reading file: " + filename);
-            String source = Files.readString(Paths.get(filename));
-
-            // Lexical analysis
-            System.out.println("\n🔍 Starting lexical analysis...");
-            Lexer lexer = new Lexer(source);
-            List<Token> tokens = lexer.scanTokens();
-            for (Token token : tokens) {
-                System.out.println(token);
+            if (tokens && !filename.endsWith(".noemac")) {
+                System.out.println("🔍 Tokens of " + filename + ":");
+                for (Token token : new Lexer(Files.readString(Paths.get(filename))).scanTokens()) {
+                    System.out.println(token);
+                }
             }
-
-            // Parsing
-            System.out.println("\n🧠 Parsing...");
-            Parser parser = new Parser(tokens);
-            AST.Program program = parser.parse();
-
-            // Interpretation
-            System.out.println("\n🚀 Interpreting...");
-            Interpreter interpreter = new Interpreter();
-            interpreter.interpret(program);
-
-            // Rule evaluation
-            interpreter.evaluateRules();
-
-            // Output result
-            System.out.println("\n✅ Execution complete.");
-            System.out.println("📦 Global Variables:");
-            interpreter.getVariableNames().forEach(var ->
-                System.out.println("  " + var + " = " + interpreter.getVariable(var))
-            );
-
+            run(filename);
         } catch (IOException e) {
             System.err.println("❌ Error reading file: " + e.getMessage());
         } catch (Exception e) {
             System.err.println("❌ Runtime error: " + e.getMessage());
         }
     }
+
+    /**
+     * Usage: serve &lt;file&gt; [port] [max connections] [timeout seconds] [journal directory]
+     */
+    private static void serve(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java noema.Main serve <file> [port] [max connections] [timeout seconds] [journal directory]");
+            return;
+        }
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 7070;
+        int maxConnections = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        Duration timeout = Duration.ofSeconds(args.length > 4 ? Long.parseLong(args[4]) : 300);
+        Path journals = args.length > 5 ? Paths.get(args[5]) : null;
+
+        try {
+            if (args[1].endsWith(".noemac")) {
+                SessionServer server = new SessionServer(loadProgram(args[1]), port, maxConnections, timeout)
+                        .setJournalDirectory(journals).start();
+                System.out.println("🌐 Serving " + args[1] + " on port " + server.getPort());
+            } else {
+                // Source files are watched and reloaded into the running server
+                ProgramWatcher watcher = new ProgramWatcher(loadProject(args[1]));
+                SessionServer server = new SessionServer(watcher.program(), port, maxConnections, timeout)
+                        .setJournalDirectory(journals).start();
+                watcher.onReload(reload -> {
+                    server.setProgram(reload.program);
+                    System.out.println("🔄 Reloaded " + reload);
+                }).start();
+                System.out.println("🌐 Serving " + args[1] + " on port " + server.getPort() + ", reloading on change");
+            }
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            System.err.println("❌ Error starting server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Usage: compile &lt;file&gt; [output]; the output defaults to the source name with a .noemac extension.
+     */
+    private static void compile(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: java noema.Main compile <file> [output]");
+            return;
+        }
+        String output = args.length > 2 ? args[2] : args[1].replaceFirst("\\.noema$", "") + ".noemac";
+        try {
+            BinaryProgram.write(loadProgram(args[1]), Paths.get(output));
+            System.out.println("📦 Wrote " + output);
+        } catch (IOException e) {
+            System.err.println("❌ Error compiling: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load a source file with its imports, or a precompiled .noemac file, and run its rules once.
+     */
+    private static void run(String filename) throws IOException {
+        System.out.println("📄 Loading " + filename);
+        Session session = loadProgram(filename).newSession();
+        session.evaluateRules();
+
+        System.out.println("\n✅ Execution complete.");
+        System.out.println("📦 Global Variables:");
+        session.getVariableNames().forEach(var ->
+            System.out.println("  " + var + " = " + session.getVariable(var))
+        );
+    }
+
+    /**
+     * Load a program from source with its imports, or from a precompiled .noemac file without lexing or parsing.
+     */
+    static CompiledProgram loadProgram(String filename) throws IOException {
+        if (filename.endsWith(".noemac")) return BinaryProgram.load(Paths.get(filename));
+        return loadProject(filename).program;
+    }
+
+    /**
+     * Load a source file and its imports, keeping compiled modules in a .noema-cache directory next to it.
+     */
+    static Project.Result loadProject(String filename) throws IOException {
+        Path root = Paths.get(filename).toAbsolutePath();
+        return new Project(root.resolveSibling(".noema-cache")).load(root);
+    }
 }
@@ -0,0 +1,329 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime metrics per scene, per trigger and per rule.
+ *
+ * Attach a registry to sessions with {@link Session#setMetrics(Metrics)};
+ * sessions without one only pay a null check. Counters are {@link LongAdder}s
+ * and latencies go into log-linear {@link Histogram}s, so any number of
+ * sessions can record into one registry from different threads without
+ * locks. Entries are keyed by scene and rule name and survive program
+ * reloads; a scene whose trigger count changes starts over. Read the
+ * numbers with {@link #snapshot()}.
+ */
+public final class Metrics {
+
+    private final Map<String, SceneMetrics> scenes = new ConcurrentHashMap<>();
+    private final Map<String, RuleMetrics> rules = new ConcurrentHashMap<>();
+    private final LongAdder rulePasses = new LongAdder();
+    private final Histogram rulePassLatency = new Histogram();
+
+    SceneMetrics scene(String name, int triggers) {
+        SceneMetrics scene = scenes.get(name);
+        if (scene == null || scene.triggers.length() != triggers) {
+            scene = scenes.compute(name, (k, old) ->
+                    old != null && old.triggers.length() == triggers ? old : new SceneMetrics(name, triggers));
+        }
+        return scene;
+    }
+
+    RuleMetrics rule(String name) {
+        return rules.computeIfAbsent(name, RuleMetrics::new);
+    }
+
+    void rulePass(long nanos) {
+        rulePasses.increment();
+        rulePassLatency.record(nanos);
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        scenes.clear();
+        rules.clear();
+        rulePasses.reset();
+        rulePassLatency.reset();
+    }
+
+    /**
+     * @return A copy of the current numbers. Counters recorded while the
+     *         snapshot is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        List<SceneStats> sceneStats = new ArrayList<>();
+        for (SceneMetrics scene : scenes.values()) {
+            List<TriggerStats> triggers = new ArrayList<>();
+            for (int i = 0; i < scene.triggers.length(); i++) {
+                TriggerMetrics trigger = scene.triggers.get(i);
+                if (trigger != null) {
+                    triggers.add(new TriggerStats(i, trigger.matches.sum(), trigger.latency.snapshot()));
+                }
+            }
+            sceneStats.add(new SceneStats(scene.name, scene.inputs.sum(), scene.matches.sum(),
+                    scene.misses.sum(), scene.latency.snapshot(), triggers));
+        }
+        List<RuleStats> ruleStats = new ArrayList<>();
+        for (RuleMetrics rule : rules.values()) {
+            ruleStats.add(new RuleStats(rule.name, rule.fires.sum(), rule.latency.snapshot()));
+        }
+        sceneStats.sort((a, b) -> a.name.compareTo(b.name));
+        ruleStats.sort((a, b) -> a.name.compareTo(b.name));
+        return new Snapshot(sceneStats, ruleStats, rulePasses.sum(), rulePassLatency.snapshot());
+    }
+
+    // --- Recording ---
+
+    static final class SceneMetrics {
+        final String name;
+        final LongAdder inputs = new LongAdder();
+        final LongAdder matches = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final Histogram latency = new Histogram();
+        final AtomicReferenceArray<TriggerMetrics> triggers;
+
+        SceneMetrics(String name, int triggers) {
+            this.name = name;
+            this.triggers = new AtomicReferenceArray<>(triggers);
+        }
+
+        void miss(long nanos) {
+            inputs.increment();
+            misses.increment();
+            latency.record(nanos);
+        }
+
+        void match(int trigger, long nanos) {
+            inputs.increment();
+            matches.increment();
+            latency.record(nanos);
+            TriggerMetrics t = triggers.get(trigger);
+            if (t == null) {
+                triggers.compareAndSet(trigger, null, new TriggerMetrics());
+                t = triggers.get(trigger);
+            }
+            t.matches.increment();
+            t.latency.record(nanos);
+        }
+    }
+
+    static final class TriggerMetrics {
+        final LongAdder matches = new LongAdder();
+        final Histogram latency = new Histogram();
+    }
+
+    static final class RuleMetrics {
+        final String name;
+        final LongAdder fires = new LongAdder();
+        final Histogram latency = new Histogram();
+
+        RuleMetrics(String name) {
+            this.name = name;
+        }
+
+        void fire(long nanos) {
+            fires.increment();
+            latency.record(nanos);
+        }
+    }
+
+    /**
+     * Lock-free latency histogram in the style of HdrHistogram: values up to
+     * below 16 ns are counted exactly; above that, each power of two is split into
+     * 8 linear sub-buckets, so a recorded value is off by at most 12.5%.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int EXACT = 2 * SUB_BUCKETS;
+        private static final int BUCKETS = EXACT + (Long.SIZE - SUB_BITS - 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+            sum.reset();
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+            return new HistogramSnapshot(copy, sum.sum());
+        }
+
+        static int bucket(long value) {
+            if (value < EXACT) return (int) value;
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return EXACT + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return The largest value that falls into a bucket
+         */
+        static long upperBound(int bucket) {
+            if (bucket < EXACT) return bucket;
+            int exponent = (bucket - EXACT) / SUB_BUCKETS + SUB_BITS + 1;
+            long sub = (bucket - EXACT) % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BITS);
+            long lowest = (1L << exponent) + sub * width;
+            return lowest + (width - 1);
+        }
+    }
+
+    // --- Snapshots ---
+
+    public static final class HistogramSnapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        HistogramSnapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) total += c;
+            this.count = total;
+            this.sum = sum;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return An upper bound for the value at the given percentile, or 0 if empty
+         */
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Histogram.upperBound(i);
+            }
+            return Histogram.upperBound(counts.length - 1);
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) return Histogram.upperBound(i);
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.0fns p50=%dns p99=%dns max=%dns",
+                    count, mean(), percentile(50), percentile(99), max());
+        }
+    }
+
+    public static final class Snapshot {
+        public final List<SceneStats> scenes;
+        public final List<RuleStats> rules;
+        public final long rulePasses;
+        public final HistogramSnapshot rulePassLatency;
+
+        Snapshot(List<SceneStats> scenes, List<RuleStats> rules, long rulePasses, HistogramSnapshot rulePassLatency) {
+            this.scenes = Collections.unmodifiableList(scenes);
+            this.rules = Collections.unmodifiableList(rules);
+            this.rulePasses = rulePasses;
+            this.rulePassLatency = rulePassLatency;
+        }
+
+        public SceneStats scene(String name) {
+            for (SceneStats s : scenes) if (s.name.equals(name)) return s;
+            return null;
+        }
+
+        public RuleStats rule(String name) {
+            for (RuleStats r : rules) if (r.name.equals(name)) return r;
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (SceneStats s : scenes) {
+                out.append("scene ").append(s.name).append(": inputs=").append(s.inputs)
+                        .append(" matches=").append(s.matches).append(" misses=").append(s.misses)
+                        .append(' ').append(s.latency).append('\n');
+                for (TriggerStats t : s.triggers) {
+                    out.append("  trigger ").append(t.index).append(": matches=").append(t.matches)
+                            .append(' ').append(t.latency).append('\n');
+                }
+            }
+            out.append("rule passes: ").append(rulePasses).append(' ').append(rulePassLatency).append('\n');
+            for (RuleStats r : rules) {
+                out.append("rule ").append(r.name).append(": fires=").append(r.fires)
+                        .append(' ').append(r.latency).append('\n');
+            }
+            return out.toString();
+        }
+    }
+
+    public static final class SceneStats {
+        public final String name;
+        public final long inputs;
+        public final long matches;
+        public final long misses;
+        public final HistogramSnapshot latency;
+        public final List<TriggerStats> triggers;
+
+        SceneStats(String name, long inputs, long matches, long misses,
+                   HistogramSnapshot latency, List<TriggerStats> triggers) {
+            this.name = name;
+            this.inputs = inputs;
+            this.matches = matches;
+            this.misses = misses;
+            this.latency = latency;
+            this.triggers = Collections.unmodifiableList(triggers);
+        }
+    }
+
+    public static final class TriggerStats {
+        /** Position of the trigger in its scene, from 0 */
+        public final int index;
+        public final long matches;
+        public final HistogramSnapshot latency;
+
+        TriggerStats(int index, long matches, HistogramSnapshot latency) {
+            this.index = index;
+            this.matches = matches;
+            this.latency = latency;
+        }
+    }
+
+    public static final class RuleStats {
+        public final String name;
+        public final long fires;
+        public final HistogramSnapshot latency;
+
+        RuleStats(String name, long fires, HistogramSnapshot latency) {
+            this.name = name;
+            this.fires = fires;
+            this.latency = latency;
+        }
+    }
+}
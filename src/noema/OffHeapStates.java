@@ -0,0 +1,353 @@
+package noema;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NPC state kept outside the Java heap, for worlds with millions of NPCs.
+ *
+ * Each NPC gets a dense id and a fixed-width record in direct
+ * {@link ByteBuffer} pages: a reference to its name, then one 8-byte cell
+ * per attribute key ({@code mood}, {@code trust}, ...). Names are stored as
+ * chars in off-heap pages too, and are found through an open-addressing
+ * table of ids, so an NPC costs no heap objects at all; only the attribute
+ * keys and the distinct non-numeric values live on the heap. When a new key
+ * doesn't fit the records, every record is widened once.
+ *
+ * A cell holds a number as its complemented IEEE bits, or a small tag in
+ * the range no complemented double uses (the negative NaNs other than the
+ * canonical one): 0 for unset, so fresh pages read as unset, booleans, and
+ * the id of any other value in the value table. Every NaN is stored as the
+ * canonical one, so none lands in the tag range. Unset cells fall through
+ * to the program's initial state, exactly as in the heap representation.
+ *
+ * The value table only grows as values are set: a value no cell holds any
+ * more stays on the heap until {@link #compact()} drops it. Scripts that
+ * keep producing new strings should compact now and then.
+ *
+ * Reads and writes of existing NPCs and keys touch only their cell, and
+ * the value table takes new values under a lock while lookups of known ones
+ * stay lock-free, so rules writing disjoint state may do so concurrently,
+ * as {@link Session#evaluateRules(java.util.concurrent.ForkJoinPool)} does.
+ * Adding NPCs or keys must not race with anything.
+ */
+public final class OffHeapStates {
+
+    private static final int RECORD_PAGE_SHIFT = 14;
+    private static final int RECORDS_PER_PAGE = 1 << RECORD_PAGE_SHIFT;
+    private static final int NAME_PAGE_CHARS = 1 << 20;
+    private static final int NAME_BYTES = 8;
+
+    private static final long UNSET = 0;
+    private static final long TRUE = 1;
+    private static final long FALSE = 2;
+    private static final long OBJECT = 1L << 48;
+    /** The encoding of negative infinity, the one double in the tag range */
+    private static final long NEGATIVE_INFINITY = ~Double.doubleToLongBits(Double.NEGATIVE_INFINITY);
+
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final List<String> keys = new ArrayList<>();
+    private int capacity;
+    private int width;
+    private ByteBuffer[] pages = new ByteBuffer[0];
+    private int count = 0;
+
+    private ByteBuffer[] namePages = new ByteBuffer[0];
+    private int nameTop = NAME_PAGE_CHARS;
+    /** NPC id + 1 by hash, 0 for free */
+    private int[] table = new int[1024];
+    private int[] hashes = new int[1024];
+
+    private final Map<Object, Integer> valueIds = new ConcurrentHashMap<>();
+    /** Values by id; replaced when it grows, and published after each new value */
+    private volatile Object[] values = new Object[16];
+    private int valueCount = 0;
+
+    public OffHeapStates() {
+        this(4);
+    }
+
+    /**
+     * @param keys Attribute keys each record has room for before widening
+     */
+    public OffHeapStates(int keys) {
+        this.capacity = Math.max(1, keys);
+        this.width = NAME_BYTES + 8 * capacity;
+    }
+
+    public int npcCount() {
+        return count;
+    }
+
+    /**
+     * @return Bytes allocated outside the heap
+     */
+    public long offHeapBytes() {
+        return (long) pages.length * RECORDS_PER_PAGE * width + (long) namePages.length * NAME_PAGE_CHARS * 2;
+    }
+
+    /**
+     * @return Number of distinct non-numeric values in the value table,
+     *         including those no cell holds any more
+     */
+    public int valueCount() {
+        return valueCount;
+    }
+
+    public Object get(String npc, String key) {
+        int id = npc(npc, false);
+        int column = column(key, false);
+        return id < 0 || column < 0 ? null : get(id, column);
+    }
+
+    /**
+     * Set a value, or unset it with null.
+     */
+    public void set(String npc, String key, Object value) {
+        if (value == null && (npc(npc, false) < 0 || column(key, false) < 0)) return;
+        int column = column(key, true);
+        set(npc(npc, true), column, value);
+    }
+
+    Object get(int npc, int column) {
+        return decode(page(npc).getLong(offset(npc) + NAME_BYTES + 8 * column));
+    }
+
+    void set(int npc, int column, Object value) {
+        page(npc).putLong(offset(npc) + NAME_BYTES + 8 * column, encode(value));
+    }
+
+    /**
+     * Call a visitor with every value set, NPC by NPC in the order they were
+     * added.
+     */
+    public void forEach(Visitor visitor) {
+        for (int npc = 0; npc < count; npc++) {
+            String name = null;
+            ByteBuffer page = page(npc);
+            int offset = offset(npc) + NAME_BYTES;
+            for (int column = 0; column < keys.size(); column++) {
+                long cell = page.getLong(offset + 8 * column);
+                if (cell == UNSET) continue;
+                if (name == null) name = name(npc);
+                visitor.visit(name, keys.get(column), decode(cell));
+            }
+        }
+    }
+
+    public interface Visitor {
+        void visit(String npc, String key, Object value);
+    }
+
+    // --- Cells ---
+
+    private long encode(Object value) {
+        if (value == null) return UNSET;
+        if (value instanceof Double) {
+            double number = (Double) value;
+            return ~Double.doubleToLongBits(Double.isNaN(number) ? Double.NaN : number);
+        }
+        if (value instanceof Boolean) return (Boolean) value ? TRUE : FALSE;
+        Integer id = valueIds.get(value);
+        return OBJECT | (id != null ? id : intern(value));
+    }
+
+    /**
+     * Add a value to the value table, unless another thread just did.
+     * @return Its id
+     */
+    private synchronized int intern(Object value) {
+        Integer known = valueIds.get(value);
+        if (known != null) return known;
+        int id = valueCount;
+        Object[] table = values;
+        if (id == table.length) table = Arrays.copyOf(table, id * 2);
+        table[id] = value;
+        values = table;
+        valueCount = id + 1;
+        valueIds.put(value, id);
+        return id;
+    }
+
+    /**
+     * Drop the values no cell holds from the value table and renumber the
+     * rest. Must not race with anything.
+     * @return Number of values dropped
+     */
+    public synchronized int compact() {
+        int[] ids = new int[valueCount];
+        Arrays.fill(ids, -1);
+        Object[] kept = new Object[values.length];
+        int live = 0;
+        for (int npc = 0; npc < count; npc++) {
+            ByteBuffer page = page(npc);
+            int offset = offset(npc) + NAME_BYTES;
+            for (int column = 0; column < keys.size(); column++) {
+                long cell = page.getLong(offset + 8 * column);
+                if ((cell >>> 52) != 0 || cell < OBJECT || cell == NEGATIVE_INFINITY) continue;
+                int id = (int) (cell & 0xffffffffL);
+                if (ids[id] < 0) {
+                    ids[id] = live;
+                    kept[live++] = values[id];
+                }
+                page.putLong(offset + 8 * column, OBJECT | ids[id]);
+            }
+        }
+        int dropped = valueCount - live;
+        valueIds.clear();
+        for (int id = 0; id < live; id++) valueIds.put(kept[id], id);
+        values = Arrays.copyOf(kept, Math.max(16, live * 2));
+        valueCount = live;
+        return dropped;
+    }
+
+    private Object decode(long cell) {
+        if ((cell >>> 52) != 0 || cell == NEGATIVE_INFINITY) return Double.longBitsToDouble(~cell);
+        if (cell == UNSET) return null;
+        if (cell == TRUE) return Boolean.TRUE;
+        if (cell == FALSE) return Boolean.FALSE;
+        return values[(int) (cell & 0xffffffffL)];
+    }
+
+    // --- Keys ---
+
+    /**
+     * @return The key's column, or -1 if it has none and create is false
+     */
+    int column(String key, boolean create) {
+        Integer column = columns.get(key);
+        if (column != null) return column;
+        if (!create) return -1;
+        if (keys.size() == capacity) widen(capacity * 2);
+        columns.put(key, keys.size());
+        keys.add(key);
+        return keys.size() - 1;
+    }
+
+    private void widen(int newCapacity) {
+        int newWidth = NAME_BYTES + 8 * newCapacity;
+        ByteBuffer[] widened = new ByteBuffer[pages.length];
+        for (int p = 0; p < pages.length; p++) {
+            widened[p] = allocate(RECORDS_PER_PAGE * newWidth);
+            int records = Math.min(RECORDS_PER_PAGE, count - (p << RECORD_PAGE_SHIFT));
+            for (int r = 0; r < records; r++) {
+                ByteBuffer record = pages[p].duplicate();
+                record.position(r * width).limit((r + 1) * width);
+                widened[p].position(r * newWidth);
+                widened[p].put(record);
+            }
+            widened[p].clear();
+        }
+        pages = widened;
+        capacity = newCapacity;
+        width = newWidth;
+    }
+
+    // --- NPCs ---
+
+    /**
+     * @return The NPC's id, or -1 if it has none and create is false
+     */
+    int npc(String name, boolean create) {
+        int hash = mix(name.hashCode());
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0) break;
+            if (hashes[i] == hash && nameEquals(entry - 1, name)) return entry - 1;
+        }
+        if (!create) return -1;
+
+        int id = count++;
+        if ((id >>> RECORD_PAGE_SHIFT) == pages.length) {
+            pages = Arrays.copyOf(pages, pages.length + 1);
+            pages[pages.length - 1] = allocate(RECORDS_PER_PAGE * width);
+        }
+        page(id).putLong(offset(id), storeName(name));
+        if (count * 2 > table.length) rehash(table.length * 2);
+        insert(id, hash);
+        return id;
+    }
+
+    private void insert(int id, int hash) {
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) i = (i + 1) & mask;
+        table[i] = id + 1;
+        hashes[i] = hash;
+    }
+
+    private void rehash(int size) {
+        int[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new int[size];
+        hashes = new int[size];
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != 0) insert(oldTable[i] - 1, oldHashes[i]);
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Append a name, as its length then its chars, to the name pages.
+     * @return Its page and char offset
+     */
+    private long storeName(String name) {
+        if (name.length() > 0xffff) throw new IllegalArgumentException("NPC name too long: " + name.length() + " chars");
+        if (nameTop + 1 + name.length() > NAME_PAGE_CHARS) {
+            namePages = Arrays.copyOf(namePages, namePages.length + 1);
+            namePages[namePages.length - 1] = allocate(NAME_PAGE_CHARS * 2);
+            nameTop = 0;
+        }
+        ByteBuffer page = namePages[namePages.length - 1];
+        int offset = nameTop;
+        page.putChar(offset * 2, (char) name.length());
+        for (int i = 0; i < name.length(); i++) page.putChar((offset + 1 + i) * 2, name.charAt(i));
+        nameTop += 1 + name.length();
+        return ((long) (namePages.length - 1) << 32) | offset;
+    }
+
+    private boolean nameEquals(int npc, String name) {
+        long ref = page(npc).getLong(offset(npc));
+        ByteBuffer page = namePages[(int) (ref >>> 32)];
+        int offset = (int) ref;
+        if (page.getChar(offset * 2) != name.length()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (page.getChar((offset + 1 + i) * 2) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    String name(int npc) {
+        long ref = page(npc).getLong(offset(npc));
+        ByteBuffer page = namePages[(int) (ref >>> 32)];
+        int offset = (int) ref;
+        char[] chars = new char[page.getChar(offset * 2)];
+        for (int i = 0; i < chars.length; i++) chars[i] = page.getChar((offset + 1 + i) * 2);
+        return new String(chars);
+    }
+
+    // --- Pages ---
+
+    private ByteBuffer page(int npc) {
+        return pages[npc >>> RECORD_PAGE_SHIFT];
+    }
+
+    private int offset(int npc) {
+        return (npc & (RECORDS_PER_PAGE - 1)) * width;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
@@ -9,21 +9,30 @@ import java.util.List;
 
 public class Parser {
     private final List<Token> tokens;
+    private final ErrorReporter reporter;
     private int current = 0;
 
     public Parser(List<Token> tokens) {
+        this(tokens, new ErrorReporter());
+    }
+
+    public Parser(List<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
     }
 
     public AST.Program parse() {
+        FlightEvents.Compile event = FlightEvents.beginCompile();
         AST.Program program = new AST.Program();
         while (!isAtEnd()) {
             program.addStatement(declaration());
         }
+        FlightEvents.commitCompile(event, "parse", program.statements.size());
         return program;
     }
 
     private AST.Node declaration() {
+        if (match(Token.Type.IMPORT)) return importDeclaration();
         if (match(Token.Type.FACT)) return factDeclaration();
         if (match(Token.Type.RULE)) return ruleDeclaration();
         if (match(Token.Type.SCENE)) return sceneDeclaration();
@@ -33,20 +42,66 @@ public class Parser {
         return null;
     }
 
-    private AST.Fact factDeclaration() {
+    private AST.Import importDeclaration() {
+        Token path = consume(Token.Type.STRING, "Expected file name after 'import'.");
+        return path == null ? null : new AST.Import((String) path.getLiteral());
+    }
+
+    private AST.Node factDeclaration() {
         String predicate = consume(Token.Type.IDENTIFIER, "Expected fact predicate.").getLexeme();
         consume(Token.Type.OPEN_PAREN, "Expected '(' after predicate.");
         List<AST.Expression> args = new ArrayList<>();
         if (!check(Token.Type.CLOSE_PAREN)) {
-            do { args.add(expression()); } while (match(Token.Type.COMMA));
+            do { args.add(argument()); } while (match(Token.Type.COMMA));
         }
         consume(Token.Type.CLOSE_PAREN, "Expected ')' after arguments.");
-        return new AST.Fact(predicate, args);
+        if (!match(Token.Type.IF)) return new AST.Fact(predicate, args);
+
+        Token start = previous();
+        List<AST.FunctionCall> body = goals();
+        // Every answer must be a fact, so each head variable needs a body goal to bind it
+        for (AST.Expression arg : args) {
+            if (arg != null && arg.value instanceof AST.LogicVariable && !binds(body, arg.value.toString())) {
+                error(start, "Variable " + arg.value + " in the head of '" + predicate + "' does not appear in its body.");
+            }
+        }
+        return new AST.Clause(predicate, args, body);
+    }
+
+    /**
+     * Parse a query: goals joined by {@code and}, such as
+     * {@code trusts("Jade", X) and knows(X, Y)}.
+     */
+    public List<AST.FunctionCall> parseQuery() {
+        List<AST.FunctionCall> goals = goals();
+        if (!isAtEnd()) error(peek(), "Expected end of query.");
+        return goals;
+    }
+
+    private List<AST.FunctionCall> goals() {
+        List<AST.FunctionCall> goals = new ArrayList<>();
+        do {
+            Token name = consume(Token.Type.IDENTIFIER, "Expected goal.");
+            if (name == null) break;
+            goals.add(call(name.getLexeme()));
+        } while (match(Token.Type.AND));
+        return goals;
+    }
+
+    private static boolean binds(List<AST.FunctionCall> goals, String variable) {
+        if (variable.equals("_")) return false;
+        for (AST.FunctionCall goal : goals) {
+            for (AST.Expression arg : goal.arguments) {
+                if (arg != null && arg.value instanceof AST.LogicVariable && arg.value.toString().equals(variable)) return true;
+            }
+        }
+        return false;
     }
 
     private AST.Rule ruleDeclaration() {
         String name = consume(Token.Type.IDENTIFIER, "Expected rule name.").getLexeme();
         consume(Token.Type.IF, "Expected 'if' after rule name.");
+        if (match(Token.Type.PLAYER) && !check(Token.Type.MENTIONS)) consume(Token.Type.SAYS, "Expected 'says'.");
         AST.Condition condition = parseCondition();
         consume(Token.Type.OPEN_BRACE, "Expected '{' before rule body.");
         List<AST.Action> actions = new ArrayList<>();
@@ -58,7 +113,7 @@ public class Parser {
     }
 
     private AST.Scene sceneDeclaration() {
-        String name = consume(Token.Type.STRING, "Expected scene name.").getLexeme();
+        String name = (String) consume(Token.Type.STRING, "Expected scene name.").getLiteral();
         consume(Token.Type.OPEN_BRACE, "Expected '{' before scene body.");
         List<AST.NPC> npcs = new ArrayList<>();
         List<AST.When> triggers = new ArrayList<>();
@@ -75,7 +130,7 @@ public class Parser {
     }
 
     private AST.NPC parseNPC() {
-        String name = consume(Token.Type.STRING, "Expected NPC name.").getLexeme();
+        String name = (String) consume(Token.Type.STRING, "Expected NPC name.").getLiteral();
         consume(Token.Type.FEELS, "Expected 'feels'.");
         AST.Expression mood = expression();
         return new AST.NPC(name, mood);
@@ -83,7 +138,7 @@ public class Parser {
 
     private AST.When parseTrigger() {
         consume(Token.Type.PLAYER, "Expected 'player'.");
-        consume(Token.Type.SAYS, "Expected 'says'.");
+        if (!check(Token.Type.MENTIONS)) consume(Token.Type.SAYS, "Expected 'says' or 'mentions'.");
         AST.Condition condition = parseCondition();
         consume(Token.Type.OPEN_BRACE, "Expected '{'.");
         List<AST.Action> actions = new ArrayList<>();
@@ -110,8 +165,13 @@ public class Parser {
     private AST.Action parseAction() {
         if (match(Token.Type.IDENTIFIER)) {
             Token name = previous();
+            if (check(Token.Type.OPEN_PAREN)) {
+                AST.FunctionCall target = call(name.getLexeme());
+                consume(Token.Type.EQUALS, "Expected '=' after assignment target.");
+                return new AST.Action("assignment", new Object[] { target, expression() });
+            }
             if (match(Token.Type.RESPONDS)) {
-                String text = consume(Token.Type.STRING, "Expected response.").getLexeme();
+                String text = (String) consume(Token.Type.STRING, "Expected response.").getLiteral();
                 return new AST.Action("response", new AST.Response(name.getLexeme(), text));
             } else if (match(Token.Type.EQUALS)) {
                 AST.Expression value = expression();
@@ -125,22 +185,53 @@ public class Parser {
 
     private AST.Expression expression() {
         AST.Expression left = simpleExpression();
-        if (match(Token.Type.EQUALS, Token.Type.NOT_EQUALS, Token.Type.GREATER_THAN, Token.Type.LESS_THAN)) {
+        if (match(Token.Type.EQUALS, Token.Type.NOT_EQUALS, Token.Type.GREATER_THAN, Token.Type.LESS_THAN,
+                Token.Type.GREATER_EQUAL, Token.Type.LESS_EQUAL)) {
             String op = previous().getLexeme();
             AST.Expression right = simpleExpression();
-            return new AST.Expression(left.value + " " + op + " " + right.value);
+            return new AST.Expression(new AST.Comparison(left, op, right));
         }
         return left;
     }
 
     private AST.Expression simpleExpression() {
+        if (match(Token.Type.MENTIONS)) {
+            Token phrase = consume(Token.Type.STRING, "Expected phrase after 'mentions'.");
+            return phrase == null ? null : new AST.Expression(new AST.Mention((String) phrase.getLiteral()));
+        }
         if (match(Token.Type.STRING, Token.Type.NUMBER)) return new AST.Expression(previous().getLiteral());
-        if (match(Token.Type.IDENTIFIER)) return new AST.Expression(previous().getLexeme());
+        if (match(Token.Type.IDENTIFIER)) {
+            String name = previous().getLexeme();
+            if (check(Token.Type.OPEN_PAREN)) return new AST.Expression(call(name));
+            return new AST.Expression(name);
+        }
         error(peek(), "Expected expression.");
         synchronize();
         return null;
     }
 
+    private AST.FunctionCall call(String name) {
+        consume(Token.Type.OPEN_PAREN, "Expected '(' after function name.");
+        List<AST.Expression> args = new ArrayList<>();
+        if (!check(Token.Type.CLOSE_PAREN)) {
+            do { args.add(argument()); } while (match(Token.Type.COMMA));
+        }
+        consume(Token.Type.CLOSE_PAREN, "Expected ')' after arguments.");
+        return new AST.FunctionCall(name, args);
+    }
+
+    /**
+     * An argument of a call or fact: a logic variable, or any simple
+     * expression.
+     */
+    private AST.Expression argument() {
+        if (check(Token.Type.IDENTIFIER) && AST.LogicVariable.isName(peek().getLexeme())
+                && tokens.get(current + 1).getType() != Token.Type.OPEN_PAREN) {
+            return new AST.Expression(new AST.LogicVariable(advance().getLexeme()));
+        }
+        return simpleExpression();
+    }
+
     private boolean match(Token.Type... types) {
         for (Token.Type type : types) {
             if (check(type)) {
@@ -178,8 +269,16 @@ public class Parser {
         return tokens.get(current - 1);
     }
 
+    /**
+     * @return Whether parsing reported a syntax error; the program then has
+     *         missing or partial declarations
+     */
+    public boolean hadError() {
+        return reporter.hadError();
+    }
+
     private void error(Token token, String message) {
-        System.err.println("[Line " + token.getLine() + "] Error: " + message);
+        reporter.error(token, message);
     }
 
     private void synchronize() {
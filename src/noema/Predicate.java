@@ -0,0 +1,284 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Compiled form of an {@link AST.Condition}.
+ * Built once by {@link ConditionCompiler}; evaluating a predicate performs
+ * no string splitting, number parsing of constants or allocation.
+ */
+public abstract class Predicate {
+
+    /**
+     * Read-only view of the world state a predicate is evaluated against,
+     * addressed by the slots of the program's {@link SymbolTable}.
+     */
+    public interface Context {
+        Object getVariable(int slot);
+
+        /**
+         * @return The NPC state in a slot, "neutral" if it was never set
+         */
+        Object getNPCState(int slot);
+
+        /**
+         * @return The engine answering queries over the program's facts and
+         *         clauses, or null if there is none
+         */
+        default QueryEngine getQueryEngine() {
+            return null;
+        }
+    }
+
+    public abstract boolean test(Context ctx, String input);
+
+    // --- Connectives ---
+
+    static final class And extends Predicate {
+        final Predicate left;
+        final Predicate right;
+
+        And(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            return left.test(ctx, input) && right.test(ctx, input);
+        }
+    }
+
+    static final class Or extends Predicate {
+        final Predicate left;
+        final Predicate right;
+
+        Or(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            return left.test(ctx, input) || right.test(ctx, input);
+        }
+    }
+
+    // --- Leaves ---
+
+    /**
+     * Matches the player's input against an operand, e.g. {@code player says "hello"}.
+     * Input is expected in {@link TriggerIndex#normalize(String)} form; constant
+     * utterances are normalized at compile time.
+     */
+    static final class Says extends Predicate {
+        final Operand utterance;
+
+        Says(Operand utterance) {
+            this.utterance = utterance;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            Object value = utterance.value(ctx);
+            if (utterance instanceof Constant || !(value instanceof String)) return Objects.equals(value, input);
+            return TriggerIndex.normalize((String) value).equals(input);
+        }
+    }
+
+    /**
+     * Looks for a keyword phrase in the player's input as whole words, e.g.
+     * {@code player mentions "the key"}. The phrase is stored folded by
+     * {@link KeywordAutomaton#fold(String)}; scenes match all their phrases
+     * at once through a {@link KeywordAutomaton} instead of testing this.
+     */
+    static final class Mentions extends Predicate {
+        final String phrase;
+
+        Mentions(String phrase) {
+            this.phrase = phrase;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            return KeywordAutomaton.mentions(input, phrase);
+        }
+    }
+
+    /**
+     * Holds if goals over the fact base have a solution, e.g.
+     * {@code trusts("Jade", X) and knows(X, "Kai")}. Variables are shared
+     * between the goals and bound to nothing outside them. Facts and clauses
+     * belong to the program, so the result only changes with the program.
+     */
+    static final class Query extends Predicate {
+        final List<AST.FunctionCall> goals;
+
+        Query(List<AST.FunctionCall> goals) {
+            this.goals = goals;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            QueryEngine engine = ctx.getQueryEngine();
+            return engine != null && engine.holds(this);
+        }
+    }
+
+    static final class Compare extends Predicate {
+        final Operand left;
+        final Operator operator;
+        final Operand right;
+
+        Compare(Operand left, Operator operator, Operand right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            switch (operator) {
+                case EQ: return valuesEqual(left.value(ctx), right.value(ctx));
+                case NE: return !valuesEqual(left.value(ctx), right.value(ctx));
+                case GT: return left.number(ctx) > right.number(ctx);
+                case LT: return left.number(ctx) < right.number(ctx);
+                case GE: return left.number(ctx) >= right.number(ctx);
+                case LE: return left.number(ctx) <= right.number(ctx);
+                default: return false;
+            }
+        }
+    }
+
+    enum Operator {
+        EQ, NE, GT, LT, GE, LE;
+
+        static Operator of(String lexeme) {
+            switch (lexeme) {
+                case "=":
+                case "==": return EQ;
+                case "!=": return NE;
+                case ">": return GT;
+                case "<": return LT;
+                case ">=": return GE;
+                case "<=": return LE;
+                default: return null;
+            }
+        }
+    }
+
+    static boolean valuesEqual(Object a, Object b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        if (a instanceof String && b instanceof String) return a.equals(b);
+        return a.toString().equals(b.toString());
+    }
+
+    // --- Operands ---
+
+    /**
+     * A value read while testing a predicate: a constant, a global variable
+     * or an NPC state lookup such as {@code mood("Jade")}.
+     */
+    abstract static class Operand {
+        abstract Object value(Context ctx);
+
+        /**
+         * @return the operand as a number, or NaN if it is missing or not numeric
+         */
+        double number(Context ctx) {
+            return toNumber(value(ctx));
+        }
+    }
+
+    static final class Constant extends Operand {
+        final Object value;
+        final double number;
+
+        Constant(Object value) {
+            this.value = value;
+            this.number = toNumber(value);
+        }
+
+        @Override Object value(Context ctx) { return value; }
+        @Override double number(Context ctx) { return number; }
+    }
+
+    static final class Variable extends Operand {
+        final String name;
+        final int slot;
+
+        Variable(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override Object value(Context ctx) { return ctx.getVariable(slot); }
+    }
+
+    static final class StateRead extends Operand {
+        final String npc;
+        final String key;
+        final int slot;
+
+        StateRead(String npc, String key, int slot) {
+            this.npc = npc;
+            this.key = key;
+            this.slot = slot;
+        }
+
+        @Override Object value(Context ctx) { return ctx.getNPCState(slot); }
+    }
+
+    /**
+     * @return The predicate compiled against another symbol table: the same
+     *         tree with variable and state slots looked up by name, interning
+     *         the ones the table lacks
+     */
+    static Predicate rebind(Predicate p, SymbolTable symbols) {
+        if (p instanceof And) return new And(rebind(((And) p).left, symbols), rebind(((And) p).right, symbols));
+        if (p instanceof Or) return new Or(rebind(((Or) p).left, symbols), rebind(((Or) p).right, symbols));
+        if (p instanceof Says) return new Says(rebind(((Says) p).utterance, symbols));
+        if (p instanceof Mentions) return new Mentions(symbols.literal(((Mentions) p).phrase));
+        if (p instanceof Compare) {
+            Compare c = (Compare) p;
+            return new Compare(rebind(c.left, symbols), c.operator, rebind(c.right, symbols));
+        }
+        if (p instanceof Query) {
+            List<AST.FunctionCall> goals = new ArrayList<>();
+            for (AST.FunctionCall goal : ((Query) p).goals) goals.add(QueryEngine.literals(goal, symbols));
+            return new Query(goals);
+        }
+        throw new IllegalArgumentException("Cannot rebind predicate: " + p);
+    }
+
+    private static Operand rebind(Operand operand, SymbolTable symbols) {
+        if (operand instanceof Variable) {
+            String name = ((Variable) operand).name;
+            return new Variable(symbols.literal(name), symbols.variableSlot(name));
+        }
+        if (operand instanceof StateRead) {
+            StateRead read = (StateRead) operand;
+            return new StateRead(symbols.literal(read.npc), symbols.literal(read.key), symbols.stateSlot(read.npc, read.key));
+        }
+        Object value = ((Constant) operand).value;
+        return value instanceof String ? new Constant(symbols.literal((String) value)) : operand;
+    }
+
+    static double toNumber(Object value) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,186 @@
+package noema;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The declarations that differ between two versions of a source file.
+ *
+ * Declarations are matched by key: scenes and rules by name, facts by
+ * predicate and arguments, clauses by their whole text and imports by path,
+ * so a fact or clause with a changed argument is one removal and one
+ * addition. A matched scene or rule whose syntax tree differs is changed. Applying a diff to the {@link CompiledProgram.Builder} that holds
+ * the old version recompiles only the declarations that differ.
+ */
+public final class ProgramDiff {
+
+    public final List<AST.Node> removed;
+    /** Old and new version of each changed declaration */
+    public final List<AST.Node[]> changed;
+    public final List<AST.Node> added;
+    public final int unchanged;
+
+    private ProgramDiff(List<AST.Node> removed, List<AST.Node[]> changed, List<AST.Node> added, int unchanged) {
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+        this.added = Collections.unmodifiableList(added);
+        this.unchanged = unchanged;
+    }
+
+    public static ProgramDiff between(AST.Program before, AST.Program after) {
+        Map<String, AST.Node> old = declarations(before);
+        List<AST.Node> removed = new ArrayList<>();
+        List<AST.Node[]> changed = new ArrayList<>();
+        List<AST.Node> added = new ArrayList<>();
+        int unchanged = 0;
+
+        for (Map.Entry<String, AST.Node> e : declarations(after).entrySet()) {
+            AST.Node previous = old.remove(e.getKey());
+            if (previous == null) {
+                added.add(e.getValue());
+            } else if (same(previous, e.getValue())) {
+                unchanged++;
+            } else {
+                changed.add(new AST.Node[] { previous, e.getValue() });
+            }
+        }
+        removed.addAll(old.values());
+        return new ProgramDiff(removed, changed, added, unchanged);
+    }
+
+    /**
+     * Bring a builder holding the old version up to the new one: removals
+     * first, then changes in place, so rules keep their position, then
+     * additions.
+     */
+    public void applyTo(CompiledProgram.Builder builder) {
+        applyTo(builder, null);
+    }
+
+    /**
+     * {@link #applyTo(CompiledProgram.Builder)} for the declarations of one
+     * source, such as a file, of a builder holding several.
+     */
+    public void applyTo(CompiledProgram.Builder builder, Object source) {
+        for (AST.Node node : removed) builder.remove(source, node);
+        for (AST.Node[] pair : changed) builder.replace(source, pair[0], pair[1]);
+        for (AST.Node node : added) builder.add(source, node);
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && changed.isEmpty() && added.isEmpty();
+    }
+
+    /**
+     * @return Number of declarations that have to be compiled
+     */
+    public int size() {
+        return removed.size() + changed.size() + added.size();
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) return "no changes";
+        return String.format("%d removed, %d changed, %d added, %d unchanged",
+                removed.size(), changed.size(), added.size(), unchanged);
+    }
+
+    // --- Keys and structural equality ---
+
+    private static Map<String, AST.Node> declarations(AST.Program program) {
+        Map<String, AST.Node> declarations = new LinkedHashMap<>();
+        for (AST.Node node : program.statements) {
+            if (node == null) continue;
+            // Later declarations of a name win, as they do in the builder
+            String key = key(node);
+            declarations.remove(key);
+            declarations.put(key, node);
+        }
+        return declarations;
+    }
+
+    static String key(AST.Node node) {
+        if (node instanceof AST.Scene) return "scene " + ((AST.Scene) node).name;
+        if (node instanceof AST.Rule) return "rule " + ((AST.Rule) node).name;
+        if (node instanceof AST.Fact) {
+            AST.Fact fact = (AST.Fact) node;
+            StringBuilder key = new StringBuilder("fact ").append(fact.predicate);
+            render(key, fact.arguments);
+            return key.toString();
+        }
+        if (node instanceof AST.Clause) {
+            AST.Clause clause = (AST.Clause) node;
+            StringBuilder key = new StringBuilder("clause ").append(clause.predicate);
+            render(key, clause.arguments);
+            String connective = " if ";
+            for (AST.FunctionCall goal : clause.body) {
+                key.append(connective).append(goal.name);
+                render(key, goal.arguments);
+                connective = " and ";
+            }
+            return key.toString();
+        }
+        if (node instanceof AST.Import) return "import " + ((AST.Import) node).path;
+        return node.getClass().getSimpleName() + " " + System.identityHashCode(node);
+    }
+
+    private static void render(StringBuilder out, List<AST.Expression> arguments) {
+        out.append('(');
+        for (int i = 0; i < arguments.size(); i++) {
+            if (i > 0) out.append(", ");
+            Object value = arguments.get(i).value;
+            if (value instanceof AST.FunctionCall) {
+                out.append(((AST.FunctionCall) value).name);
+                render(out, ((AST.FunctionCall) value).arguments);
+            } else if (value instanceof String) {
+                out.append('"').append(value).append('"');
+            } else {
+                out.append(value);
+            }
+        }
+        out.append(')');
+    }
+
+    /**
+     * Structural equality of syntax trees, comparing the public fields of
+     * AST classes and the values they hold.
+     */
+    static boolean same(Object a, Object b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (a instanceof List && b instanceof List) {
+            List<?> x = (List<?>) a;
+            List<?> y = (List<?>) b;
+            if (x.size() != y.size()) return false;
+            for (int i = 0; i < x.size(); i++) {
+                if (!same(x.get(i), y.get(i))) return false;
+            }
+            return true;
+        }
+        if (a instanceof Object[] && b instanceof Object[]) {
+            Object[] x = (Object[]) a;
+            Object[] y = (Object[]) b;
+            if (x.length != y.length) return false;
+            for (int i = 0; i < x.length; i++) {
+                if (!same(x[i], y[i])) return false;
+            }
+            return true;
+        }
+        if (a.getClass() != b.getClass()) return false;
+        if (a.getClass().getEnclosingClass() != AST.class) return a.equals(b);
+        try {
+            for (Field field : a.getClass().getFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                if (!same(field.get(a), field.get(b))) return false;
+            }
+            return true;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
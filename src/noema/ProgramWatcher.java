@@ -0,0 +1,380 @@
+package noema;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Hot reload of {@code .noema} source files.
+ *
+ * The watcher keeps the syntax tree of every file and one
+ * {@link CompiledProgram.Builder} holding all of them. When a file changes,
+ * only that file is lexed and parsed again; its declarations are diffed
+ * against the previous version ({@link ProgramDiff}) and just the scenes,
+ * rules and facts that differ are recompiled. Unchanged scenes are reused as
+ * they are, so a reload costs the size of the edit plus a rebuild of the
+ * rule network. The new program replaces the old one atomically and
+ * listeners are told about it; sessions switch with
+ * {@link Session#setProgram(CompiledProgram)}, keeping their state.
+ *
+ * A change that adds an import loads the imported file, and everything it
+ * imports in turn, and watches it from then on; it ranks just below the
+ * file importing it, so that file's declarations win. A file no longer
+ * imported by any other is taken back out and no longer watched.
+ *
+ * A watcher can start from a {@link Project} load, reusing its compiled
+ * program and cached modules: nothing is lexed or parsed until the first
+ * change, which parses the project's files once.
+ *
+ * A file with syntax errors, or importing a file that is missing or has
+ * syntax errors, is not applied: the running program stays in place until
+ * the file is fixed.
+ */
+public class ProgramWatcher implements AutoCloseable {
+
+    /** Quiet period that groups the events of one save */
+    private static final long SETTLE_MILLIS = 50;
+
+    /** Sources of the watched files, in merge order */
+    private final Map<Path, String> sources = new LinkedHashMap<>();
+    private final Map<Path, AST.Program> trees = new HashMap<>();
+    /** Resolved imports of each watched file */
+    private final Map<Path, List<Path>> imports = new HashMap<>();
+    /** Files that stay loaded whether or not anything imports them */
+    private final Set<Path> roots = new LinkedHashSet<>();
+    private final Set<Path> directories = new HashSet<>();
+    /** Holds every watched file; null until a project's first change */
+    private CompiledProgram.Builder builder = new CompiledProgram.Builder();
+    private final AtomicReference<CompiledProgram> program = new AtomicReference<>();
+    private final List<Consumer<Reload>> listeners = new CopyOnWriteArrayList<>();
+    private WatchService service = null;
+
+    /**
+     * Load and compile the files, in order. Their imports are not loaded;
+     * only imports added by later changes are.
+     * @throws IOException If a file can't be read or has syntax errors
+     */
+    public ProgramWatcher(Path... files) throws IOException {
+        for (Path file : files) {
+            Path path = file.toAbsolutePath().normalize();
+            String source = Files.readString(path);
+            AST.Program tree = parse(source);
+            if (tree == null) throw new IOException("Syntax errors in " + file);
+            builder.add(path, tree);
+            sources.put(path, source);
+            trees.put(path, tree);
+            imports.put(path, imports(path, tree));
+            roots.add(path);
+        }
+        program.set(builder.build());
+    }
+
+    /**
+     * Watch the files of a loaded project, starting from its program. The
+     * files are read but not parsed.
+     * @throws IOException If a file can't be read
+     */
+    public ProgramWatcher(Project.Result project) throws IOException {
+        for (Project.Module module : project.modules) {
+            sources.put(module.file, Files.readString(module.file));
+            imports.put(module.file, module.imports);
+        }
+        // Modules are in merge order, so the root file comes last
+        roots.add(project.modules.get(project.modules.size() - 1).file);
+        builder = null;
+        program.set(project.program);
+    }
+
+    /**
+     * @return The current version of the program
+     */
+    public CompiledProgram program() {
+        return program.get();
+    }
+
+    /**
+     * Call a listener, on the watcher thread, after every reload that
+     * changed the program.
+     */
+    public ProgramWatcher onReload(Consumer<Reload> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Start watching the files' directories on a background thread.
+     */
+    public synchronized ProgramWatcher start() throws IOException {
+        if (service != null) return this;
+        service = FileSystems.getDefault().newWatchService();
+        for (Path file : sources.keySet()) register(file.getParent());
+        WatchService watching = service;
+        Thread thread = new Thread(() -> watch(watching), "noema-watch");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (service != null) service.close();
+        service = null;
+        directories.clear();
+    }
+
+    private void register(Path directory) throws IOException {
+        if (service != null && directories.add(directory)) {
+            directory.register(service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+    }
+
+    private synchronized boolean isWatched(Path file) {
+        return sources.containsKey(file);
+    }
+
+    private void watch(WatchService watching) {
+        try {
+            while (true) {
+                Set<Path> changed = new HashSet<>();
+                WatchKey key = watching.take();
+                // Editors often save in several writes; wait for them to settle
+                while (key != null) {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            Path file = directory.resolve((Path) event.context()).normalize();
+                            if (isWatched(file)) changed.add(file);
+                        }
+                    }
+                    key.reset();
+                    key = watching.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for (Path file : changed) {
+                    try {
+                        reload(file);
+                    } catch (IOException e) {
+                        System.err.println("Reload of " + file + " failed: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed by close()
+        }
+    }
+
+    /**
+     * Reload one file now, as the watcher does when it changes.
+     * @return What changed, or null if the file is unchanged, or it or a
+     *         file it newly imports has errors; the program stays as it was
+     *         in these cases
+     */
+    public synchronized Reload reload(Path file) throws IOException {
+        long start = System.nanoTime();
+        Path path = file.toAbsolutePath().normalize();
+        if (!sources.containsKey(path)) throw new IllegalArgumentException("Not watched: " + file);
+        String source = Files.readString(path);
+        if (source.equals(sources.get(path))) return null;
+
+        AST.Program tree = parse(source);
+        if (tree == null) {
+            System.err.println("Not reloading " + file + ": syntax errors");
+            return null;
+        }
+        if (builder == null) adopt();
+        ProgramDiff diff = ProgramDiff.between(trees.get(path), tree);
+        List<Path> before = imports.get(path);
+        List<Path> after = imports(path, tree);
+        if (diff.isEmpty()) {
+            sources.put(path, source);
+            trees.put(path, tree);
+            return null;
+        }
+
+        // Newly imported files are all loaded before anything is applied
+        List<Loaded> loads = new ArrayList<>();
+        for (Path imported : after) {
+            if (before.contains(imported)) continue;
+            String error = load(imported, path, loads);
+            if (error != null) {
+                System.err.println("Not reloading " + file + ": " + error);
+                return null;
+            }
+        }
+
+        sources.put(path, source);
+        trees.put(path, tree);
+        imports.put(path, after);
+        diff.applyTo(builder, path);
+        List<Path> imported = new ArrayList<>();
+        for (Loaded load : loads) {
+            builder.precede(load.file, load.importer).add(load.file, load.tree);
+            sources.put(load.file, load.source);
+            trees.put(load.file, load.tree);
+            imports.put(load.file, imports(load.file, load.tree));
+            register(load.file.getParent());
+            imported.add(load.file);
+        }
+        List<Path> dropped = unload();
+
+        CompiledProgram compiled = builder.build();
+        program.set(compiled);
+        Reload reload = new Reload(path, diff, imported, dropped, compiled, System.nanoTime() - start);
+        for (Consumer<Reload> listener : listeners) listener.accept(reload);
+        return reload;
+    }
+
+    /**
+     * Parse the files of a project once and track them in a builder, so
+     * that changes can be applied to them.
+     */
+    private void adopt() throws IOException {
+        CompiledProgram.Builder adopted = new CompiledProgram.Builder();
+        for (Map.Entry<Path, String> e : sources.entrySet()) {
+            AST.Program tree = parse(e.getValue());
+            if (tree == null) throw new IOException("Syntax errors in " + e.getKey());
+            adopted.add(e.getKey(), tree);
+            trees.put(e.getKey(), tree);
+        }
+        builder = adopted;
+    }
+
+    /**
+     * Read and parse a newly imported file and, first importer first, what
+     * it imports that is not loaded yet.
+     * @return Why the file can't be loaded, or null
+     */
+    private String load(Path file, Path importer, List<Loaded> loads) throws IOException {
+        if (sources.containsKey(file)) return null;
+        for (Loaded load : loads) {
+            if (load.file.equals(file)) return null;
+        }
+        String source;
+        try {
+            source = Files.readString(file);
+        } catch (NoSuchFileException e) {
+            return "imported file " + file + " not found";
+        }
+        AST.Program tree = parse(source);
+        if (tree == null) return "syntax errors in imported file " + file;
+        loads.add(new Loaded(file, importer, source, tree));
+        for (Path imported : imports(file, tree)) {
+            String error = load(imported, file, loads);
+            if (error != null) return error;
+        }
+        return null;
+    }
+
+    /**
+     * Take back the files that no root imports any more, directly or not.
+     * @return The files taken back
+     */
+    private List<Path> unload() {
+        Set<Path> reachable = new HashSet<>();
+        Deque<Path> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            Path file = pending.pop();
+            if (sources.containsKey(file) && reachable.add(file)) pending.addAll(imports.get(file));
+        }
+        List<Path> dropped = new ArrayList<>();
+        for (Iterator<Path> it = sources.keySet().iterator(); it.hasNext(); ) {
+            Path file = it.next();
+            if (reachable.contains(file)) continue;
+            ProgramDiff.between(trees.remove(file), new AST.Program()).applyTo(builder, file);
+            imports.remove(file);
+            it.remove();
+            dropped.add(file);
+        }
+        return dropped;
+    }
+
+    private static List<Path> imports(Path file, AST.Program tree) {
+        List<Path> paths = new ArrayList<>();
+        for (AST.Node node : tree.statements) {
+            if (node instanceof AST.Import) paths.add(file.resolveSibling(((AST.Import) node).path).normalize());
+        }
+        return paths;
+    }
+
+    /**
+     * @return The file's syntax tree, or null if it has errors
+     */
+    private static AST.Program parse(String source) {
+        ErrorReporter reporter = new ErrorReporter();
+        AST.Program tree = new Parser(new Lexer(source, reporter).scanTokens(), reporter).parse();
+        return reporter.hadError() ? null : tree;
+    }
+
+    /**
+     * A file newly imported by a change, read and parsed but not applied yet.
+     */
+    private static final class Loaded {
+        final Path file;
+        final Path importer;
+        final String source;
+        final AST.Program tree;
+
+        Loaded(Path file, Path importer, String source, AST.Program tree) {
+            this.file = file;
+            this.importer = importer;
+            this.source = source;
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * One applied change of a file.
+     */
+    public static final class Reload {
+        public final Path file;
+        public final ProgramDiff diff;
+        /** Files loaded because the change imports them */
+        public final List<Path> imported;
+        /** Files taken back because nothing imports them any more */
+        public final List<Path> dropped;
+        public final CompiledProgram program;
+        public final long elapsedNanos;
+
+        Reload(Path file, ProgramDiff diff, List<Path> imported, List<Path> dropped,
+               CompiledProgram program, long elapsedNanos) {
+            this.file = file;
+            this.diff = diff;
+            this.imported = Collections.unmodifiableList(imported);
+            this.dropped = Collections.unmodifiableList(dropped);
+            this.program = program;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder files = new StringBuilder();
+            if (!imported.isEmpty()) files.append(", ").append(imported.size()).append(" files imported");
+            if (!dropped.isEmpty()) files.append(", ").append(dropped.size()).append(" files dropped");
+            return String.format("%s: %s%s in %.2f ms", file.getFileName(), diff, files, elapsedNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package noema;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a program spread over several files joined by
+ * {@code import "file.noema"} declarations.
+ *
+ * Starting from the root file, imports are followed breadth first; all the
+ * files discovered in one round are read, lexed, parsed and compiled in
+ * parallel on a {@link ForkJoinPool}, each with its own
+ * {@link ErrorReporter}. Every file is compiled on its own into a module,
+ * and the modules are merged with {@link CompiledProgram.Builder#add(CompiledProgram)}
+ * in dependency order: a file's imports come before it, so its declarations
+ * win. Each file is loaded once, whatever the number of imports of it, and
+ * import cycles are allowed.
+ *
+ * With a cache directory, each compiled module is stored there in the
+ * {@code .noemac} format under the SHA-256 of its source, so a file whose
+ * content is unchanged is never lexed or parsed again.
+ */
+public final class Project {
+
+    /** Bumped when the cache entry layout changes */
+    private static final int CACHE_VERSION = 1;
+
+    private final Path cacheDirectory;
+    private final ForkJoinPool pool;
+
+    /**
+     * A project loader without a cache, on the common pool.
+     */
+    public Project() {
+        this(null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param cacheDirectory Where compiled modules are kept, or null for no cache
+     */
+    public Project(Path cacheDirectory) {
+        this(cacheDirectory, ForkJoinPool.commonPool());
+    }
+
+    public Project(Path cacheDirectory, ForkJoinPool pool) {
+        this.cacheDirectory = cacheDirectory;
+        this.pool = pool;
+    }
+
+    /**
+     * Load a root file and everything it imports.
+     * @throws IOException If a file can't be read or any file has errors
+     */
+    public Result load(Path root) throws IOException {
+        long start = System.nanoTime();
+        if (cacheDirectory != null) Files.createDirectories(cacheDirectory);
+        Path rootPath = root.toAbsolutePath().normalize();
+
+        Map<Path, Module> modules = new HashMap<>();
+        Set<Path> seen = new HashSet<>();
+        seen.add(rootPath);
+        List<Path> round = List.of(rootPath);
+        while (!round.isEmpty()) {
+            List<Future<Module>> loads = new ArrayList<>();
+            for (Path file : round) loads.add(pool.submit(() -> loadModule(file)));
+            List<Path> next = new ArrayList<>();
+            for (Future<Module> load : loads) {
+                Module module = await(load);
+                modules.put(module.file, module);
+                for (Path imported : module.imports) {
+                    if (seen.add(imported)) next.add(imported);
+                }
+            }
+            round = next;
+        }
+
+        List<String> errors = new ArrayList<>();
+        for (Module module : modules.values()) {
+            for (String error : module.errors) errors.add(module.file + ": " + error);
+        }
+        if (!errors.isEmpty()) throw new IOException(String.join("\n", errors));
+
+        List<Module> order = new ArrayList<>();
+        orderModules(rootPath, modules, new HashSet<>(), order);
+        CompiledProgram.Builder builder = new CompiledProgram.Builder();
+        for (Module module : order) builder.add(module.program);
+        return new Result(builder.build(), order, System.nanoTime() - start);
+    }
+
+    /**
+     * Post-order walk of the import graph: imports before importers.
+     */
+    private static void orderModules(Path file, Map<Path, Module> modules, Set<Path> visited, List<Module> order) {
+        if (!visited.add(file)) return;
+        Module module = modules.get(file);
+        for (Path imported : module.imports) orderModules(imported, modules, visited, order);
+        order.add(module);
+    }
+
+    private static Module await(Future<Module> load) throws IOException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // --- Modules ---
+
+    private Module loadModule(Path file) throws IOException {
+        byte[] source;
+        try {
+            source = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            throw new NoSuchFileException(file.toString(), null, "imported file not found");
+        }
+        Path entry = cacheDirectory == null ? null : cacheDirectory.resolve(hash(source) + ".noemac");
+        if (entry != null && Files.exists(entry)) {
+            Module cached = readEntry(file, entry);
+            if (cached != null) return cached;
+        }
+
+        ErrorReporter reporter = new ErrorReporter();
+        String text = new String(source, StandardCharsets.UTF_8);
+        AST.Program tree = new Parser(new Lexer(text, reporter).scanTokens(), reporter).parse();
+        if (reporter.hadError()) {
+            return new Module(file, Collections.emptyList(), Collections.emptyList(), null, reporter.getErrors(), false);
+        }
+        List<String> imports = new ArrayList<>();
+        for (AST.Node node : tree.statements) {
+            if (node instanceof AST.Import) imports.add(((AST.Import) node).path);
+        }
+        CompiledProgram program = CompiledProgram.compile(tree);
+        if (entry != null) writeEntry(entry, imports, program);
+        return new Module(file, imports, resolve(file, imports), program, Collections.emptyList(), false);
+    }
+
+    private static List<Path> resolve(Path file, List<String> imports) {
+        List<Path> paths = new ArrayList<>(imports.size());
+        for (String imported : imports) paths.add(file.resolveSibling(imported).normalize());
+        return paths;
+    }
+
+    /**
+     * Cache entry: i32 version, import count and paths, then the module in
+     * the {@link BinaryProgram} format.
+     */
+    private static void writeEntry(Path entry, List<String> imports, CompiledProgram program) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CACHE_VERSION);
+        out.writeInt(imports.size());
+        for (String imported : imports) out.writeUTF(imported);
+        out.write(BinaryProgram.encode(program));
+
+        // Write then rename, so concurrent loaders never see half an entry
+        Path temp = Files.createTempFile(entry.getParent(), "module", ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        try {
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return The cached module, or null if the entry is unreadable
+     */
+    private static Module readEntry(Path file, Path entry) throws IOException {
+        byte[] bytes = Files.readAllBytes(entry);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != CACHE_VERSION) return null;
+            int count = in.readInt();
+            List<String> imports = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) imports.add(in.readUTF());
+            int offset = bytes.length - in.available();
+            CompiledProgram program = BinaryProgram.decode(ByteBuffer.wrap(bytes, offset, bytes.length - offset).slice());
+            return new Module(file, imports, resolve(file, imports), program, Collections.emptyList(), true);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String hash(byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) BinaryProgram.VERSION);
+            digest.update((byte) CACHE_VERSION);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(source)) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One loaded file.
+     */
+    public static final class Module {
+        public final Path file;
+        /** Import paths as written in the file */
+        public final List<String> importNames;
+        /** Resolved import paths, relative to the file's directory */
+        public final List<Path> imports;
+        /** The file compiled on its own; null if it has errors */
+        public final CompiledProgram program;
+        public final List<String> errors;
+        /** Whether the module came from the cache instead of being compiled */
+        public final boolean cached;
+
+        Module(Path file, List<String> importNames, List<Path> imports, CompiledProgram program,
+               List<String> errors, boolean cached) {
+            this.file = file;
+            this.importNames = Collections.unmodifiableList(importNames);
+            this.imports = Collections.unmodifiableList(imports);
+            this.program = program;
+            this.errors = Collections.unmodifiableList(errors);
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * A loaded project.
+     */
+    public static final class Result {
+        public final CompiledProgram program;
+        /** Modules in merge order: every file after the files it imports */
+        public final List<Module> modules;
+        public final long elapsedNanos;
+
+        Result(CompiledProgram program, List<Module> modules, long elapsedNanos) {
+            this.program = program;
+            this.modules = Collections.unmodifiableList(modules);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return The project's files in merge order
+         */
+        public List<Path> files() {
+            List<Path> files = new ArrayList<>(modules.size());
+            for (Module module : modules) files.add(module.file);
+            return files;
+        }
+
+        /**
+         * @return Number of modules taken from the cache
+         */
+        public int cached() {
+            int cached = 0;
+            for (Module module : modules) if (module.cached) cached++;
+            return cached;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files (%d cached) in %.2f ms", modules.size(), cached(), elapsedNanos / 1e6);
+        }
+    }
+}
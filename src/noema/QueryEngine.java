@@ -0,0 +1,640 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Goal-directed queries over a program's facts and clauses, such as
+ * {@code trusts("Jade", X)}.
+ *
+ * A clause like {@code fact trusts(X, Z) if knows(X, Y) and trusts(Y, Z)}
+ * derives facts from other facts. Goals are solved by backward chaining:
+ * body goals left to right, unifying their arguments with stored facts
+ * through the {@link FactStore} index on the first bound argument, and with
+ * the answers of clauses.
+ *
+ * Calls to predicates defined by clauses are tabled (SLG resolution): each
+ * call, up to renaming of its variables, is evaluated once into a table of
+ * answers. A call that recurses into a table still being evaluated reads
+ * the answers found so far instead of looping, and sees the ones added
+ * while it reads. The first table of a group of mutually recursive calls
+ * re-runs the group until none of them gains an answer, then all of them
+ * are complete. Recursive relations therefore terminate, and completed
+ * tables answer later calls without evaluating anything.
+ *
+ * Facts and clauses don't change after a program is built, so neither do
+ * the tables. Evaluation is serialized, and every session of the program
+ * shares the results.
+ *
+ * Alternatively, {@link #materialize()} derives every fact the clauses
+ * imply up front, by forward chaining, and later goals are looked up in the
+ * result.
+ */
+public final class QueryEngine {
+
+    private final FactStore facts;
+    private final Map<String, List<Rule>> rules = new HashMap<>();
+    private final Map<FactStore.Tuple, Table> tables = new HashMap<>();
+    private final Map<Predicate.Query, Boolean> decided = new ConcurrentHashMap<>();
+
+    /** Tables evaluated since the oldest incomplete one, in order */
+    private final List<Table> pending = new ArrayList<>();
+    private Table current;
+    private int depth;
+    private long pass;
+    private long answerCount;
+    private long evaluations;
+    private Derivation derivation;
+
+    /**
+     * @param facts Fact base; no longer modified by the caller
+     * @param clauses Clauses in declaration order
+     */
+    public QueryEngine(FactStore facts, List<AST.Clause> clauses) {
+        this.facts = facts;
+        for (AST.Clause clause : clauses) {
+            Scope scope = new Scope();
+            Object[] head = scope.terms(clause.arguments);
+            Goal[] body = new Goal[clause.body.size()];
+            for (int i = 0; i < body.length; i++) body[i] = scope.goal(clause.body.get(i));
+            rules.computeIfAbsent(clause.predicate, p -> new ArrayList<>()).add(new Rule(head, body, scope.size()));
+        }
+    }
+
+    /**
+     * Solve goals joined by {@code and}.
+     * @return The bindings of the named variables in each distinct solution,
+     *         in the order the variables first appear
+     */
+    public synchronized List<Map<String, Object>> query(List<AST.FunctionCall> goals) {
+        Scope scope = new Scope();
+        Goal[] body = new Goal[goals.size()];
+        for (int i = 0; i < body.length; i++) body[i] = scope.goal(goals.get(i));
+
+        Set<List<Object>> solutions = new LinkedHashSet<>();
+        solve(body, 0, new Object[scope.size()], env -> {
+            List<Object> solution = new ArrayList<>(scope.names.size());
+            for (Var v : scope.names.values()) solution.add(env[v.index]);
+            solutions.add(solution);
+            return true;
+        });
+
+        List<Map<String, Object>> result = new ArrayList<>(solutions.size());
+        for (List<Object> solution : solutions) {
+            Map<String, Object> bindings = new LinkedHashMap<>();
+            int i = 0;
+            for (String name : scope.names.keySet()) bindings.put(name, solution.get(i++));
+            result.add(bindings);
+        }
+        return result;
+    }
+
+    /**
+     * @return Whether the goals of a condition have a solution
+     */
+    boolean holds(Predicate.Query query) {
+        Boolean result = decided.get(query);
+        if (result == null) {
+            result = exists(query.goals);
+            decided.put(query, result);
+        }
+        return result;
+    }
+
+    private synchronized boolean exists(List<AST.FunctionCall> goals) {
+        Scope scope = new Scope();
+        Goal[] body = new Goal[goals.size()];
+        for (int i = 0; i < body.length; i++) body[i] = scope.goal(goals.get(i));
+        return !solve(body, 0, new Object[scope.size()], env -> false);
+    }
+
+    /**
+     * @return Number of tables, one per distinct call of a clause-defined
+     *         predicate
+     */
+    public synchronized int tableCount() {
+        return tables.size();
+    }
+
+    /**
+     * @return How many times a table has been evaluated; calls answered from
+     *         a complete table don't count
+     */
+    public synchronized long evaluations() {
+        return evaluations;
+    }
+
+    // --- Resolution ---
+
+    private interface Sink {
+        /**
+         * @return Whether to look for more solutions
+         */
+        boolean accept(Object[] env);
+    }
+
+    /**
+     * Solve the goals of a body from {@code g} on, extending the bindings in
+     * {@code env}, which are restored on return.
+     * @return False if the sink stopped the search
+     */
+    private boolean solve(Goal[] body, int g, Object[] env, Sink sink) {
+        if (g == body.length) return sink.accept(env);
+        Goal goal = body[g];
+        Object[] pattern = new Object[goal.args.length];
+        for (int i = 0; i < pattern.length; i++) {
+            Object arg = goal.args[i];
+            Object bound = arg instanceof Var ? env[((Var) arg).index] : arg;
+            pattern[i] = bound != null ? bound : arg;
+        }
+
+        if (derivation == null && rules.containsKey(goal.predicate)) {
+            List<FactStore.Tuple> answers = call(goal.predicate, pattern).answers;
+            // Answers added while reading, by recursion into this table, are read too
+            for (int i = 0; i < answers.size(); i++) {
+                if (!unify(pattern, answers.get(i), env)) continue;
+                boolean more = solve(body, g + 1, env, sink);
+                unbind(pattern, env);
+                if (!more) return false;
+            }
+        } else {
+            FactStore source = derivation == null ? facts : derivation.facts;
+            for (FactStore.Tuple tuple : lookup(source, goal.predicate, pattern)) {
+                if (!unify(pattern, tuple, env)) continue;
+                boolean more = solve(body, g + 1, env, sink);
+                unbind(pattern, env);
+                if (!more) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Facts of a predicate that may match a pattern, through the index on
+     * its first bound argument.
+     */
+    private static Collection<FactStore.Tuple> lookup(FactStore store, String predicate, Object[] pattern) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (!(pattern[i] instanceof Var)) return store.lookup(predicate, i, pattern[i]);
+        }
+        return store.all(predicate);
+    }
+
+    private static boolean unify(Object[] pattern, FactStore.Tuple tuple, Object[] env) {
+        if (tuple.arity() != pattern.length) return false;
+        for (int i = 0; i < pattern.length; i++) {
+            Object p = pattern[i];
+            Object value = tuple.get(i);
+            if (p instanceof Var) {
+                int v = ((Var) p).index;
+                if (env[v] == null) {
+                    env[v] = value;
+                    continue;
+                }
+                p = env[v];
+            }
+            if (!p.equals(value)) {
+                unbind(pattern, env);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void unbind(Object[] pattern, Object[] env) {
+        for (Object p : pattern) {
+            if (p instanceof Var) env[((Var) p).index] = null;
+        }
+    }
+
+    // --- Tabling ---
+
+    /**
+     * @return The table of a call, evaluated unless it is complete or
+     *         already being evaluated
+     */
+    private Table call(String predicate, Object[] pattern) {
+        Object[] variant = new Object[pattern.length + 1];
+        variant[0] = predicate;
+        Map<Var, Var> renaming = new HashMap<>();
+        for (int i = 0; i < pattern.length; i++) {
+            Object p = pattern[i];
+            variant[i + 1] = p instanceof Var ? renaming.computeIfAbsent((Var) p, v -> Var.of(renaming.size())) : p;
+        }
+        FactStore.Tuple key = new FactStore.Tuple(variant);
+        Table table = tables.get(key);
+        if (table == null) {
+            table = new Table(predicate, Arrays.copyOfRange(variant, 1, variant.length), renaming.size());
+            tables.put(key, table);
+        }
+        if (table.complete) return table;
+        if (table.active || table.pass == pass) {
+            // Recursion: use the answers so far, and let the group's leader re-run
+            if (current != null) current.low = Math.min(current.low, table.low);
+            return table;
+        }
+        evaluate(table);
+        return table;
+    }
+
+    private void evaluate(Table table) {
+        Table caller = current;
+        boolean first = table.pendingIndex < 0;
+        if (first) {
+            table.pendingIndex = pending.size();
+            pending.add(table);
+        }
+        current = table;
+        table.active = true;
+        table.depth = table.low = depth++;
+
+        long before;
+        do {
+            before = answerCount;
+            table.pass = ++pass;
+            evaluations++;
+            run(table);
+        } while (table.low == table.depth && answerCount != before);
+
+        table.active = false;
+        depth--;
+        current = caller;
+        if (table.low == table.depth && first) {
+            // The leader of its group: nothing it depends on can change any more
+            for (int i = table.pendingIndex; i < pending.size(); i++) pending.get(i).complete = true;
+            pending.subList(table.pendingIndex, pending.size()).clear();
+        } else if (caller != null) {
+            caller.low = Math.min(caller.low, table.low);
+        }
+    }
+
+    /**
+     * One pass over the facts and clauses of a table's predicate.
+     */
+    private void run(Table table) {
+        Object[] pattern = table.pattern;
+        for (FactStore.Tuple tuple : lookup(facts, table.predicate, pattern)) table.add(tuple, this);
+
+        for (Rule rule : rules.get(table.predicate)) {
+            if (rule.head.length != pattern.length) continue;
+            Object[] env = new Object[rule.variables];
+            if (!bindHead(rule.head, pattern, env)) continue;
+            solve(rule.body, 0, env, solution -> {
+                Object[] values = new Object[rule.head.length];
+                for (int i = 0; i < values.length; i++) {
+                    Object h = rule.head[i];
+                    values[i] = h instanceof Var ? solution[((Var) h).index] : h;
+                }
+                table.add(new FactStore.Tuple(values), this);
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Bind the head variables of a rule to the constants of a call.
+     * @return False if the head can't match the call
+     */
+    private static boolean bindHead(Object[] head, Object[] pattern, Object[] env) {
+        for (int i = 0; i < head.length; i++) {
+            if (pattern[i] instanceof Var) continue;
+            Object h = head[i];
+            if (h instanceof Var) {
+                int v = ((Var) h).index;
+                if (env[v] == null) env[v] = pattern[i];
+                else if (!env[v].equals(pattern[i])) return false;
+            } else if (!h.equals(pattern[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Table {
+        final String predicate;
+        /** Arguments of the call, with variables numbered by first occurrence */
+        final Object[] pattern;
+        final int variables;
+        final List<FactStore.Tuple> answers = new ArrayList<>();
+        final Set<FactStore.Tuple> seen = new HashSet<>();
+        boolean complete;
+        boolean active;
+        int depth;
+        /** Depth of the oldest active table this one read from */
+        int low;
+        long pass = -1;
+        int pendingIndex = -1;
+
+        Table(String predicate, Object[] pattern, int variables) {
+            this.predicate = predicate;
+            this.pattern = pattern;
+            this.variables = variables;
+        }
+
+        /**
+         * Add an answer if it matches the call, including repeated variables.
+         */
+        void add(FactStore.Tuple tuple, QueryEngine engine) {
+            if (tuple.arity() != pattern.length || seen.contains(tuple)) return;
+            Object[] env = new Object[variables];
+            for (int i = 0; i < pattern.length; i++) {
+                Object value = tuple.get(i);
+                if (value == null) return;
+                Object p = pattern[i];
+                if (p instanceof Var) {
+                    int v = ((Var) p).index;
+                    if (env[v] == null) env[v] = value;
+                    else if (!env[v].equals(value)) return;
+                } else if (!p.equals(value)) {
+                    return;
+                }
+            }
+            seen.add(tuple);
+            answers.add(tuple);
+            engine.answerCount++;
+        }
+    }
+
+    // --- Forward chaining ---
+
+    /**
+     * Derive every fact the clauses imply, and answer later goals from the
+     * result instead of tables.
+     *
+     * Clause predicates are grouped into strata, the strongly connected
+     * components of the graph from each clause's head to the predicates in
+     * its body, and each stratum runs to a fixpoint after the ones it reads.
+     * Evaluation is semi-naive: the first round of a stratum joins whole
+     * relations, and each later round joins only the facts the round before
+     * derived (the delta), taken first in the body and joined with whole
+     * relations through their indexes. No join is repeated from one round to
+     * the next, so the work follows the number of facts derived.
+     *
+     * @return What the derivation did; later calls return the same
+     */
+    public synchronized Derivation materialize() {
+        if (derivation != null) return derivation;
+        FactStore store = facts.copy();
+        List<List<String>> strata = strata();
+        int rounds = 0;
+        long derived = 0;
+        for (List<String> stratum : strata) {
+            Set<String> members = new HashSet<>(stratum);
+            FactStore delta = null;
+            while (true) {
+                List<Object[]> found = new ArrayList<>();
+                for (String predicate : stratum) {
+                    for (Rule rule : rules.get(predicate)) {
+                        if (delta == null) {
+                            join(rule, rule.body, store, null, predicate, found);
+                            continue;
+                        }
+                        for (int i = 0; i < rule.body.length; i++) {
+                            if (!members.contains(rule.body[i].predicate)) continue;
+                            Goal[] body = rule.body.clone();
+                            body[0] = rule.body[i];
+                            System.arraycopy(rule.body, 0, body, 1, i);
+                            join(rule, body, store, delta, predicate, found);
+                        }
+                    }
+                }
+                rounds++;
+
+                FactStore next = new FactStore();
+                int added = 0;
+                for (Object[] fact : found) {
+                    String predicate = (String) fact[0];
+                    Object[] args = Arrays.copyOfRange(fact, 1, fact.length);
+                    if (store.assertFact(predicate, args)) {
+                        next.assertFact(predicate, args);
+                        added++;
+                    }
+                }
+                derived += added;
+                if (added == 0) break;
+                delta = next;
+            }
+        }
+        derivation = new Derivation(strata.size(), rounds, derived, store.readOnly());
+        return derivation;
+    }
+
+    /**
+     * Join a body, reading its first goal from the delta if there is one,
+     * and collect the head instances as {predicate, args...}.
+     */
+    private static void join(Rule rule, Goal[] body, FactStore store, FactStore delta, String predicate, List<Object[]> found) {
+        join(body, 0, new Object[rule.variables], store, delta, env -> {
+            Object[] fact = new Object[rule.head.length + 1];
+            fact[0] = predicate;
+            for (int i = 0; i < rule.head.length; i++) {
+                Object h = rule.head[i];
+                fact[i + 1] = h instanceof Var ? env[((Var) h).index] : h;
+            }
+            found.add(fact);
+            return true;
+        });
+    }
+
+    private static void join(Goal[] body, int g, Object[] env, FactStore store, FactStore delta, Sink sink) {
+        if (g == body.length) {
+            sink.accept(env);
+            return;
+        }
+        Goal goal = body[g];
+        Object[] pattern = new Object[goal.args.length];
+        for (int i = 0; i < pattern.length; i++) {
+            Object arg = goal.args[i];
+            Object bound = arg instanceof Var ? env[((Var) arg).index] : arg;
+            pattern[i] = bound != null ? bound : arg;
+        }
+        for (FactStore.Tuple tuple : lookup(g == 0 && delta != null ? delta : store, goal.predicate, pattern)) {
+            if (!unify(pattern, tuple, env)) continue;
+            join(body, g + 1, env, store, delta, sink);
+            unbind(pattern, env);
+        }
+    }
+
+    /**
+     * @return The clause predicates grouped into strongly connected
+     *         components, each after the ones its clauses read
+     */
+    private List<List<String>> strata() {
+        List<List<String>> strata = new ArrayList<>();
+        Map<String, int[]> visited = new HashMap<>();
+        List<String> stack = new ArrayList<>();
+        for (String predicate : rules.keySet()) {
+            if (!visited.containsKey(predicate)) strongConnect(predicate, visited, stack, strata);
+        }
+        return strata;
+    }
+
+    /**
+     * Tarjan's algorithm; a component is complete only after every component
+     * it reaches, so components come out in dependency order.
+     * @return The lowest index reachable from the predicate on the stack
+     */
+    private int strongConnect(String predicate, Map<String, int[]> visited, List<String> stack, List<List<String>> strata) {
+        int index = visited.size();
+        int[] low = { index };
+        visited.put(predicate, low);
+        stack.add(predicate);
+        for (Rule rule : rules.get(predicate)) {
+            for (Goal goal : rule.body) {
+                if (!rules.containsKey(goal.predicate)) continue;
+                int[] seen = visited.get(goal.predicate);
+                if (seen == null) low[0] = Math.min(low[0], strongConnect(goal.predicate, visited, stack, strata));
+                else if (stack.contains(goal.predicate)) low[0] = Math.min(low[0], seen[0]);
+            }
+        }
+        if (low[0] == index) {
+            List<String> component = new ArrayList<>();
+            String member;
+            do {
+                member = stack.remove(stack.size() - 1);
+                component.add(member);
+            } while (!member.equals(predicate));
+            strata.add(component);
+        }
+        return low[0];
+    }
+
+    /**
+     * What {@link #materialize()} derived.
+     */
+    public static final class Derivation {
+        public final int strata;
+        /** Rounds over all strata, counting each stratum's last, empty one */
+        public final int rounds;
+        /** Facts derived that were not given */
+        public final long derived;
+        /** The given and the derived facts, read-only */
+        public final FactStore facts;
+
+        Derivation(int strata, int rounds, long derived, FactStore facts) {
+            this.strata = strata;
+            this.rounds = rounds;
+            this.derived = derived;
+            this.facts = facts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d facts derived in %d rounds over %d %s", derived, rounds, strata,
+                    strata == 1 ? "stratum" : "strata");
+        }
+    }
+
+    // --- Compiled clauses ---
+
+    private static final class Rule {
+        final Object[] head;
+        final Goal[] body;
+        final int variables;
+
+        Rule(Object[] head, Goal[] body, int variables) {
+            this.head = head;
+            this.body = body;
+            this.variables = variables;
+        }
+    }
+
+    private static final class Goal {
+        final String predicate;
+        /** Constants, and a {@link Var} for each variable */
+        final Object[] args;
+
+        Goal(String predicate, Object[] args) {
+            this.predicate = predicate;
+            this.args = args;
+        }
+    }
+
+    /**
+     * A variable, by its index in the bindings of a clause or query.
+     */
+    private static final class Var {
+        private static final Var[] SMALL = new Var[64];
+        static {
+            for (int i = 0; i < SMALL.length; i++) SMALL[i] = new Var(i);
+        }
+
+        final int index;
+
+        private Var(int index) {
+            this.index = index;
+        }
+
+        static Var of(int index) {
+            return index < SMALL.length ? SMALL[index] : new Var(index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Var && ((Var) o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+    }
+
+    /**
+     * Numbers the variables of one clause or query; each {@code _} is a
+     * variable of its own.
+     */
+    private static final class Scope {
+        final Map<String, Var> names = new LinkedHashMap<>();
+        int anonymous;
+
+        int size() {
+            return names.size() + anonymous;
+        }
+
+        Goal goal(AST.FunctionCall call) {
+            return new Goal(call.name, terms(call.arguments));
+        }
+
+        Object[] terms(List<AST.Expression> arguments) {
+            Object[] terms = new Object[arguments.size()];
+            for (int i = 0; i < terms.length; i++) {
+                Object value = arguments.get(i).value;
+                if (value instanceof AST.LogicVariable) {
+                    String name = ((AST.LogicVariable) value).name;
+                    Var v = name.equals("_") ? null : names.get(name);
+                    if (v == null) {
+                        v = Var.of(size());
+                        if (name.equals("_")) anonymous++;
+                        else names.put(name, v);
+                    }
+                    terms[i] = v;
+                } else {
+                    terms[i] = value;
+                }
+            }
+            return terms;
+        }
+    }
+
+    /**
+     * @return A goal whose string constants are the canonical instances of a
+     *         symbol table
+     */
+    static AST.FunctionCall literals(AST.FunctionCall goal, SymbolTable symbols) {
+        List<AST.Expression> args = new ArrayList<>(goal.arguments.size());
+        for (AST.Expression arg : goal.arguments) {
+            args.add(arg.value instanceof String ? new AST.Expression(symbols.literal((String) arg.value)) : arg);
+        }
+        return new AST.FunctionCall(symbols.literal(goal.name), args);
+    }
+}
@@ -0,0 +1,116 @@
+package noema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response text with interpolated state, compiled once into segments.
+ *
+ * {@code {name}} inserts a variable and {@code {key(NPC)}} an NPC's state,
+ * for example {@code "I feel {mood(Jade)} after {visits} visits."}. Doubled
+ * braces stand for literal ones, and anything else in braces is kept as
+ * written. Names are resolved to
+ * slots at compile time, so rendering is a walk over the segments that
+ * appends straight to the output. Numbers without a fraction are written
+ * without one, and missing values as nothing.
+ */
+public final class ResponseTemplate {
+
+    /** Literal text (String) or a value to insert (Predicate.Operand), in order */
+    private final Object[] segments;
+    private final String source;
+
+    private ResponseTemplate(Object[] segments, String source) {
+        this.segments = segments;
+        this.source = source;
+    }
+
+    public static ResponseTemplate compile(String text, SymbolTable symbols) {
+        List<Object> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if ((c == '{' || c == '}') && i + 1 < text.length() && text.charAt(i + 1) == c) {
+                literal.append(c);
+                i += 2;
+                continue;
+            }
+            int close = c == '{' ? text.indexOf('}', i + 1) : -1;
+            Predicate.Operand operand = close < 0 ? null : operand(text.substring(i + 1, close).trim(), symbols);
+            if (operand == null) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (literal.length() > 0) segments.add(symbols.literal(literal.toString()));
+            literal.setLength(0);
+            segments.add(operand);
+            i = close + 1;
+        }
+        if (literal.length() > 0 || segments.isEmpty()) segments.add(symbols.literal(literal.toString()));
+        return new ResponseTemplate(segments.toArray(), text);
+    }
+
+    /**
+     * @return The operand for {@code name} or {@code key(NPC)}, or null if
+     *         the text is neither
+     */
+    private static Predicate.Operand operand(String reference, SymbolTable symbols) {
+        int open = reference.indexOf('(');
+        if (open < 0) return identifier(reference) ? new Predicate.Variable(reference, symbols.variableSlot(reference)) : null;
+        if (!reference.endsWith(")")) return null;
+        String key = reference.substring(0, open).trim();
+        String npc = reference.substring(open + 1, reference.length() - 1).trim();
+        if (!identifier(key) || npc.isEmpty()) return null;
+        return new Predicate.StateRead(symbols.literal(npc), symbols.literal(key), symbols.stateSlot(npc, key));
+    }
+
+    private static boolean identifier(String text) {
+        if (text.isEmpty() || !Character.isLetter(text.charAt(0)) && text.charAt(0) != '_') return false;
+        for (int i = 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the text with the current values of a context.
+     */
+    public void render(Predicate.Context ctx, Appendable out) throws IOException {
+        for (Object segment : segments) {
+            if (segment instanceof String) out.append((String) segment);
+            else appendValue(((Predicate.Operand) segment).value(ctx), out);
+        }
+    }
+
+    public String render(Predicate.Context ctx) {
+        StringBuilder out = new StringBuilder();
+        try {
+            render(ctx, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    private static void appendValue(Object value, Appendable out) throws IOException {
+        if (value == null) return;
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15) {
+                if (out instanceof StringBuilder) ((StringBuilder) out).append((long) d);
+                else out.append(Long.toString((long) d));
+                return;
+            }
+        }
+        out.append(String.valueOf(value));
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
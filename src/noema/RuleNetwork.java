@@ -0,0 +1,287 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental rule matcher in the TREAT style.
+ *
+ * Each comparison in a rule condition becomes an alpha node registered under
+ * the variables and NPC states it reads; a rule's beta node combines alpha
+ * results with the rule's and/or structure. The network itself is immutable
+ * and shared by every session of a program. Per-session results live in a
+ * {@link Memory}: state changes only mark the dependent alpha nodes dirty,
+ * and {@link Memory#propagate()} re-tests those, re-combines the affected
+ * rules and keeps the agenda of activated rules current. The cost of a pass
+ * therefore follows what changed, not rules times facts. A goal against the
+ * fact base reads nothing a session can change, so it is tested once.
+ * {@link Memory#endPass()} reports which rules a pass evaluated and which it
+ * skipped because nothing they read had changed.
+ */
+public class RuleNetwork {
+    private final AST.Rule[] rules;
+    private final Predicate[] conditions;
+    private final Alpha[] alphas;
+    private final int[][] byVariable;
+    private final int[][] byState;
+
+    /**
+     * @param rules Rules in declaration order
+     * @param conditions Compiled condition of each rule
+     * @param symbols Symbol table the conditions were compiled against
+     */
+    public RuleNetwork(List<AST.Rule> rules, List<Predicate> conditions, SymbolTable symbols) {
+        this.rules = rules.toArray(new AST.Rule[0]);
+        this.conditions = new Predicate[rules.size()];
+
+        List<Alpha> alphaList = new ArrayList<>();
+        Map<Integer, List<Integer>> variables = new HashMap<>();
+        Map<Integer, List<Integer>> states = new HashMap<>();
+        for (int i = 0; i < this.conditions.length; i++) {
+            this.conditions[i] = link(conditions.get(i), i, alphaList, variables, states);
+        }
+        this.alphas = alphaList.toArray(new Alpha[0]);
+
+        this.byVariable = new int[symbols.variableCount()][];
+        this.byState = new int[symbols.stateCount()][];
+        variables.forEach((slot, ids) -> byVariable[slot] = toArray(ids));
+        states.forEach((slot, ids) -> byState[slot] = toArray(ids));
+    }
+
+    public Memory newMemory(Predicate.Context ctx) {
+        return new Memory(ctx);
+    }
+
+    public AST.Rule rule(int id) {
+        return rules[id];
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    // --- Network construction ---
+
+    private Predicate link(Predicate p, int rule, List<Alpha> alphaList,
+                           Map<Integer, List<Integer>> variables, Map<Integer, List<Integer>> states) {
+        if (p instanceof Predicate.And) {
+            Predicate.And and = (Predicate.And) p;
+            return new Predicate.And(link(and.left, rule, alphaList, variables, states),
+                    link(and.right, rule, alphaList, variables, states));
+        }
+        if (p instanceof Predicate.Or) {
+            Predicate.Or or = (Predicate.Or) p;
+            return new Predicate.Or(link(or.left, rule, alphaList, variables, states),
+                    link(or.right, rule, alphaList, variables, states));
+        }
+        Alpha alpha = new Alpha(alphaList.size(), p, rule);
+        alphaList.add(alpha);
+        if (p instanceof Predicate.Compare) {
+            register(((Predicate.Compare) p).left, alpha.id, variables, states);
+            register(((Predicate.Compare) p).right, alpha.id, variables, states);
+        } else if (p instanceof Predicate.Says) {
+            register(((Predicate.Says) p).utterance, alpha.id, variables, states);
+        }
+        return alpha;
+    }
+
+    private static void register(Predicate.Operand operand, int alpha,
+                                 Map<Integer, List<Integer>> variables, Map<Integer, List<Integer>> states) {
+        if (operand instanceof Predicate.Variable) {
+            variables.computeIfAbsent(((Predicate.Variable) operand).slot, k -> new ArrayList<>()).add(alpha);
+        } else if (operand instanceof Predicate.StateRead) {
+            states.computeIfAbsent(((Predicate.StateRead) operand).slot, k -> new ArrayList<>()).add(alpha);
+        }
+    }
+
+    private static boolean join(Predicate p, boolean[] values) {
+        if (p instanceof Alpha) return values[((Alpha) p).id];
+        if (p instanceof Predicate.And) {
+            return join(((Predicate.And) p).left, values) && join(((Predicate.And) p).right, values);
+        }
+        Predicate.Or or = (Predicate.Or) p;
+        return join(or.left, values) || join(or.right, values);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+        return result;
+    }
+
+    /**
+     * A comparison inside a rule condition. Its result is held per session
+     * in {@link Memory}, so it is never tested directly.
+     */
+    private static final class Alpha extends Predicate {
+        final int id;
+        final Predicate leaf;
+        final int rule;
+
+        Alpha(int id, Predicate leaf, int rule) {
+            this.id = id;
+            this.leaf = leaf;
+            this.rule = rule;
+        }
+
+        @Override
+        public boolean test(Context ctx, String input) {
+            throw new UnsupportedOperationException("Alpha nodes are read through a RuleNetwork.Memory");
+        }
+    }
+
+    // --- Per-session state ---
+
+    /**
+     * Alpha results, dirty sets and agenda of one session. Not thread-safe.
+     */
+    public final class Memory {
+        private final Predicate.Context ctx;
+        private final boolean[] values = new boolean[alphas.length];
+        private final boolean[] alphaDirty = new boolean[alphas.length];
+        private final int[] dirtyAlphas = new int[alphas.length];
+        private int dirtyAlphaCount;
+        private final boolean[] ruleDirty = new boolean[rules.length];
+        private final int[] dirtyRules = new int[rules.length];
+        private int dirtyRuleCount;
+        private final BitSet agenda = new BitSet(rules.length);
+        private final BitSet evaluated = new BitSet(rules.length);
+        private int tests;
+
+        private Memory(Predicate.Context ctx) {
+            this.ctx = ctx;
+            for (int i = 0; i < alphas.length; i++) markAlpha(i);
+            for (int i = 0; i < rules.length; i++) markRule(i);
+        }
+
+        public void variableChanged(int slot) {
+            int[] ids = slot < byVariable.length ? byVariable[slot] : null;
+            if (ids != null) for (int id : ids) markAlpha(id);
+        }
+
+        public void stateChanged(int slot) {
+            int[] ids = slot < byState.length ? byState[slot] : null;
+            if (ids != null) for (int id : ids) markAlpha(id);
+        }
+
+        /**
+         * Re-test dirty alpha nodes and bring the agenda up to date.
+         */
+        public void propagate() {
+            for (int i = 0; i < dirtyAlphaCount; i++) {
+                int id = dirtyAlphas[i];
+                alphaDirty[id] = false;
+                tests++;
+                evaluated.set(alphas[id].rule);
+                boolean value = alphas[id].leaf.test(ctx, "");
+                if (value != values[id]) {
+                    values[id] = value;
+                    markRule(alphas[id].rule);
+                }
+            }
+            dirtyAlphaCount = 0;
+
+            for (int i = 0; i < dirtyRuleCount; i++) {
+                int id = dirtyRules[i];
+                ruleDirty[id] = false;
+                evaluated.set(id);
+                agenda.set(id, join(conditions[id], values));
+            }
+            dirtyRuleCount = 0;
+        }
+
+        /**
+         * @return The id of the next activated rule at or after {@code from}, or -1
+         */
+        public int nextActivation(int from) {
+            return agenda.nextSetBit(from);
+        }
+
+        /**
+         * @return Whether a rule is on the agenda as of the last propagate
+         */
+        public boolean isActive(int rule) {
+            return agenda.get(rule);
+        }
+
+        /**
+         * Close the current pass: report the rules whose conditions were
+         * evaluated since the previous call, and start counting anew.
+         */
+        public Stats endPass() {
+            Stats stats = new Stats(rules, (BitSet) evaluated.clone(), tests);
+            evaluated.clear();
+            tests = 0;
+            return stats;
+        }
+
+        private void markAlpha(int id) {
+            if (!alphaDirty[id]) {
+                alphaDirty[id] = true;
+                dirtyAlphas[dirtyAlphaCount++] = id;
+            }
+        }
+
+        private void markRule(int id) {
+            if (!ruleDirty[id]) {
+                ruleDirty[id] = true;
+                dirtyRules[dirtyRuleCount++] = id;
+            }
+        }
+    }
+
+    /**
+     * Rules one pass evaluated and skipped. A rule counts as evaluated when
+     * any comparison in its condition was re-tested or its condition was
+     * re-combined; otherwise nothing it reads changed and it was skipped.
+     */
+    public static final class Stats {
+        private final AST.Rule[] rules;
+        private final BitSet evaluated;
+        /** Number of rules evaluated */
+        public final int evaluatedCount;
+        /** Number of rules skipped */
+        public final int skippedCount;
+        /** Number of comparisons re-tested */
+        public final int tests;
+
+        private Stats(AST.Rule[] rules, BitSet evaluated, int tests) {
+            this.rules = rules;
+            this.evaluated = evaluated;
+            this.evaluatedCount = evaluated.cardinality();
+            this.skippedCount = rules.length - evaluatedCount;
+            this.tests = tests;
+        }
+
+        public boolean wasEvaluated(int rule) {
+            return evaluated.get(rule);
+        }
+
+        /**
+         * @return Names of the evaluated rules, in declaration order
+         */
+        public List<String> evaluated() {
+            List<String> names = new ArrayList<>(evaluatedCount);
+            for (int i = evaluated.nextSetBit(0); i >= 0; i = evaluated.nextSetBit(i + 1)) names.add(rules[i].name);
+            return names;
+        }
+
+        /**
+         * @return Names of the skipped rules, in declaration order
+         */
+        public List<String> skipped() {
+            List<String> names = new ArrayList<>(skippedCount);
+            for (int i = evaluated.nextClearBit(0); i < rules.length; i = evaluated.nextClearBit(i + 1)) names.add(rules[i].name);
+            return names;
+        }
+
+        @Override
+        public String toString() {
+            return evaluatedCount + " of " + rules.length + " rules evaluated, " + skippedCount + " skipped, "
+                    + tests + (tests == 1 ? " comparison" : " comparisons") + " tested";
+        }
+    }
+}
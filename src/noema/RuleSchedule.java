@@ -0,0 +1,284 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Compile-time read/write analysis of a program's rules, used to fire
+ * non-conflicting rules concurrently.
+ *
+ * A rule reads the variables and NPC states its condition and action values
+ * refer to, and writes the ones its assignments target. Facts are read
+ * through NPC state fallbacks and never written by rules, so the state slots
+ * cover them. Two rules conflict if one writes a slot the other reads or
+ * writes.
+ *
+ * Rules are grouped into levels: each rule sits one level above the highest
+ * earlier rule (in declaration order) it conflicts with. Rules on the same
+ * level never conflict, and a rule only depends on earlier rules at lower
+ * levels. Firing level by level, with the rules of a level in any order or
+ * in parallel, therefore gives exactly the result of firing in declaration
+ * order.
+ *
+ * Rules are also grouped into strata for running to a fixpoint: a rule
+ * leads to every rule that reads a slot it writes, and each stratum is a
+ * strongly connected component of that graph. Strata come after every
+ * stratum they read from, and otherwise in declaration order, so once a
+ * stratum is done nothing in a later one can change its input.
+ */
+public final class RuleSchedule {
+
+    final int[][] levels;
+    final int[][] readVariables;
+    final int[][] readStates;
+    final int[][] writeVariables;
+    final int[][] writeStates;
+    final int[][] strata;
+    /** Rules reading each slot, variables then NPC states */
+    final int[][] readers;
+
+    RuleSchedule(List<Predicate> conditions, List<CompiledAction[]> actions, SymbolTable symbols) {
+        int n = conditions.size();
+        readVariables = new int[n][];
+        readStates = new int[n][];
+        writeVariables = new int[n][];
+        writeStates = new int[n][];
+
+        int variables = symbols.variableCount();
+        int[] lastWrite = new int[variables + symbols.stateCount()];
+        int[] lastRead = new int[lastWrite.length];
+        Arrays.fill(lastWrite, -1);
+        Arrays.fill(lastRead, -1);
+        int[] levelOf = new int[n];
+        int levelCount = 0;
+
+        for (int rule = 0; rule < n; rule++) {
+            Access access = new Access();
+            access.predicate(conditions.get(rule));
+            for (CompiledAction action : actions.get(rule)) access.action(action);
+            readVariables[rule] = access.readVariables.stream().distinct().mapToInt(Integer::intValue).toArray();
+            readStates[rule] = access.readStates.stream().distinct().mapToInt(Integer::intValue).toArray();
+            writeVariables[rule] = access.writeVariables.stream().distinct().mapToInt(Integer::intValue).toArray();
+            writeStates[rule] = access.writeStates.stream().distinct().mapToInt(Integer::intValue).toArray();
+
+            // Variables and states share one slot space: states follow variables
+            int level = 0;
+            for (int v : readVariables[rule]) level = Math.max(level, lastWrite[v] + 1);
+            for (int s : readStates[rule]) level = Math.max(level, lastWrite[variables + s] + 1);
+            for (int v : writeVariables[rule]) level = Math.max(level, Math.max(lastWrite[v], lastRead[v]) + 1);
+            for (int s : writeStates[rule]) {
+                level = Math.max(level, Math.max(lastWrite[variables + s], lastRead[variables + s]) + 1);
+            }
+
+            levelOf[rule] = level;
+            levelCount = Math.max(levelCount, level + 1);
+            for (int v : readVariables[rule]) lastRead[v] = Math.max(lastRead[v], level);
+            for (int s : readStates[rule]) lastRead[variables + s] = Math.max(lastRead[variables + s], level);
+            for (int v : writeVariables[rule]) lastWrite[v] = level;
+            for (int s : writeStates[rule]) lastWrite[variables + s] = level;
+        }
+
+        int[] sizes = new int[levelCount];
+        for (int rule = 0; rule < n; rule++) sizes[levelOf[rule]]++;
+        levels = new int[levelCount][];
+        for (int l = 0; l < levelCount; l++) levels[l] = new int[sizes[l]];
+        Arrays.fill(sizes, 0);
+        for (int rule = 0; rule < n; rule++) levels[levelOf[rule]][sizes[levelOf[rule]]++] = rule;
+
+        List<List<Integer>> readerLists = new ArrayList<>();
+        for (int i = 0; i < lastWrite.length; i++) readerLists.add(new ArrayList<>());
+        for (int rule = 0; rule < n; rule++) {
+            for (int v : readVariables[rule]) readerLists.get(v).add(rule);
+            for (int st : readStates[rule]) readerLists.get(variables + st).add(rule);
+        }
+        readers = new int[lastWrite.length][];
+        for (int i = 0; i < readers.length; i++) readers[i] = readerLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+        strata = stratify(variables);
+    }
+
+    /**
+     * @return The rules that read a slot written by a rule
+     */
+    private int[] successors(int rule, int variables) {
+        List<Integer> result = new ArrayList<>();
+        for (int v : writeVariables[rule]) for (int reader : readers[v]) result.add(reader);
+        for (int st : writeStates[rule]) for (int reader : readers[variables + st]) result.add(reader);
+        return result.stream().distinct().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Find the strongly connected components (Tarjan's algorithm, without
+     * recursion) and order them topologically, earliest rule first.
+     */
+    private int[][] stratify(int variables) {
+        int n = readVariables.length;
+        int[][] successors = new int[n][];
+        for (int rule = 0; rule < n; rule++) successors[rule] = successors(rule, variables);
+
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] component = new int[n];
+        Arrays.fill(index, -1);
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int top = 0;
+        int[] callStack = new int[n];
+        int[] edge = new int[n];
+        int counter = 0;
+        int components = 0;
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) continue;
+            int depth = 0;
+            callStack[0] = root;
+            index[root] = low[root] = counter++;
+            stack[top++] = root;
+            onStack[root] = true;
+            edge[root] = 0;
+            while (depth >= 0) {
+                int rule = callStack[depth];
+                if (edge[rule] < successors[rule].length) {
+                    int next = successors[rule][edge[rule]++];
+                    if (index[next] < 0) {
+                        index[next] = low[next] = counter++;
+                        stack[top++] = next;
+                        onStack[next] = true;
+                        edge[next] = 0;
+                        callStack[++depth] = next;
+                    } else if (onStack[next]) {
+                        low[rule] = Math.min(low[rule], index[next]);
+                    }
+                    continue;
+                }
+                if (low[rule] == index[rule]) {
+                    int member;
+                    do {
+                        member = stack[--top];
+                        onStack[member] = false;
+                        component[member] = components;
+                    } while (member != rule);
+                    components++;
+                }
+                if (--depth >= 0) low[callStack[depth]] = Math.min(low[callStack[depth]], low[rule]);
+            }
+        }
+
+        List<List<Integer>> members = new ArrayList<>();
+        for (int c = 0; c < components; c++) members.add(new ArrayList<>());
+        for (int rule = 0; rule < n; rule++) members.get(component[rule]).add(rule);
+        int[] incoming = new int[components];
+        List<List<Integer>> edges = new ArrayList<>();
+        for (int c = 0; c < components; c++) edges.add(new ArrayList<>());
+        for (int rule = 0; rule < n; rule++) {
+            for (int next : successors[rule]) {
+                if (component[next] != component[rule]) {
+                    edges.get(component[rule]).add(component[next]);
+                    incoming[component[next]]++;
+                }
+            }
+        }
+        // Kahn's algorithm, taking the ready component with the earliest rule
+        PriorityQueue<Integer> ready = new PriorityQueue<>((a, b) -> members.get(a).get(0) - members.get(b).get(0));
+        for (int c = 0; c < components; c++) {
+            if (incoming[c] == 0) ready.add(c);
+        }
+        int[][] result = new int[components][];
+        int count = 0;
+        while (!ready.isEmpty()) {
+            int c = ready.poll();
+            result[count++] = members.get(c).stream().mapToInt(Integer::intValue).toArray();
+            for (int next : edges.get(c)) {
+                if (--incoming[next] == 0) ready.add(next);
+            }
+        }
+        return result;
+    }
+
+    public int levelCount() {
+        return levels.length;
+    }
+
+    /**
+     * @return Ids of the rules on a level, in declaration order
+     */
+    public int[] level(int level) {
+        return levels[level].clone();
+    }
+
+    public int strataCount() {
+        return strata.length;
+    }
+
+    /**
+     * @return Ids of the rules in a stratum, in declaration order
+     */
+    public int[] stratum(int stratum) {
+        return strata[stratum].clone();
+    }
+
+    /** @return Variable slots a rule reads */
+    public int[] readVariables(int rule) {
+        return readVariables[rule].clone();
+    }
+
+    /** @return NPC state slots a rule reads */
+    public int[] readStates(int rule) {
+        return readStates[rule].clone();
+    }
+
+    /** @return Variable slots a rule assigns */
+    public int[] writeVariables(int rule) {
+        return writeVariables[rule].clone();
+    }
+
+    /** @return NPC state slots a rule assigns */
+    public int[] writeStates(int rule) {
+        return writeStates[rule].clone();
+    }
+
+    /**
+     * Collects the slots a rule touches.
+     */
+    private static final class Access {
+        final List<Integer> readVariables = new ArrayList<>();
+        final List<Integer> readStates = new ArrayList<>();
+        final List<Integer> writeVariables = new ArrayList<>();
+        final List<Integer> writeStates = new ArrayList<>();
+
+        void predicate(Predicate p) {
+            if (p instanceof Predicate.And) {
+                predicate(((Predicate.And) p).left);
+                predicate(((Predicate.And) p).right);
+            } else if (p instanceof Predicate.Or) {
+                predicate(((Predicate.Or) p).left);
+                predicate(((Predicate.Or) p).right);
+            } else if (p instanceof Predicate.Says) {
+                operand(((Predicate.Says) p).utterance);
+            } else if (p instanceof Predicate.Compare) {
+                operand(((Predicate.Compare) p).left);
+                operand(((Predicate.Compare) p).right);
+            }
+        }
+
+        void operand(Predicate.Operand operand) {
+            if (operand instanceof Predicate.Variable) {
+                readVariables.add(((Predicate.Variable) operand).slot);
+            } else if (operand instanceof Predicate.StateRead) {
+                readStates.add(((Predicate.StateRead) operand).slot);
+            }
+        }
+
+        void action(CompiledAction action) {
+            if (action instanceof CompiledAction.SetVariable) {
+                CompiledAction.SetVariable set = (CompiledAction.SetVariable) action;
+                operand(set.value);
+                writeVariables.add(set.slot);
+            } else if (action instanceof CompiledAction.SetState) {
+                CompiledAction.SetState set = (CompiledAction.SetState) action;
+                operand(set.value);
+                writeStates.add(set.slot);
+            }
+        }
+    }
+}
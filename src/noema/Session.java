@@ -0,0 +1,668 @@
+package noema;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Per-player state on top of a shared {@link CompiledProgram}.
+ *
+ * A session stores only what its player changed: assigned variables, NPC
+ * state and the active scene. Changes live in arrays indexed by the slots of
+ * the program's {@link SymbolTable}; a null slot means unchanged, and reads
+ * fall through to the program's initial state. Names the program never
+ * mentions can still be set through the string API and are kept in side
+ * maps. For very large NPC populations, NPC state can live in an
+ * {@link OffHeapStates} store instead. Sessions are not thread-safe, but any
+ * number of sessions of the same program can run on different threads
+ * without locks.
+ */
+public class Session implements Predicate.Context {
+
+    private CompiledProgram program;
+    private Object[] variables;
+    private Object[] states;
+    private final Map<String, Object> extraVariables = new HashMap<>();
+    private final Map<String, Map<String, Object>> extraStates = new HashMap<>();
+    private CompiledProgram.Scene scene = null;
+    private RuleNetwork.Memory rules = null;
+    private RuleNetwork.Stats rulePass = null;
+    private TriggerIndex.Memory guards = null;
+    private Metrics metrics = null;
+    private Metrics.SceneMetrics sceneMetrics = null;
+    private Metrics.RuleMetrics[] ruleMetrics = null;
+    private boolean deferChanges = false;
+    /** Activated rules of the level being fired in parallel, reused across passes */
+    private int[] active = null;
+    private double fuzzyThreshold = 0;
+    private Journal journal = null;
+    private OffHeapStates offHeap = null;
+    /** Off-heap NPC id and key column of each of the program's state slots */
+    private int[] offHeapNpcs = null;
+    private int[] offHeapColumns = null;
+
+    public Session(CompiledProgram program) {
+        this.program = program;
+        this.variables = new Object[program.symbols().variableCount()];
+        this.states = new Object[program.symbols().stateCount()];
+    }
+
+    public CompiledProgram getProgram() {
+        return program;
+    }
+
+    /**
+     * Switch to a new version of the program, keeping this session's state.
+     * State is carried over by name, since slots may differ between versions.
+     */
+    public void setProgram(CompiledProgram program) {
+        SymbolTable from = this.program.symbols();
+        SymbolTable to = program.symbols();
+        Object[] newVariables = new Object[to.variableCount()];
+        Object[] newStates = new Object[to.stateCount()];
+
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] != null) extraVariables.put(from.variableName(i), variables[i]);
+        }
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != null) {
+                extraStates.computeIfAbsent(from.stateNpc(i), k -> new HashMap<>()).put(from.stateKey(i), states[i]);
+            }
+        }
+        for (Iterator<Map.Entry<String, Object>> it = extraVariables.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Object> e = it.next();
+            int slot = to.findVariable(e.getKey());
+            if (slot >= 0) {
+                newVariables[slot] = e.getValue();
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<String, Map<String, Object>>> it = extraStates.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Map<String, Object>> npc = it.next();
+            for (Iterator<Map.Entry<String, Object>> keys = npc.getValue().entrySet().iterator(); keys.hasNext(); ) {
+                Map.Entry<String, Object> e = keys.next();
+                int slot = to.findState(npc.getKey(), e.getKey());
+                if (slot >= 0) {
+                    newStates[slot] = e.getValue();
+                    keys.remove();
+                }
+            }
+            if (npc.getValue().isEmpty()) it.remove();
+        }
+
+        this.program = program;
+        this.variables = newVariables;
+        this.states = newStates;
+        this.rules = null;
+        this.rulePass = null;
+        this.guards = null;
+        this.sceneMetrics = null;
+        this.ruleMetrics = null;
+        if (scene != null) scene = program.scene(scene.name);
+        if (offHeap != null) resolveOffHeapSlots();
+    }
+
+    /**
+     * Keep this session's NPC state in an off-heap store from now on. State
+     * already set moves into it; scripts see no difference.
+     */
+    public void setOffHeapStates(OffHeapStates store) {
+        if (offHeap != null) throw new IllegalStateException("Session already uses off-heap states");
+        SymbolTable symbols = program.symbols();
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != null) store.set(symbols.stateNpc(i), symbols.stateKey(i), states[i]);
+        }
+        for (Map.Entry<String, Map<String, Object>> npc : extraStates.entrySet()) {
+            for (Map.Entry<String, Object> e : npc.getValue().entrySet()) store.set(npc.getKey(), e.getKey(), e.getValue());
+        }
+        states = new Object[states.length];
+        extraStates.clear();
+        offHeap = store;
+        resolveOffHeapSlots();
+    }
+
+    public OffHeapStates getOffHeapStates() {
+        return offHeap;
+    }
+
+    /**
+     * Give every state slot of the program its NPC and column up front, so
+     * rules firing in parallel never add NPCs or keys to the store.
+     */
+    private void resolveOffHeapSlots() {
+        SymbolTable symbols = program.symbols();
+        offHeapNpcs = new int[symbols.stateCount()];
+        offHeapColumns = new int[symbols.stateCount()];
+        for (int i = 0; i < offHeapNpcs.length; i++) {
+            offHeapColumns[i] = offHeap.column(symbols.stateKey(i), true);
+            offHeapNpcs[i] = offHeap.npc(symbols.stateNpc(i), true);
+        }
+    }
+
+    /**
+     * Record this session's activity in a metrics registry, or stop
+     * recording with null.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.sceneMetrics = null;
+        this.ruleMetrics = null;
+    }
+
+    /**
+     * Accept input that closely resembles a trigger's utterance when nothing
+     * matches exactly, for example with a typo.
+     * @param threshold Lowest {@link FuzzyIndex} similarity accepted, from 0
+     *                  to 1; 0 turns approximate matching off
+     */
+    public void setFuzzyThreshold(double threshold) {
+        if (threshold < 0 || threshold > 1) throw new IllegalArgumentException("Threshold must be 0 to 1: " + threshold);
+        this.fuzzyThreshold = threshold;
+    }
+
+    /**
+     * Log every change of this session's state to a journal from now on, or
+     * stop with null. To resume a session after a crash, call
+     * {@link Journal#replay(Session)} on a new session first.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public boolean setScene(String name) {
+        scene = program.scene(name);
+        guards = null;
+        if (scene == null) System.err.println("Scene not found: " + name);
+        else if (journal != null) journal.scene(scene.name);
+        return scene != null;
+    }
+
+    public String getSceneName() {
+        return scene == null ? null : scene.name;
+    }
+
+    public String processInput(String input) {
+        StringBuilder response = new StringBuilder();
+        try {
+            processInput(input, response);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return response.toString();
+    }
+
+    /**
+     * Handle one line of input, writing the response straight to out
+     * (lines separated by {@code \n}, no trailing newline) instead of
+     * building a string. A {@link java.nio.CharBuffer} works too.
+     * @return Index of the trigger that fired in the scene, or -1 if none
+     *         did and a fallback message was written
+     * @throws IOException If out fails
+     */
+    public int processInput(String input, Appendable out) throws IOException {
+        if (scene == null) {
+            out.append("No active scene.");
+            return -1;
+        }
+        FlightEvents.Input event = new FlightEvents.Input();
+        if (event.isEnabled()) event.begin();
+        Metrics.SceneMetrics recorder = sceneMetrics();
+        long start = recorder == null ? 0 : System.nanoTime();
+        String normalized = TriggerIndex.normalize(input);
+        if (guards == null) guards = scene.index.newMemory(this);
+        int match = scene.index.match(guards, normalized);
+        if (match < 0 && fuzzyThreshold > 0) match = scene.index.matchApproximate(guards, normalized, fuzzyThreshold);
+        if (match < 0) {
+            if (recorder != null) recorder.miss(System.nanoTime() - start);
+            commit(event, match);
+            compactJournal();
+            out.append("I don't know how to respond to that.");
+            return -1;
+        }
+        boolean written = false;
+        for (CompiledAction action : scene.actions[match]) {
+            if (written && action instanceof CompiledAction.Response) out.append('\n');
+            written |= action.respond(this, out);
+        }
+        if (recorder != null) recorder.match(match, System.nanoTime() - start);
+        commit(event, match);
+        compactJournal();
+        return match;
+    }
+
+    private void commit(FlightEvents.Input event, int trigger) {
+        if (!event.isEnabled()) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.scene = scene.name;
+            event.trigger = trigger;
+            event.commit();
+        }
+    }
+
+    private Metrics.SceneMetrics sceneMetrics() {
+        if (metrics == null) return null;
+        if (sceneMetrics == null || !sceneMetrics.name.equals(scene.name)
+                || sceneMetrics.triggers.length() != scene.conditions.length) {
+            sceneMetrics = metrics.scene(scene.name, scene.conditions.length);
+        }
+        return sceneMetrics;
+    }
+
+    /**
+     * Fire every activated rule once, in declaration order. Changes made by a
+     * rule's actions are propagated before the next activation is taken.
+     * With metrics enabled, each fired rule and the whole pass are timed.
+     */
+    public void evaluateRules() {
+        long passStart = metrics == null ? 0 : System.nanoTime();
+        if (metrics != null) resolveRuleMetrics();
+        RuleNetwork.Memory memory = memory();
+        memory.propagate();
+        for (int i = memory.nextActivation(0); i >= 0; i = memory.nextActivation(i + 1)) {
+            fire(i);
+            memory.propagate();
+        }
+        rulePass = memory.endPass();
+        if (metrics != null) metrics.rulePass(System.nanoTime() - passStart);
+        compactJournal();
+    }
+
+    /**
+     * {@link #evaluateRules()} with non-conflicting rules fired in parallel.
+     *
+     * Rules are fired level by level of the program's {@link RuleSchedule};
+     * the activated rules of a level touch disjoint state, so they run
+     * concurrently on the pool, and their changes are propagated once the
+     * level is done. The result is the same as {@link #evaluateRules()},
+     * whatever the pool's parallelism.
+     */
+    public void evaluateRules(ForkJoinPool pool) {
+        long passStart = metrics == null ? 0 : System.nanoTime();
+        if (metrics != null) resolveRuleMetrics();
+        RuleSchedule schedule = program.schedule();
+        RuleNetwork.Memory memory = memory();
+        memory.propagate();
+        int[] active = this.active;
+        if (active == null || active.length != program.network().size()) {
+            this.active = active = new int[program.network().size()];
+        }
+        for (int[] level : schedule.levels) {
+            int count = 0;
+            for (int rule : level) {
+                if (memory.isActive(rule)) active[count++] = rule;
+            }
+            if (count == 0) continue;
+
+            deferChanges = true;
+            try {
+                if (count == 1) {
+                    fire(active[0]);
+                } else {
+                    int grain = Math.max(1, count / (pool.getParallelism() * 4));
+                    pool.invoke(new FireRules(active, 0, count, grain));
+                }
+            } finally {
+                deferChanges = false;
+            }
+
+            for (int i = 0; i < count; i++) {
+                for (int slot : schedule.writeVariables[active[i]]) variableChanged(slot);
+                for (int slot : schedule.writeStates[active[i]]) stateChanged(slot);
+            }
+            memory.propagate();
+        }
+        rulePass = memory.endPass();
+        if (metrics != null) metrics.rulePass(System.nanoTime() - passStart);
+        compactJournal();
+    }
+
+    /**
+     * Fire rules until none has anything left to change, stratum by stratum
+     * of the program's {@link RuleSchedule}, with at most 1000 rounds per
+     * stratum.
+     * @see #evaluateRulesToFixpoint(int)
+     */
+    public Fixpoint evaluateRulesToFixpoint() {
+        return evaluateRulesToFixpoint(1000);
+    }
+
+    /**
+     * Fire rules until none has anything left to change, so a rule enabled
+     * by a later rule's changes fires too.
+     *
+     * Strata run in order, each to its own fixpoint. The first round of a
+     * stratum fires its activated rules in declaration order; each later
+     * round considers only the rules reading a value the previous round
+     * changed, and fires those still activated. Assigning a value a slot
+     * already has is not a change. A stratum whose rules keep changing each
+     * other's input stops after {@code maxRounds} rounds.
+     */
+    public Fixpoint evaluateRulesToFixpoint(int maxRounds) {
+        long passStart = metrics == null ? 0 : System.nanoTime();
+        if (metrics != null) resolveRuleMetrics();
+        RuleSchedule schedule = program.schedule();
+        int variableCount = program.symbols().variableCount();
+        RuleNetwork.Memory memory = memory();
+        memory.propagate();
+
+        int rounds = 0;
+        int fired = 0;
+        int changes = 0;
+        boolean reached = true;
+        boolean[] queued = new boolean[program.network().size()];
+        int[] next = new int[queued.length];
+        for (int[] stratum : schedule.strata) {
+            int[] round = stratum;
+            int count = stratum.length;
+            for (int r = 0; count > 0; r++) {
+                if (r == maxRounds) {
+                    reached = false;
+                    break;
+                }
+                rounds++;
+                int nextCount = 0;
+                for (int i = 0; i < count; i++) {
+                    int rule = round[i];
+                    if (!memory.isActive(rule)) continue;
+
+                    FlightEvents.RuleFired event = new FlightEvents.RuleFired();
+                    if (event.isEnabled()) event.begin();
+                    long start = ruleMetrics == null ? 0 : System.nanoTime();
+                    boolean changed = false;
+                    for (CompiledAction action : program.ruleActions(rule)) {
+                        if (action.update(this)) {
+                            changed = true;
+                            changes++;
+                        }
+                    }
+                    memory.propagate();
+                    fired++;
+                    if (ruleMetrics != null) ruleMetrics[rule].fire(System.nanoTime() - start);
+                    commit(event, rule);
+                    if (!changed) continue;
+
+                    // Later strata start from all their rules; queue the readers in this one
+                    for (int slot : schedule.writeVariables[rule]) nextCount = queue(schedule.readers[slot], stratum, queued, next, nextCount);
+                    for (int slot : schedule.writeStates[rule]) {
+                        nextCount = queue(schedule.readers[variableCount + slot], stratum, queued, next, nextCount);
+                    }
+                }
+                // queued marks membership of the next round only, so a rule runs once per round
+                round = Arrays.copyOf(next, nextCount);
+                Arrays.sort(round);
+                count = nextCount;
+                for (int i = 0; i < count; i++) queued[round[i]] = false;
+            }
+        }
+        rulePass = memory.endPass();
+        if (metrics != null) metrics.rulePass(System.nanoTime() - passStart);
+        compactJournal();
+        return new Fixpoint(rounds, fired, changes, reached);
+    }
+
+    /**
+     * Queue the readers of a changed slot that belong to a stratum.
+     * @return The new number of queued rules
+     */
+    private static int queue(int[] readers, int[] stratum, boolean[] queued, int[] next, int count) {
+        for (int reader : readers) {
+            if (!queued[reader] && Arrays.binarySearch(stratum, reader) >= 0) {
+                queued[reader] = true;
+                next[count++] = reader;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * What a run of {@link #evaluateRulesToFixpoint(int)} did.
+     */
+    public static final class Fixpoint {
+        /** Rounds over all strata */
+        public final int rounds;
+        /** Rules fired, counting a rule once per round */
+        public final int fired;
+        /** Values changed by the fired rules */
+        public final int changes;
+        /** False if a stratum was stopped at the round limit */
+        public final boolean reached;
+
+        Fixpoint(int rounds, int fired, int changes, boolean reached) {
+            this.rounds = rounds;
+            this.fired = fired;
+            this.changes = changes;
+            this.reached = reached;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rounds, %d rules fired, %d changes%s", rounds, fired, changes,
+                    reached ? "" : ", stopped before the fixpoint");
+        }
+    }
+
+    /**
+     * Snapshot the journal if it is due, between inputs and rule passes
+     * when no rule is firing.
+     */
+    private void compactJournal() {
+        if (journal == null || !journal.compactionDue()) return;
+        try {
+            journal.snapshot(this);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write every value this session changed, and its scene, to a journal
+     * snapshot.
+     */
+    void writeState(Journal.Records out) {
+        SymbolTable symbols = program.symbols();
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] != null) out.variable(symbols.variableName(i), variables[i]);
+        }
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != null) out.state(symbols.stateNpc(i), symbols.stateKey(i), states[i]);
+        }
+        for (Map.Entry<String, Object> e : extraVariables.entrySet()) out.variable(e.getKey(), e.getValue());
+        for (Map.Entry<String, Map<String, Object>> npc : extraStates.entrySet()) {
+            for (Map.Entry<String, Object> e : npc.getValue().entrySet()) out.state(npc.getKey(), e.getKey(), e.getValue());
+        }
+        if (offHeap != null) offHeap.forEach(out::state);
+        if (scene != null) out.scene(scene.name);
+    }
+
+    /**
+     * Run one rule's actions, recording metrics and events if enabled.
+     * Shared by the sequential and the parallel pass; the parallel one calls
+     * it concurrently for rules that do not conflict.
+     */
+    private void fire(int rule) {
+        FlightEvents.RuleFired event = new FlightEvents.RuleFired();
+        if (event.isEnabled()) event.begin();
+        long start = ruleMetrics == null ? 0 : System.nanoTime();
+        for (CompiledAction action : program.ruleActions(rule)) {
+            action.execute(this);
+        }
+        if (ruleMetrics != null) ruleMetrics[rule].fire(System.nanoTime() - start);
+        commit(event, rule);
+    }
+
+    private final class FireRules extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] rules;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        FireRules(int[] rules, int from, int to, int grain) {
+            this.rules = rules;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) fire(rules[i]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FireRules(rules, from, mid, grain), new FireRules(rules, mid, to, grain));
+        }
+    }
+
+    private void resolveRuleMetrics() {
+        if (ruleMetrics != null) return;
+        Metrics.RuleMetrics[] resolved = new Metrics.RuleMetrics[program.network().size()];
+        for (int i = 0; i < resolved.length; i++) resolved[i] = metrics.rule(program.network().rule(i).name);
+        ruleMetrics = resolved;
+    }
+
+    private void commit(FlightEvents.RuleFired event, int rule) {
+        if (!event.isEnabled()) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rule = program.network().rule(rule).name;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return Which rules the last rule pass evaluated and which it skipped,
+     *         or null if no pass ran since the program was set
+     */
+    public RuleNetwork.Stats getRuleStats() {
+        return rulePass;
+    }
+
+    /**
+     * @return Guard tests run and answered from kept results since the
+     *         current scene was entered, or null if no input reached it
+     */
+    public TriggerIndex.Stats getGuardStats() {
+        return guards == null ? null : guards.stats();
+    }
+
+    private RuleNetwork.Memory memory() {
+        if (rules == null) rules = program.network().newMemory(this);
+        return rules;
+    }
+
+    // --- State access by slot ---
+
+    @Override
+    public Object getVariable(int slot) {
+        Object value = variables[slot];
+        return value != null ? value : program.variable(slot);
+    }
+
+    public void setVariable(int slot, Object value) {
+        variables[slot] = value;
+        if (journal != null) journal.variable(program.symbols().variableName(slot), value);
+        if (!deferChanges) variableChanged(slot);
+    }
+
+    /**
+     * NPC state set in this session wins, then the program's initial state,
+     * which already includes the value of the fact {@code key(npc, value)}.
+     */
+    @Override
+    public Object getNPCState(int slot) {
+        Object value = offHeap == null ? states[slot] : offHeap.get(offHeapNpcs[slot], offHeapColumns[slot]);
+        if (value == null) value = program.npcState(slot);
+        return value == null ? "neutral" : value;
+    }
+
+    public void setNPCState(int slot, Object value) {
+        if (offHeap == null) states[slot] = value;
+        else offHeap.set(offHeapNpcs[slot], offHeapColumns[slot], value);
+        if (journal != null) journal.state(program.symbols().stateNpc(slot), program.symbols().stateKey(slot), value);
+        if (!deferChanges) stateChanged(slot);
+    }
+
+    /**
+     * Mark the rule conditions and scene guards reading a slot for
+     * re-evaluation; nothing else is touched.
+     */
+    private void variableChanged(int slot) {
+        if (rules != null) rules.variableChanged(slot);
+        if (guards != null) guards.variableChanged(slot);
+    }
+
+    private void stateChanged(int slot) {
+        if (rules != null) rules.stateChanged(slot);
+        if (guards != null) guards.stateChanged(slot);
+    }
+
+    @Override
+    public QueryEngine getQueryEngine() {
+        return program.queries();
+    }
+
+    // --- State access by name ---
+
+    public Object getVariable(String name) {
+        int slot = program.symbols().findVariable(name);
+        if (slot >= 0) return getVariable(slot);
+        return extraVariables.get(name);
+    }
+
+    public Set<String> getVariableNames() {
+        Set<String> names = new HashSet<>(program.variableNames());
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i] != null) names.add(program.symbols().variableName(i));
+        }
+        names.addAll(extraVariables.keySet());
+        return names;
+    }
+
+    public void setVariable(String name, Object value) {
+        int slot = program.symbols().findVariable(name);
+        if (slot >= 0) setVariable(slot, value);
+        else {
+            extraVariables.put(name, value);
+            if (journal != null) journal.variable(name, value);
+        }
+    }
+
+    public Object getNPCState(String npc, String key) {
+        int slot = program.symbols().findState(npc, key);
+        if (slot >= 0) return getNPCState(slot);
+        Object value;
+        if (offHeap != null) {
+            value = offHeap.get(npc, key);
+        } else {
+            Map<String, Object> state = extraStates.get(npc);
+            value = state == null ? null : state.get(key);
+        }
+        if (value == null) value = program.npcState(npc, key);
+        return value == null ? "neutral" : value;
+    }
+
+    public void setNPCState(String npc, String key, Object value) {
+        int slot = program.symbols().findState(npc, key);
+        if (slot >= 0) setNPCState(slot, value);
+        else {
+            if (offHeap != null) offHeap.set(npc, key, value);
+            else extraStates.computeIfAbsent(npc, k -> new HashMap<>()).put(key, value);
+            if (journal != null) journal.state(npc, key, value);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package noema;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line-delimited TCP server hosting one {@link Session} per player.
+ *
+ * Each connection is served on its own thread: a virtual thread when the
+ * runtime provides them, a pooled platform thread otherwise. Commands are
+ * one per line and every reply is a single {@code OK ...} or {@code ERR ...}
+ * line, with newlines in responses escaped as {@code \n}:
+ *
+ * <pre>
+ *   NEW                 create a session          -> OK &lt;session id&gt;
+ *   RESUME &lt;id&gt;         attach to a session      -> OK &lt;session id&gt;
+ *   SCENE &lt;name&gt;        switch scene             -> OK &lt;name&gt;
+ *   SAY &lt;text&gt;          process player input     -> OK &lt;response&gt;
+ *   RULES               evaluate rules           -> OK
+ *   QUIT                close the connection     -> OK bye
+ * </pre>
+ *
+ * Back-pressure: at most {@code maxConnections} connections are served; the
+ * accept loop waits for a free slot, leaving further clients in the listen
+ * backlog. Connections idle longer than the timeout are closed, and sessions
+ * no connection uses that are untouched for that long are discarded.
+ *
+ * The program can be swapped while serving with {@link #setProgram}; each
+ * session moves to the new version, keeping its state, on its next command.
+ *
+ * With a journal directory, every session logs its changes to its own
+ * {@link Journal}, and the journals are flushed together every few
+ * milliseconds on a thread of their own. After a restart, {@code RESUME} of
+ * a session the server doesn't know restores it from its journal.
+ */
+public class SessionServer implements AutoCloseable {
+
+    private volatile CompiledProgram program;
+    private final ServerSocket socket;
+    private final Semaphore slots;
+    private final long timeoutMillis;
+    private final ExecutorService executor = newThreadPerTaskExecutor();
+    private final ScheduledExecutorService reaper = newScheduler("noema-reaper");
+    /** Group commit of the journals, apart from the reaper so expiry never delays it */
+    private final ScheduledExecutorService flusher = newScheduler("noema-journal-flush");
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private volatile Metrics metrics = null;
+    private volatile Path journals = null;
+    /** Group commit interval of the session journals */
+    private static final long JOURNAL_FLUSH_MILLIS = 10;
+    /** How long close waits for background work and connections to finish */
+    private static final long SHUTDOWN_MILLIS = 5000;
+
+    /**
+     * @param program Program every session runs
+     * @param port TCP port, or 0 for any free port
+     * @param maxConnections Connections served at once
+     * @param timeout Idle timeout for connections and sessions
+     */
+    public SessionServer(CompiledProgram program, int port, int maxConnections, Duration timeout) throws IOException {
+        this.program = program;
+        this.socket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        this.slots = new Semaphore(maxConnections);
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Record the activity of sessions created from now on, or stop with null.
+     */
+    public SessionServer setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Keep a journal of each session in a subdirectory named after its id,
+     * or stop journaling new sessions with null.
+     */
+    public SessionServer setJournalDirectory(Path directory) {
+        this.journals = directory;
+        return this;
+    }
+
+    /**
+     * Serve a new version of the program, such as one reloaded by a
+     * {@link ProgramWatcher}. New sessions start on it and existing ones
+     * switch before their next command.
+     */
+    public SessionServer setProgram(CompiledProgram program) {
+        this.program = program;
+        return this;
+    }
+
+    /**
+     * Start accepting connections on a background thread.
+     */
+    public SessionServer start() {
+        Thread acceptor = new Thread(this::acceptLoop, "noema-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        long period = Math.max(1, timeoutMillis / 2);
+        reaper.scheduleAtFixedRate(this::expireSessions, period, period, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::flushJournals, JOURNAL_FLUSH_MILLIS, JOURNAL_FLUSH_MILLIS,
+                TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stop serving: close the listening socket and open connections, let
+     * the background tasks and running commands finish, then close every
+     * journal. Threads are never interrupted, since an interrupt during a
+     * journal write or fsync would close its file for good.
+     * @throws IOException The first journal that failed to close; the others
+     *         are closed anyway and their failures suppressed
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        socket.close();
+        reaper.shutdown();
+        flusher.shutdown();
+        executor.shutdown();
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        boolean interrupted = false;
+        for (ExecutorService service : new ExecutorService[] { reaper, flusher, executor }) {
+            try {
+                service.awaitTermination(SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        IOException failure = null;
+        for (Entry entry : sessions.values()) {
+            if (entry.journal == null) continue;
+            try {
+                entry.journal.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                slots.acquire();
+                Socket client;
+                try {
+                    client = socket.accept();
+                } catch (IOException e) {
+                    slots.release();
+                    throw e;
+                }
+                clients.add(client);
+                executor.execute(() -> {
+                    try {
+                        serve(client);
+                    } finally {
+                        clients.remove(client);
+                        slots.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                if (running) System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        Entry current = null;
+        try (Socket s = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            s.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMillis));
+            StringBuilder reply = new StringBuilder();
+            char[] buffer = new char[256];
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                String argument = space < 0 ? "" : line.substring(space + 1);
+
+                if (command.equals("QUIT")) {
+                    out.println("OK bye");
+                    return;
+                } else if (command.equals("NEW")) {
+                    String id = UUID.randomUUID().toString();
+                    Session session = program.newSession();
+                    session.setMetrics(metrics);
+                    Path directory = journals;
+                    Journal journal = null;
+                    if (directory != null) {
+                        try {
+                            journal = Journal.open(directory.resolve(id));
+                        } catch (IOException e) {
+                            System.err.println("Journal of " + id + " failed: " + e.getMessage());
+                            out.println("ERR journal unavailable");
+                            continue;
+                        }
+                        session.setJournal(journal);
+                    }
+                    Entry entry = new Entry(session, journal);
+                    entry.attach();
+                    sessions.put(id, entry);
+                    if (current != null) current.detach();
+                    current = entry;
+                    out.println("OK " + id);
+                } else if (command.equals("RESUME")) {
+                    Entry entry = sessions.get(argument.trim());
+                    if (entry == null) entry = restore(argument.trim());
+                    // An entry that expired meanwhile can't be attached
+                    if (entry == null || !entry.attach()) {
+                        out.println("ERR unknown session");
+                    } else {
+                        if (current != null) current.detach();
+                        current = entry;
+                        out.println("OK " + argument.trim());
+                    }
+                } else if (current == null) {
+                    out.println("ERR no session");
+                } else {
+                    // Built under the session lock, written after it is released
+                    reply.setLength(0);
+                    execute(current, command, argument, reply);
+                    if (buffer.length < reply.length()) buffer = new char[reply.capacity()];
+                    reply.getChars(0, reply.length(), buffer, 0);
+                    out.write(buffer, 0, reply.length());
+                    out.println();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle connection; the session stays available for RESUME.
+        } catch (IOException e) {
+            if (running) System.err.println("Connection failed: " + e.getMessage());
+        } finally {
+            if (current != null) current.detach();
+        }
+    }
+
+    private void execute(Entry entry, String command, String argument, StringBuilder reply) {
+        synchronized (entry) {
+            entry.touch();
+            Session session = entry.session;
+            CompiledProgram latest = program;
+            if (session.getProgram() != latest) session.setProgram(latest);
+            switch (command) {
+                case "SCENE":
+                    reply.append(session.setScene(argument) ? "OK " + argument : "ERR scene not found");
+                    break;
+                case "SAY":
+                    reply.append("OK ");
+                    int start = reply.length();
+                    try {
+                        session.processInput(argument, reply);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    escape(reply, start);
+                    break;
+                case "RULES":
+                    session.evaluateRules();
+                    reply.append("OK");
+                    break;
+                default:
+                    reply.append("ERR unknown command");
+            }
+        }
+    }
+
+    /**
+     * @return The session restored from its journal, or null if it has none
+     */
+    private Entry restore(String id) {
+        Path directory = journals;
+        if (directory == null) return null;
+        try {
+            UUID.fromString(id);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!Files.isDirectory(directory.resolve(id))) return null;
+        return sessions.computeIfAbsent(id, key -> {
+            try {
+                Journal journal = Journal.open(directory.resolve(key));
+                Session session = program.newSession();
+                session.setMetrics(metrics);
+                journal.replay(session);
+                session.setJournal(journal);
+                return new Entry(session, journal);
+            } catch (IOException e) {
+                System.err.println("Restoring " + key + " failed: " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    private void expireSessions() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = sessions.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (now - entry.lastUsed <= timeoutMillis) continue;
+            synchronized (entry) {
+                // A session some connection still uses stays, however long it is idle
+                if (entry.attached > 0 || now - entry.lastUsed <= timeoutMillis) continue;
+                entry.closed = true;
+                it.remove();
+                if (entry.journal == null) continue;
+                try {
+                    entry.journal.delete();
+                } catch (IOException e) {
+                    System.err.println("Deleting a journal failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void flushJournals() {
+        for (Entry entry : sessions.values()) {
+            if (entry.journal == null) continue;
+            try {
+                entry.journal.flush();
+            } catch (IOException e) {
+                System.err.println("Journal flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Escape backslashes and newlines of a reply in place, from start on.
+     */
+    static void escape(StringBuilder reply, int start) {
+        for (int i = start; i < reply.length(); i++) {
+            char c = reply.charAt(i);
+            if (c == '\\') {
+                reply.insert(++i, '\\');
+            } else if (c == '\n') {
+                reply.setCharAt(i, '\\');
+                reply.insert(++i, 'n');
+            }
+        }
+    }
+
+    private static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * One virtual thread per task where available (Java 21+), otherwise a
+     * cached pool of platform threads.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "noema-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static final class Entry {
+        final Session session;
+        final Journal journal;
+        volatile long lastUsed = System.currentTimeMillis();
+        /** Connections using the session; guarded by the entry's lock */
+        int attached = 0;
+        /** Set under the entry's lock when the session expires; it is never attached again */
+        boolean closed = false;
+
+        Entry(Session session, Journal journal) {
+            this.session = session;
+            this.journal = journal;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * @return False if the session has expired
+         */
+        synchronized boolean attach() {
+            if (closed) return false;
+            attached++;
+            touch();
+            return true;
+        }
+
+        synchronized void detach() {
+            attached--;
+            touch();
+        }
+    }
+}
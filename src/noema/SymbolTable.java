@@ -0,0 +1,158 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense integer IDs for the identifiers and string literals of a program.
+ *
+ * Besides symbol IDs, the table assigns dense slots to global variables and
+ * to (NPC, state key) pairs such as {@code mood("Jade")}. Compiled
+ * conditions and actions carry these slots, so runtime state lives in plain
+ * arrays indexed by slot and the hot path never hashes a string.
+ *
+ * A table is filled while a program is compiled and frozen when the program
+ * is built; a frozen table is read-only and safe to share between threads.
+ */
+public final class SymbolTable {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    private final Map<Integer, Integer> variableSlots = new HashMap<>();
+    private final List<Integer> variables = new ArrayList<>();
+
+    private final Map<Long, Integer> stateSlots = new HashMap<>();
+    private final List<Long> states = new ArrayList<>();
+
+    private boolean frozen = false;
+
+    // --- Symbols ---
+
+    /**
+     * @return The ID of a symbol, assigning the next free one if it is new
+     */
+    public int intern(String s) {
+        Integer id = ids.get(s);
+        if (id != null) return id;
+        checkMutable(s);
+        id = names.size();
+        names.add(s);
+        ids.put(s, id);
+        return id;
+    }
+
+    /**
+     * @return The ID of a symbol, or -1 if the program never uses it
+     */
+    public int id(String s) {
+        Integer id = ids.get(s);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @return The table's canonical instance of a string literal, so that
+     *         equal literals can be compared by reference
+     */
+    public String literal(String s) {
+        return names.get(intern(s));
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    // --- Variable slots ---
+
+    public int variableSlot(String name) {
+        int id = intern(name);
+        Integer slot = variableSlots.get(id);
+        if (slot != null) return slot;
+        checkMutable(name);
+        slot = variables.size();
+        variables.add(id);
+        variableSlots.put(id, slot);
+        return slot;
+    }
+
+    /**
+     * @return The slot of a variable, or -1 if the program never uses it
+     */
+    public int findVariable(String name) {
+        Integer slot = variableSlots.get(id(name));
+        return slot == null ? -1 : slot;
+    }
+
+    public String variableName(int slot) {
+        return names.get(variables.get(slot));
+    }
+
+    public int variableCount() {
+        return variables.size();
+    }
+
+    // --- NPC state slots ---
+
+    public int stateSlot(String npc, String key) {
+        long pair = pair(intern(npc), intern(key));
+        Integer slot = stateSlots.get(pair);
+        if (slot != null) return slot;
+        checkMutable(npc + "." + key);
+        slot = states.size();
+        states.add(pair);
+        stateSlots.put(pair, slot);
+        return slot;
+    }
+
+    /**
+     * @return The slot of an NPC state, or -1 if the program never uses it
+     */
+    public int findState(String npc, String key) {
+        int n = id(npc);
+        int k = id(key);
+        if (n < 0 || k < 0) return -1;
+        Integer slot = stateSlots.get(pair(n, k));
+        return slot == null ? -1 : slot;
+    }
+
+    public String stateNpc(int slot) {
+        return names.get((int) (states.get(slot) >>> 32));
+    }
+
+    public String stateKey(int slot) {
+        return names.get((int) (long) states.get(slot));
+    }
+
+    public int stateCount() {
+        return states.size();
+    }
+
+    // --- Lifecycle ---
+
+    public SymbolTable copy() {
+        SymbolTable copy = new SymbolTable();
+        for (String s : names) copy.intern(s);
+        for (int i = 0; i < variables.size(); i++) copy.variableSlot(variableName(i));
+        for (int i = 0; i < states.size(); i++) copy.stateSlot(stateNpc(i), stateKey(i));
+        return copy;
+    }
+
+    public SymbolTable freeze() {
+        frozen = true;
+        return this;
+    }
+
+    private void checkMutable(String symbol) {
+        if (frozen) throw new IllegalStateException("Symbol not in program: " + symbol);
+    }
+
+    private static long pair(int npc, int key) {
+        return ((long) npc << 32) | (key & 0xFFFFFFFFL);
+    }
+}
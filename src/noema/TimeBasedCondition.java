@@ -1,30 +1,79 @@
 package noema;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Supports temporal reasoning in Noema
  * Handles time-based conditions and temporal facts
+ *
+ * Every (entity, event) pair keeps a history of occurrences as a sorted ring
+ * buffer of epoch nanoseconds (UTC). Histories are bounded by a maximum
+ * number of occurrences and, optionally, by age; the oldest occurrences are
+ * dropped first. {@code within}, {@code before} and {@code after} queries
+ * binary-search these histories instead of scanning them.
+ * {@link LocalDateTime} arguments and results are local times in the
+ * system default zone, like {@link LocalDateTime#now()}, so they mix with
+ * events recorded at the clock's time.
+ *
+ * Deadlines ("no occurrence within 2 hours") are armed on a
+ * {@link TimerWheel} with {@link #expect}, and re-armed whenever the watched
+ * event is recorded, so nothing polls the clock. Not thread-safe; advance
+ * the wheel on the thread that records events.
  */
 public class TimeBasedCondition {
-    
+
     // Constants for time units
     public static final long SECONDS = 1;
     public static final long MINUTES = 60;
     public static final long HOURS = 3600;
     public static final long DAYS = 86400;
-    
-    // Storage for time-based facts
-    private final Map<String, Map<String, LocalDateTime>> timeEvents = new HashMap<>();
-    
+
+    /** Default number of occurrences kept per (entity, event) */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // Storage for time-based facts: entity -> event -> history
+    private final Map<String, Map<String, EventSeries>> timeEvents = new HashMap<>();
+
+    // Deadlines on events: entity -> event -> watches
+    private final Map<String, Map<String, List<Watch>>> watches = new HashMap<>();
+
+    private final int capacity;
+    private final long retentionNanos;
+    private final TimerWheel.Clock clock;
+
     // Standard time format
-    private static final DateTimeFormatter timeFormatter = 
+    private static final DateTimeFormatter timeFormatter =
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-    
+
+    public TimeBasedCondition() {
+        this(DEFAULT_CAPACITY, null, TimerWheel.Clock.SYSTEM);
+    }
+
+    public TimeBasedCondition(int capacity, Duration retention) {
+        this(capacity, retention, TimerWheel.Clock.SYSTEM);
+    }
+
+    /**
+     * @param capacity Maximum occurrences kept per (entity, event)
+     * @param retention Occurrences older than this, relative to the newest
+     *        occurrence of the same event, are dropped; null keeps them all
+     * @param clock Time of events recorded without one
+     */
+    public TimeBasedCondition(int capacity, Duration retention, TimerWheel.Clock clock) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.retentionNanos = retention == null ? Long.MAX_VALUE : retention.toNanos();
+        this.clock = clock;
+    }
+
     /**
      * Record a time-based event
      * @param entity The entity (character, object) involved
@@ -32,31 +81,62 @@ public class TimeBasedCondition {
      * @param time The time of the event (or now if not specified)
      */
     public void recordEvent(String entity, String event, LocalDateTime time) {
-        if (!timeEvents.containsKey(entity)) {
-            timeEvents.put(entity, new HashMap<>());
-        }
-        
-        timeEvents.get(entity).put(event, time);
+        recordEvent(entity, event, toNanos(time));
     }
-    
+
     public void recordEvent(String entity, String event) {
-        recordEvent(entity, event, LocalDateTime.now());
+        recordEvent(entity, event, clock.nanos());
     }
-    
+
+    /**
+     * Record a time-based event
+     * @param entity The entity involved
+     * @param event The type of event
+     * @param epochNanos The time of the event in nanoseconds since the epoch (UTC)
+     */
+    public void recordEvent(String entity, String event, long epochNanos) {
+        timeEvents.computeIfAbsent(entity, k -> new HashMap<>())
+                .computeIfAbsent(event, k -> new EventSeries(capacity))
+                .add(epochNanos, retentionNanos);
+
+        Map<String, List<Watch>> entityWatches = watches.get(entity);
+        List<Watch> eventWatches = entityWatches == null ? null : entityWatches.get(event);
+        if (eventWatches != null) {
+            for (Watch watch : eventWatches) watch.arm(epochNanos);
+        }
+    }
+
     /**
      * Get the time of a specific event for an entity
      * @param entity The entity to check
      * @param event The event type
-     * @return The time of the event, or null if not found
+     * @return The time of the latest occurrence, or null if not found
      */
     public LocalDateTime getEventTime(String entity, String event) {
-        if (!timeEvents.containsKey(entity)) {
-            return null;
-        }
-        
-        return timeEvents.get(entity).get(event);
+        EventSeries series = series(entity, event);
+        return series == null ? null : toTime(series.get(series.size - 1));
     }
-    
+
+    /**
+     * @return The number of retained occurrences of an event
+     */
+    public int countEvents(String entity, String event) {
+        EventSeries series = series(entity, event);
+        return series == null ? 0 : series.size;
+    }
+
+    /**
+     * Count the occurrences of an event in a time range
+     * @param from Start of the range, inclusive
+     * @param to End of the range, inclusive
+     * @return The number of occurrences between from and to
+     */
+    public int countEvents(String entity, String event, LocalDateTime from, LocalDateTime to) {
+        EventSeries series = series(entity, event);
+        if (series == null) return 0;
+        return Math.max(0, series.upperBound(toNanos(to)) - series.lowerBound(toNanos(from)));
+    }
+
     /**
      * Check if two events happened within a time window
      * @param entity1 First entity
@@ -64,24 +144,41 @@ public class TimeBasedCondition {
      * @param entity2 Second entity
      * @param event2 Second event
      * @param duration Maximum duration between events
-     * @return True if the events happened within the specified duration
+     * @return True if some occurrence of each event happened within the
+     *         specified duration of the other. For the same entity and event,
+     *         two distinct occurrences are required.
      */
     public boolean eventsWithinDuration(
-            String entity1, String event1, 
-            String entity2, String event2, 
+            String entity1, String event1,
+            String entity2, String event2,
             Duration duration) {
-        
-        LocalDateTime time1 = getEventTime(entity1, event1);
-        LocalDateTime time2 = getEventTime(entity2, event2);
-        
-        if (time1 == null || time2 == null) {
+
+        EventSeries first = series(entity1, event1);
+        EventSeries second = series(entity2, event2);
+
+        if (first == null || second == null) {
             return false;
         }
-        
-        Duration difference = Duration.between(time1, time2).abs();
-        return difference.compareTo(duration) <= 0;
+
+        long window = duration.toNanos();
+        if (first == second) {
+            // Sorted, so the closest pair of occurrences is adjacent
+            for (int i = 1; i < first.size; i++) {
+                if (first.get(i) - first.get(i - 1) <= window) return true;
+            }
+            return false;
+        }
+
+        // Probe the longer history once per occurrence of the shorter one
+        EventSeries probe = first.size <= second.size ? first : second;
+        EventSeries target = probe == first ? second : first;
+        for (int i = 0; i < probe.size; i++) {
+            long t = probe.get(i);
+            if (target.any(saturatedSubtract(t, window), saturatedAdd(t, window))) return true;
+        }
+        return false;
     }
-    
+
     /**
      * Check if two events for the same entity happened within a time window
      * @param entity The entity to check
@@ -92,10 +189,170 @@ public class TimeBasedCondition {
      */
     public boolean eventsWithinDuration(
             String entity, String event1, String event2, Duration duration) {
-        
+
         return eventsWithinDuration(entity, event1, entity, event2, duration);
     }
-    
+
+    /**
+     * Check if an event happened before another
+     * @param duration Maximum gap between the two, or null for any gap
+     * @return True if some occurrence of event1 is strictly earlier than some
+     *         occurrence of event2, by at most duration
+     */
+    public boolean eventBefore(
+            String entity1, String event1,
+            String entity2, String event2,
+            Duration duration) {
+
+        EventSeries first = series(entity1, event1);
+        EventSeries second = series(entity2, event2);
+
+        if (first == null || second == null) {
+            return false;
+        }
+
+        if (duration == null) {
+            return first.get(0) < second.get(second.size - 1);
+        }
+
+        long window = duration.toNanos();
+        for (int i = 0; i < first.size; i++) {
+            long t = first.get(i);
+            if (t == Long.MAX_VALUE) break;
+            if (second.any(t + 1, saturatedAdd(t, window))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if an event happened after another
+     * @param duration Maximum gap between the two, or null for any gap
+     * @return True if some occurrence of event1 is strictly later than some
+     *         occurrence of event2, by at most duration
+     */
+    public boolean eventAfter(
+            String entity1, String event1,
+            String entity2, String event2,
+            Duration duration) {
+
+        return eventBefore(entity2, event2, entity1, event1, duration);
+    }
+
+    /**
+     * Answer a temporal condition by its operator
+     * @param operator One of "within", "before" or "after"
+     * @param duration Window for the condition; required for "within"
+     */
+    public boolean test(
+            String entity1, String event1, String operator,
+            String entity2, String event2, Duration duration) {
+
+        switch (operator) {
+            case "within":
+                return eventsWithinDuration(entity1, event1, entity2, event2, duration);
+            case "before":
+                return eventBefore(entity1, event1, entity2, event2, duration);
+            case "after":
+                return eventAfter(entity1, event1, entity2, event2, duration);
+            default:
+                throw new IllegalArgumentException("Unknown temporal operator: " + operator);
+        }
+    }
+
+    /**
+     * Run a task if an event does not occur within a window. The window
+     * starts at the latest occurrence, or now if there is none, and restarts
+     * at every later occurrence. The task runs at most once per silence.
+     * @param entity The entity to watch
+     * @param event The event expected
+     * @param window Maximum time without the event
+     * @param wheel Wheel the deadline is armed on
+     * @param onMissed Task run when the window passes
+     */
+    public Watch expect(String entity, String event, Duration window, TimerWheel wheel, Runnable onMissed) {
+        Watch watch = new Watch(entity, event, window.toNanos(), wheel, onMissed);
+        watches.computeIfAbsent(entity, k -> new HashMap<>())
+                .computeIfAbsent(event, k -> new ArrayList<>())
+                .add(watch);
+        EventSeries series = series(entity, event);
+        watch.arm(series == null ? wheel.clock().nanos() : series.get(series.size - 1));
+        return watch;
+    }
+
+    /**
+     * Watch a temporal condition such as {@code spoke("Jade") within 2 hours}:
+     * the task runs when the event in the first operand, a call naming the
+     * event and its entity, has not occurred within the duration.
+     * @param condition A "within" condition; the duration is a string with
+     *        units, or a number of seconds
+     */
+    public Watch expect(AST.TemporalCondition condition, TimerWheel wheel, Runnable onMissed) {
+        if (!"within".equals(condition.temporalOperator)) {
+            throw new IllegalArgumentException("Only 'within' conditions have a deadline: " + condition.temporalOperator);
+        }
+        if (!(condition.event1.value instanceof AST.FunctionCall)
+                || ((AST.FunctionCall) condition.event1.value).arguments.size() != 1) {
+            throw new IllegalArgumentException("Expected an event such as spoke(\"Jade\"): " + condition.event1.value);
+        }
+        AST.FunctionCall call = (AST.FunctionCall) condition.event1.value;
+        String entity = String.valueOf(call.arguments.get(0).value);
+        Object duration = condition.duration.value;
+        Duration window = duration instanceof Number
+                ? Duration.ofNanos((long) (((Number) duration).doubleValue() * 1e9))
+                : parseDuration(String.valueOf(duration));
+        return expect(entity, call.name, window, wheel, onMissed);
+    }
+
+    /**
+     * A deadline on an event, armed on a {@link TimerWheel}.
+     */
+    public final class Watch {
+        private final String entity;
+        private final String event;
+        private final long windowNanos;
+        private final TimerWheel wheel;
+        private final Runnable onMissed;
+        private TimerWheel.Timer timer;
+        private long deadline = Long.MIN_VALUE;
+
+        private Watch(String entity, String event, long windowNanos, TimerWheel wheel, Runnable onMissed) {
+            this.entity = entity;
+            this.event = event;
+            this.windowNanos = windowNanos;
+            this.wheel = wheel;
+            this.onMissed = onMissed;
+        }
+
+        private void arm(long fromNanos) {
+            long next = saturatedAdd(fromNanos, windowNanos);
+            if (next <= deadline) return;
+            if (timer != null) timer.cancel();
+            deadline = next;
+            timer = wheel.scheduleAt(next, () -> {
+                timer = null;
+                onMissed.run();
+            });
+        }
+
+        /**
+         * Stop watching and disarm the deadline.
+         */
+        public void cancel() {
+            if (timer != null) timer.cancel();
+            timer = null;
+            Map<String, List<Watch>> entityWatches = watches.get(entity);
+            if (entityWatches != null && entityWatches.containsKey(event)) {
+                entityWatches.get(event).remove(this);
+            }
+        }
+    }
+
+    private EventSeries series(String entity, String event) {
+        Map<String, EventSeries> events = timeEvents.get(entity);
+        EventSeries series = events == null ? null : events.get(event);
+        return series == null || series.size == 0 ? null : series;
+    }
+
     /**
      * Parse a time duration from a string with units
      * @param durationStr String like "5 minutes" or "2 hours"
@@ -106,32 +363,32 @@ public class TimeBasedCondition {
         if (parts.length != 2) {
             throw new IllegalArgumentException("Invalid duration format: " + durationStr);
         }
-        
+
         long amount = Long.parseLong(parts[0]);
         String unit = parts[1].toLowerCase();
-        
+
         switch (unit) {
             case "second":
             case "seconds":
                 return Duration.ofSeconds(amount);
-                
+
             case "minute":
             case "minutes":
                 return Duration.ofMinutes(amount);
-                
+
             case "hour":
             case "hours":
                 return Duration.ofHours(amount);
-                
+
             case "day":
             case "days":
                 return Duration.ofDays(amount);
-                
+
             default:
                 throw new IllegalArgumentException("Unknown time unit: " + unit);
         }
     }
-    
+
     /**
      * Parse a time string into a LocalDateTime
      * @param timeStr Time string in format "yyyy-MM-dd HH:mm:ss"
@@ -140,7 +397,7 @@ public class TimeBasedCondition {
     public static LocalDateTime parseTime(String timeStr) {
         return LocalDateTime.parse(timeStr, timeFormatter);
     }
-    
+
     /**
      * Format a LocalDateTime as a string
      * @param time The time to format
@@ -149,4 +406,113 @@ public class TimeBasedCondition {
     public static String formatTime(LocalDateTime time) {
         return time.format(timeFormatter);
     }
-}
\ No newline at end of file
+
+    /**
+     * Convert a local time in the system default zone to nanoseconds since
+     * the epoch
+     */
+    public static long toNanos(LocalDateTime time) {
+        long seconds = time.atZone(ZoneId.systemDefault()).toEpochSecond();
+        return Math.addExact(Math.multiplyExact(seconds, 1_000_000_000L), time.getNano());
+    }
+
+    /**
+     * Convert nanoseconds since the epoch to a local time in the system
+     * default zone
+     */
+    public static LocalDateTime toTime(long epochNanos) {
+        Instant instant = Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L),
+                Math.floorMod(epochNanos, 1_000_000_000L));
+        return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        return ((a ^ r) & (b ^ r)) < 0 ? Long.MAX_VALUE : r;
+    }
+
+    private static long saturatedSubtract(long a, long b) {
+        long r = a - b;
+        return ((a ^ b) & (a ^ r)) < 0 ? Long.MIN_VALUE : r;
+    }
+
+    /**
+     * Occurrences of one event, sorted ascending in a ring buffer that grows
+     * up to its capacity. Events usually arrive in time order, so adding is
+     * an append; late events are inserted in place.
+     */
+    private static final class EventSeries {
+        private final int capacity;
+        private long[] times = new long[16];
+        private int head = 0;
+        private int size = 0;
+
+        EventSeries(int capacity) {
+            this.capacity = capacity;
+        }
+
+        long get(int i) {
+            return times[(head + i) & (times.length - 1)];
+        }
+
+        private void set(int i, long t) {
+            times[(head + i) & (times.length - 1)] = t;
+        }
+
+        void add(long t, long retention) {
+            if (size == capacity) {
+                if (t < get(0)) return;
+                head = (head + 1) & (times.length - 1);
+                size--;
+            } else if (size == times.length) {
+                grow();
+            }
+
+            int i = upperBound(t);
+            for (int j = size; j > i; j--) set(j, get(j - 1));
+            set(i, t);
+            size++;
+
+            if (retention != Long.MAX_VALUE) {
+                long oldest = saturatedSubtract(get(size - 1), retention);
+                int expired = lowerBound(oldest);
+                head = (head + expired) & (times.length - 1);
+                size -= expired;
+            }
+        }
+
+        /** Capacity stays a power of two so indexes wrap with a mask */
+        private void grow() {
+            long[] larger = new long[times.length * 2];
+            for (int i = 0; i < size; i++) larger[i] = get(i);
+            times = larger;
+            head = 0;
+        }
+
+        /** @return Whether any occurrence lies in [from, to] */
+        boolean any(long from, long to) {
+            int i = lowerBound(from);
+            return i < size && get(i) <= to;
+        }
+
+        /** @return Index of the first occurrence at or after t */
+        int lowerBound(long t) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (get(mid) < t) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        /** @return Index of the first occurrence after t */
+        int upperBound(long t) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (get(mid) <= t) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package noema;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel for deadlines such as
+ * "the player hasn't spoken to Jade within 2 hours".
+ *
+ * Time is counted in ticks of a fixed length. Level 0 has one slot per tick
+ * for the next 64 ticks, level 1 one slot per 64 ticks, and so on; eleven
+ * levels of 64 slots cover every long tick value, so there is no overflow
+ * list. A timer sits in the level of the highest tick digit in which its
+ * deadline differs from the current tick and moves down a level each time
+ * the wheel reaches the start of its slot. Slots are intrusive doubly linked
+ * lists, so arming and cancelling are O(1), and each level keeps a bitmap of
+ * occupied slots so {@link #advance()} skips empty ticks.
+ *
+ * The wheel never reads the system time itself: {@link #advance()} asks the
+ * {@link Clock} given at construction, which tests can drive by hand. All
+ * methods are thread-safe; tasks run on the thread calling advance, after
+ * the wheel's lock is released.
+ */
+public final class TimerWheel {
+
+    /**
+     * Source of the current time in nanoseconds since the epoch.
+     */
+    public interface Clock {
+        long nanos();
+
+        Clock SYSTEM = () -> {
+            Instant now = Instant.now();
+            return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        };
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = (Long.SIZE + SLOT_BITS - 1) / SLOT_BITS;
+
+    private final Clock clock;
+    private final long tickNanos;
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    private long currentTick;
+    private int pending = 0;
+
+    public TimerWheel(Duration tick, Clock clock) {
+        this.tickNanos = tick.toNanos();
+        if (tickNanos <= 0) throw new IllegalArgumentException("Tick must be positive: " + tick);
+        this.clock = clock;
+        this.currentTick = Math.floorDiv(clock.nanos(), tickNanos);
+    }
+
+    public TimerWheel() {
+        this(Duration.ofMillis(10), Clock.SYSTEM);
+    }
+
+    public Clock clock() {
+        return clock;
+    }
+
+    /**
+     * Run a task once a delay has passed.
+     */
+    public Timer schedule(Duration delay, Runnable task) {
+        return scheduleAt(clock.nanos() + delay.toNanos(), task);
+    }
+
+    /**
+     * Run a task once the clock reaches a deadline, in nanoseconds since the
+     * epoch. Deadlines are rounded up to whole ticks, so a task never runs
+     * early; a deadline in the past runs on the next advance.
+     */
+    public Timer scheduleAt(long deadlineNanos, Runnable task) {
+        Timer timer = new Timer(this, task);
+        long tick = Math.floorDiv(deadlineNanos, tickNanos);
+        timer.deadline = Math.floorMod(deadlineNanos, tickNanos) == 0 ? tick : tick + 1;
+        synchronized (this) {
+            insert(timer, currentTick + 1);
+            pending++;
+        }
+        return timer;
+    }
+
+    /**
+     * @return The number of armed timers
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * Move the wheel to the clock's current time and run every task whose
+     * deadline has passed, earlier ticks first.
+     * @return The number of tasks run
+     */
+    public int advance() {
+        List<Timer> expired = new ArrayList<>();
+        long now = Math.floorDiv(clock.nanos(), tickNanos);
+        synchronized (this) {
+            while (currentTick < now) {
+                if (pending == 0) {
+                    currentTick = now;
+                    break;
+                }
+                long next = nextTick();
+                if (next > now) {
+                    currentTick = now;
+                    break;
+                }
+                currentTick = next;
+                if ((next & (SLOTS - 1)) == 0) cascade();
+                collect(0, (int) (next & (SLOTS - 1)), expired);
+            }
+            pending -= expired.size();
+        }
+        for (Timer timer : expired) timer.task.run();
+        return expired.size();
+    }
+
+    /**
+     * @return The next tick at which something happens: the next occupied
+     *         level 0 slot or the next cascade boundary
+     */
+    private long nextTick() {
+        int digit = (int) (currentTick & (SLOTS - 1));
+        long boundary = (currentTick | (SLOTS - 1)) + 1;
+        long later = digit == SLOTS - 1 ? 0 : occupied[0] & (-1L << (digit + 1));
+        return later == 0 ? boundary : (currentTick & ~(long) (SLOTS - 1)) + Long.numberOfTrailingZeros(later);
+    }
+
+    /**
+     * At a multiple of 64 ticks, move timers from every level whose slot
+     * starts now down towards level 0, highest level first.
+     */
+    private void cascade() {
+        int top = 1;
+        while (top < LEVELS - 1 && (currentTick & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0) top++;
+        for (int level = top; level >= 1; level--) {
+            int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            Timer timer = slots[level * SLOTS + slot];
+            slots[level * SLOTS + slot] = null;
+            occupied[level] &= ~(1L << slot);
+            while (timer != null) {
+                Timer next = timer.next;
+                insert(timer, currentTick);
+                timer = next;
+            }
+        }
+    }
+
+    private void collect(int level, int slot, List<Timer> expired) {
+        Timer timer = slots[level * SLOTS + slot];
+        slots[level * SLOTS + slot] = null;
+        occupied[level] &= ~(1L << slot);
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = timer.next = null;
+            timer.index = -1;
+            expired.add(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Link a timer into the slot for its deadline, but no earlier than tick
+     * {@code earliest}.
+     */
+    private void insert(Timer timer, long earliest) {
+        long deadline = Math.max(timer.deadline, earliest);
+        long diff = deadline ^ currentTick;
+        int level = diff < SLOTS ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+        int slot = (int) ((deadline >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        int index = level * SLOTS + slot;
+
+        Timer head = slots[index];
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) head.prev = timer;
+        slots[index] = timer;
+        timer.index = index;
+        occupied[level] |= 1L << slot;
+    }
+
+    private synchronized boolean remove(Timer timer) {
+        if (timer.index < 0) return false;
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.index] = timer.next;
+            if (timer.next == null) occupied[timer.index / SLOTS] &= ~(1L << (timer.index % SLOTS));
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+        timer.index = -1;
+        pending--;
+        return true;
+    }
+
+    /**
+     * An armed deadline.
+     */
+    public static final class Timer {
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private long deadline;
+        private Timer prev;
+        private Timer next;
+        private int index = -1;
+
+        private Timer(TimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * @return The deadline in nanoseconds since the epoch, rounded up to a tick
+         */
+        public long deadline() {
+            return deadline * wheel.tickNanos;
+        }
+
+        /**
+         * @return True if the timer was armed and will no longer run
+         */
+        public boolean cancel() {
+            return wheel.remove(this);
+        }
+    }
+}
@@ -3,14 +3,14 @@ package noema;
 public class Token {
     public enum Type {
         // Keywords
-        FACT, RULE, SCENE, NPC, WHEN, RESPONDS, FEELS, IF, AND, OR, WITHIN,
-        BEFORE, AFTER, MINUTE, HOUR, DAY, PLAYER, SAYS,
+        IMPORT, FACT, RULE, SCENE, NPC, WHEN, RESPONDS, FEELS, IF, AND, OR, WITHIN,
+        BEFORE, AFTER, MINUTE, HOUR, DAY, PLAYER, SAYS, MENTIONS,
     
         // Identifiers and literals
         IDENTIFIER, STRING, NUMBER,
     
         // Operators
-        EQUALS, NOT_EQUALS, GREATER_THAN, LESS_THAN,  // 👈 ADD THESE HERE
+        EQUALS, NOT_EQUALS, GREATER_THAN, LESS_THAN, GREATER_EQUAL, LESS_EQUAL,  // 👈 ADD THESE HERE
     
         // Punctuation
         OPEN_PAREN, CLOSE_PAREN, OPEN_BRACE, CLOSE_BRACE, COMMA, SEMICOLON,
@@ -0,0 +1,359 @@
+package noema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-scene dispatch index for {@code when player says} triggers.
+ *
+ * Triggers whose condition is a conjunction containing {@code player says "..."}
+ * are keyed on the normalized utterance; only their remaining guards are
+ * tested. Triggers keyed on {@code player mentions "..."} instead share one
+ * {@link KeywordAutomaton}, which finds all of them whose phrase occurs in the
+ * input in a single pass over it. Triggers that cannot be keyed (for example
+ * because of {@code or}) are always candidates. Candidates are visited in
+ * declaration order, so the first matching trigger is the same one a linear
+ * scan would find.
+ *
+ * For typo-tolerant matching, {@link #matchApproximate} looks the input up in
+ * a {@link FuzzyIndex} over the keyed utterances, built on first use.
+ *
+ * Guards that do not read the input depend only on the variables and NPC
+ * states they compare, which are linked to them at construction; goals
+ * against the fact base read nothing a session can change. A {@link Memory}
+ * keeps the result of each such guard for a session, and a change forgets
+ * only the results of the guards reading the changed slot.
+ */
+public class TriggerIndex {
+    private static final int[] NONE = new int[0];
+
+    private final Map<String, int[]> keyed = new HashMap<>();
+    /** Keyed utterances in order of their first trigger */
+    private final List<String> utterances;
+    private final int[] unkeyed;
+    /** Triggers keyed on a phrase, in declaration order; phrase i belongs to mentioned[i] */
+    private final int[] mentioned;
+    private final KeywordAutomaton phrases;
+    private final Predicate[] guards;
+    /** Whether a guard's result can be kept until a slot it reads changes */
+    private final boolean[] cacheable;
+    /** Sorted slots read by cacheable guards, with the guards reading each */
+    private final int[] variableSlots;
+    private final int[][] variableGuards;
+    private final int[] stateSlots;
+    private final int[][] stateGuards;
+    private volatile Fuzzy fuzzy = null;
+
+    public TriggerIndex(Predicate[] conditions) {
+        this.guards = new Predicate[conditions.length];
+        Map<String, List<Integer>> buckets = new LinkedHashMap<>();
+        List<Integer> always = new ArrayList<>();
+        List<Integer> mentioning = new ArrayList<>();
+        List<String> mentions = new ArrayList<>();
+
+        for (int i = 0; i < conditions.length; i++) {
+            List<Predicate> conjuncts = new ArrayList<>();
+            flatten(conditions[i], conjuncts);
+            // An exact utterance is the narrower key; a phrase is the next best
+            Predicate keyedOn = null;
+            for (Predicate p : conjuncts) {
+                if (utterance(p) != null) {
+                    keyedOn = p;
+                    break;
+                }
+                if (keyedOn == null && p instanceof Predicate.Mentions) keyedOn = p;
+            }
+            Predicate guard = null;
+            for (Predicate p : conjuncts) {
+                if (p != keyedOn) guard = guard == null ? p : new Predicate.And(guard, p);
+            }
+            if (keyedOn instanceof Predicate.Says) {
+                guards[i] = guard;
+                buckets.computeIfAbsent(utterance(keyedOn), k -> new ArrayList<>()).add(i);
+            } else if (keyedOn != null) {
+                guards[i] = guard;
+                mentioning.add(i);
+                mentions.add(((Predicate.Mentions) keyedOn).phrase);
+            } else {
+                guards[i] = conditions[i];
+                always.add(i);
+            }
+        }
+
+        for (Map.Entry<String, List<Integer>> e : buckets.entrySet()) keyed.put(e.getKey(), toArray(e.getValue()));
+        this.utterances = new ArrayList<>(buckets.keySet());
+        this.unkeyed = toArray(always);
+        this.mentioned = toArray(mentioning);
+        this.phrases = mentions.isEmpty() ? null : new KeywordAutomaton(mentions);
+
+        this.cacheable = new boolean[guards.length];
+        Map<Integer, List<Integer>> variables = new TreeMap<>();
+        Map<Integer, List<Integer>> states = new TreeMap<>();
+        for (int i = 0; i < guards.length; i++) {
+            if (guards[i] == null) continue;
+            List<Integer> readVariables = new ArrayList<>();
+            List<Integer> readStates = new ArrayList<>();
+            if (!reads(guards[i], readVariables, readStates)) continue;
+            cacheable[i] = true;
+            for (int slot : readVariables) variables.computeIfAbsent(slot, k -> new ArrayList<>()).add(i);
+            for (int slot : readStates) states.computeIfAbsent(slot, k -> new ArrayList<>()).add(i);
+        }
+        this.variableSlots = toArray(new ArrayList<>(variables.keySet()));
+        this.variableGuards = new int[variableSlots.length][];
+        for (int i = 0; i < variableSlots.length; i++) variableGuards[i] = toArray(variables.get(variableSlots[i]));
+        this.stateSlots = toArray(new ArrayList<>(states.keySet()));
+        this.stateGuards = new int[stateSlots.length][];
+        for (int i = 0; i < stateSlots.length; i++) stateGuards[i] = toArray(states.get(stateSlots[i]));
+    }
+
+    /**
+     * @return A memory of guard results for one session, evaluated against ctx
+     */
+    public Memory newMemory(Predicate.Context ctx) {
+        return new Memory(ctx);
+    }
+
+    /**
+     * Find the first trigger whose condition holds for the given input.
+     * @param ctx State the guards are evaluated against
+     * @param input Player input, already passed through {@link #normalize(String)}
+     * @return Index of the matching trigger in the scene, or -1 if none matches
+     */
+    public int match(Predicate.Context ctx, String input) {
+        return match(ctx, null, input);
+    }
+
+    /**
+     * {@link #match(Predicate.Context, String)} reusing the guard results
+     * kept in a session's memory.
+     */
+    public int match(Memory memory, String input) {
+        return match(memory.ctx, memory, input);
+    }
+
+    private int match(Predicate.Context ctx, Memory memory, String input) {
+        int[] candidates = keyed.getOrDefault(input, NONE);
+        long[] found = phrases == null ? null : phrases.scan(input);
+        int k = 0;
+        int u = 0;
+        int m = nextFound(found, 0);
+        while (true) {
+            // Smallest trigger index among the three candidate lists
+            int i = Integer.MAX_VALUE;
+            if (k < candidates.length) i = candidates[k];
+            if (u < unkeyed.length) i = Math.min(i, unkeyed[u]);
+            if (m >= 0) i = Math.min(i, mentioned[m]);
+            if (i == Integer.MAX_VALUE) return -1;
+            if (k < candidates.length && candidates[k] == i) k++;
+            else if (u < unkeyed.length && unkeyed[u] == i) u++;
+            else m = nextFound(found, m + 1);
+            if (holds(i, ctx, memory, input)) return i;
+        }
+    }
+
+    /**
+     * Find the first trigger keyed on an utterance similar to the input,
+     * trying utterances from the most similar down. Among the triggers of one
+     * utterance, the first whose guards hold wins.
+     * @param threshold Lowest similarity accepted, see {@link FuzzyIndex}
+     * @return Index of the matching trigger in the scene, or -1 if none matches
+     */
+    public int matchApproximate(Predicate.Context ctx, String input, double threshold) {
+        return matchApproximate(ctx, null, input, threshold);
+    }
+
+    /**
+     * {@link #matchApproximate(Predicate.Context, String, double)} reusing
+     * the guard results kept in a session's memory.
+     */
+    public int matchApproximate(Memory memory, String input, double threshold) {
+        return matchApproximate(memory.ctx, memory, input, threshold);
+    }
+
+    private int matchApproximate(Predicate.Context ctx, Memory memory, String input, double threshold) {
+        if (keyed.isEmpty()) return -1;
+        Fuzzy f = fuzzy;
+        if (f == null) fuzzy = f = new Fuzzy(utterances, keyed);
+        for (FuzzyIndex.Match candidate : f.index.search(input, threshold)) {
+            for (int i : f.triggers[candidate.phrase]) {
+                if (holds(i, ctx, memory, input)) return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean holds(int trigger, Predicate.Context ctx, Memory memory, String input) {
+        if (guards[trigger] == null) return true;
+        if (memory == null || !cacheable[trigger]) return guards[trigger].test(ctx, input);
+        return memory.test(trigger);
+    }
+
+    /**
+     * @return The first phrase at or after from that was found, or -1
+     */
+    private static int nextFound(long[] found, int from) {
+        if (found == null) return -1;
+        int word = from >>> 6;
+        if (word >= found.length) return -1;
+        long bits = found[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == found.length) return -1;
+            bits = found[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Normalize an utterance: trim, collapse runs of whitespace and lower-case.
+     */
+    public static String normalize(String utterance) {
+        StringBuilder sb = new StringBuilder(utterance.length());
+        boolean space = false;
+        for (int i = 0; i < utterance.length(); i++) {
+            char c = utterance.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) sb.append(' ');
+                sb.append(c);
+                space = false;
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Keyed utterances in a fuzzy index, with the triggers of each. Built at
+     * most once per thread racing for it; every copy is the same. Utterances
+     * are indexed in declaration order, so equally similar ones are tried in
+     * that order.
+     */
+    private static final class Fuzzy {
+        final FuzzyIndex index;
+        final int[][] triggers;
+
+        Fuzzy(List<String> utterances, Map<String, int[]> keyed) {
+            index = new FuzzyIndex(utterances);
+            triggers = new int[utterances.size()][];
+            for (int i = 0; i < triggers.length; i++) triggers[i] = keyed.get(utterances.get(i));
+        }
+    }
+
+    /**
+     * Guard results of one session, each kept until a slot its guard reads
+     * changes. Not thread-safe.
+     */
+    public final class Memory {
+        private final Predicate.Context ctx;
+        private final boolean[] known = new boolean[guards.length];
+        private final boolean[] values = new boolean[guards.length];
+        private long tested;
+        private long reused;
+
+        private Memory(Predicate.Context ctx) {
+            this.ctx = ctx;
+        }
+
+        public void variableChanged(int slot) {
+            forget(variableSlots, variableGuards, slot);
+        }
+
+        public void stateChanged(int slot) {
+            forget(stateSlots, stateGuards, slot);
+        }
+
+        /**
+         * @return How many guard tests ran, and how many were answered
+         *         from kept results, since this memory was created
+         */
+        public Stats stats() {
+            return new Stats(tested, reused);
+        }
+
+        private boolean test(int trigger) {
+            if (known[trigger]) {
+                reused++;
+                return values[trigger];
+            }
+            tested++;
+            known[trigger] = true;
+            return values[trigger] = guards[trigger].test(ctx, "");
+        }
+
+        private void forget(int[] slots, int[][] readers, int slot) {
+            int at = Arrays.binarySearch(slots, slot);
+            if (at >= 0) for (int trigger : readers[at]) known[trigger] = false;
+        }
+    }
+
+    /**
+     * Guard tests a {@link Memory} ran and answered from kept results.
+     */
+    public static final class Stats {
+        public final long tested;
+        public final long reused;
+
+        private Stats(long tested, long reused) {
+            this.tested = tested;
+            this.reused = reused;
+        }
+
+        @Override
+        public String toString() {
+            return tested + " guards tested, " + reused + " reused";
+        }
+    }
+
+    /**
+     * Collect the variable and NPC state slots a guard reads.
+     * @return False if the guard reads the input, so its result cannot be kept
+     */
+    private static boolean reads(Predicate p, List<Integer> variables, List<Integer> states) {
+        if (p instanceof Predicate.And) {
+            return reads(((Predicate.And) p).left, variables, states) && reads(((Predicate.And) p).right, variables, states);
+        }
+        if (p instanceof Predicate.Or) {
+            return reads(((Predicate.Or) p).left, variables, states) && reads(((Predicate.Or) p).right, variables, states);
+        }
+        if (p instanceof Predicate.Compare) {
+            return reads(((Predicate.Compare) p).left, variables, states) && reads(((Predicate.Compare) p).right, variables, states);
+        }
+        return p instanceof Predicate.Query;
+    }
+
+    private static boolean reads(Predicate.Operand operand, List<Integer> variables, List<Integer> states) {
+        if (operand instanceof Predicate.Variable) variables.add(((Predicate.Variable) operand).slot);
+        else if (operand instanceof Predicate.StateRead) states.add(((Predicate.StateRead) operand).slot);
+        else return operand instanceof Predicate.Constant;
+        return true;
+    }
+
+    private static void flatten(Predicate p, List<Predicate> out) {
+        if (p instanceof Predicate.And) {
+            flatten(((Predicate.And) p).left, out);
+            flatten(((Predicate.And) p).right, out);
+        } else {
+            out.add(p);
+        }
+    }
+
+    private static String utterance(Predicate p) {
+        if (!(p instanceof Predicate.Says)) return null;
+        Predicate.Operand operand = ((Predicate.Says) p).utterance;
+        if (!(operand instanceof Predicate.Constant)) return null;
+        Object value = ((Predicate.Constant) operand).value;
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+        return result;
+    }
+}
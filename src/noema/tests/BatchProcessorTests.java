@@ -0,0 +1,73 @@
+package noema.tests;
+
+import noema.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchProcessorTests {
+
+    private static final String SOURCE = """
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "I believe in you" and mood("Jade") == "anxious" {
+            mood("Jade") = "hopeful"
+            Jade responds "Thanks... that means a lot."
+          }
+          when player says "I believe in you" and mood("Jade") == "hopeful" {
+            mood("Jade") = "proud"
+            Jade responds "You said that already."
+          }
+          when player says "I believe in you" {
+            Jade responds "Okay, okay."
+          }
+        }
+        """;
+
+    @Test
+    public void testInputsOfASessionRunInOrder() {
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        int players = 500;
+        int rounds = 3;
+        Session[] pool = new Session[players];
+        for (int p = 0; p < players; p++) {
+            pool[p] = program.newSession();
+            pool[p].setScene("rooftop");
+        }
+
+        // Interleave the players' inputs: p0, p1, ..., p0, p1, ...
+        Session[] sessions = new Session[players * rounds];
+        String[] inputs = new String[players * rounds];
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < players; p++) {
+                sessions[r * players + p] = pool[p];
+                inputs[r * players + p] = "I believe in you";
+            }
+        }
+
+        ForkJoinPool forkJoin = new ForkJoinPool(4);
+        BatchProcessor.Result result;
+        try {
+            result = new BatchProcessor(forkJoin).process(sessions, inputs);
+        } finally {
+            forkJoin.shutdown();
+        }
+        assertEquals(players, result.sessions);
+        assertTrue(result.throughput() > 0);
+        String[] expected = { "Jade: Thanks... that means a lot.", "Jade: You said that already.", "Jade: Okay, okay." };
+        for (int r = 0; r < rounds; r++) {
+            for (int p = 0; p < players; p++) {
+                assertEquals(expected[r], result.responses[r * players + p]);
+            }
+        }
+        for (Session s : pool) assertEquals("proud", s.getNPCState("Jade", "mood"));
+    }
+
+    @Test
+    public void testEmptyBatch() {
+        BatchProcessor.Result result = new BatchProcessor().process(new Session[0], new String[0]);
+        assertEquals(0, result.responses.length);
+    }
+}
@@ -0,0 +1,46 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryProgramTests {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String source = """
+            fact trust("Jade", "low")
+            fact attempts(4)
+            rule frustrated if attempts > 3 {
+              mood("Jade") = "frustrated"
+            }
+            scene "rooftop" {
+              npc "Jade" feels "anxious"
+              when player says "What happened?" and trust("Jade") == "low" {
+                Jade responds "I don't want to talk about it."
+              }
+            }
+            """;
+        CompiledProgram original = CompiledProgram.compile(new Parser(new Lexer(source).scanTokens()).parse());
+        CompiledProgram loaded = BinaryProgram.decode(ByteBuffer.wrap(BinaryProgram.encode(original)));
+
+        assertEquals(original.sceneNames(), loaded.sceneNames());
+        assertEquals(4.0, loaded.variable("attempts"));
+        assertEquals("low", loaded.facts().value("trust", "Jade"));
+
+        Session session = loaded.newSession();
+        assertEquals("anxious", session.getNPCState("Jade", "mood"));
+        session.setScene("rooftop");
+        assertEquals("Jade: I don't want to talk about it.", session.processInput("What happened?"));
+        session.evaluateRules();
+        assertEquals("frustrated", session.getNPCState("Jade", "mood"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsOtherFiles() {
+        BinaryProgram.decode(ByteBuffer.wrap(new byte[32]));
+    }
+}
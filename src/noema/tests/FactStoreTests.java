@@ -0,0 +1,71 @@
+package noema.tests;
+
+import noema.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FactStoreTests {
+
+    @Test
+    public void testDeduplicationAndLookup() {
+        FactStore store = new FactStore();
+        assertTrue(store.assertFact("friends", "Alice", "Bob"));
+        assertFalse(store.assertFact("friends", "Alice", "Bob"));
+        store.assertFact("friends", "Alice", "Carol");
+        store.assertFact("friends", "Dan", "Bob");
+
+        assertEquals(3, store.count("friends"));
+        assertEquals(2, store.lookup("friends", "Alice").size());
+        assertEquals(2, store.lookup("friends", 1, "Bob").size());
+        assertTrue(store.lookup("friends", "Nobody").isEmpty());
+
+        assertTrue(store.retract("friends", "Alice", "Bob"));
+        assertEquals(1, store.lookup("friends", 1, "Bob").size());
+    }
+
+    @Test
+    public void testFunctionalUpsert() {
+        FactStore store = new FactStore();
+        store.declareFunctional("mood");
+        store.assertFact("mood", "Jade", "anxious");
+        store.assertFact("mood", "Jade", "proud");
+
+        assertEquals(1, store.count("mood"));
+        assertEquals("proud", store.value("mood", "Jade"));
+        assertFalse(store.contains("mood", "Jade", "anxious"));
+    }
+
+    @Test
+    public void testFactsBackNpcState() {
+        String source = """
+            fact trust("Jade", "low")
+            scene "rooftop" {
+              when player says "What happened?" and trust("Jade") == "low" {
+                Jade responds "I don't want to talk about it."
+              }
+            }
+            """;
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(source).scanTokens()).parse());
+        interpreter.setScene("rooftop");
+
+        assertEquals("Jade: I don't want to talk about it.", interpreter.processInput("What happened?"));
+        assertEquals("low", interpreter.getFacts().value("trust", "Jade"));
+    }
+
+    @Test
+    public void testProgramFactsAreReadOnly() {
+        FactStore facts = CompiledProgram.compile(new Parser(new Lexer("fact trust(\"Jade\", \"low\")").scanTokens()).parse()).facts();
+        assertTrue(facts.isReadOnly());
+        assertEquals(1, facts.lookup("trust", 1, "low").size());
+        try {
+            facts.assertFact("trust", "Kai", "high");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        FactStore copy = facts.copy();
+        assertTrue(copy.assertFact("trust", "Kai", "high"));
+        assertEquals(1, facts.count("trust"));
+    }
+}
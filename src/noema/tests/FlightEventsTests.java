@@ -0,0 +1,61 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlightEventsTests {
+
+    private static final String SOURCE = """
+        fact score(60)
+        rule pass if score > 50 {
+          result = "pass"
+        }
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" {
+            Jade responds "Hi."
+          }
+        }
+        """;
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+        Path file = Files.createTempFile("noema", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("noema.Compile").withThreshold(java.time.Duration.ZERO);
+            recording.enable("noema.Input").withThreshold(java.time.Duration.ZERO);
+            recording.enable("noema.RuleFired").withThreshold(java.time.Duration.ZERO);
+            recording.start();
+
+            Interpreter interpreter = new Interpreter();
+            interpreter.interpret(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+            interpreter.setScene("rooftop");
+            interpreter.processInput("hello");
+            interpreter.processInput("goodbye");
+            interpreter.evaluateRules();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        assertEquals(3, events.stream().filter(e -> e.getEventType().getName().equals("noema.Compile")).count());
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("noema.Input")
+                && "rooftop".equals(e.getString("scene")) && e.getInt("trigger") == 0));
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("noema.Input")
+                && e.getInt("trigger") == -1));
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("noema.RuleFired")
+                && "pass".equals(e.getString("rule"))));
+    }
+}
@@ -0,0 +1,94 @@
+package noema.tests;
+
+import noema.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FuzzyIndexTests {
+
+    private static final String SOURCE = """
+        scene "market" {
+          when player says "how much is the lantern" and mood("Vendor") == "greedy" {
+            Vendor responds "Fifty coins."
+          }
+          when player says "how much is the lantern" {
+            Vendor responds "Ten coins."
+          }
+          when player says "where is the harbor" {
+            Vendor responds "Down the hill."
+          }
+        }
+        """;
+
+    @Test
+    public void testRanksBySimilarity() {
+        FuzzyIndex index = new FuzzyIndex(List.of("open the door", "close the door", "open the window"));
+        List<FuzzyIndex.Match> matches = index.search("opne the door", 0.3);
+        assertEquals("open the door", matches.get(0).text);
+        assertEquals(0, matches.get(0).phrase);
+        for (int i = 1; i < matches.size(); i++) assertTrue(matches.get(i - 1).score >= matches.get(i).score);
+
+        assertEquals(1.0, index.search("Open the DOOR!", 0.5).get(0).score, 1e-9);
+        assertTrue(index.search("completely unrelated", 0.5).isEmpty());
+        assertTrue(index.search("   ", 0.1).isEmpty());
+    }
+
+    @Test
+    public void testSessionFallsBackToApproximateMatch() {
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        Session session = program.newSession();
+        session.setScene("market");
+
+        assertEquals("I don't know how to respond to that.", session.processInput("how mcuh is the lantren"));
+        session.setFuzzyThreshold(0.6);
+        assertEquals("Vendor: Ten coins.", session.processInput("how mcuh is the lantren"));
+        assertEquals("Vendor: Down the hill.", session.processInput("wher is the harbour?"));
+        assertEquals("I don't know how to respond to that.", session.processInput("sell me a sword"));
+
+        session.setNPCState("Vendor", "mood", "greedy");
+        assertEquals("Vendor: Fifty coins.", session.processInput("how much is teh lantern"));
+    }
+
+    @Test
+    public void testEquallySimilarUtterancesFollowDeclarationOrder() {
+        StringBuilder source = new StringBuilder("scene \"docks\" {\n");
+        for (int i = 0; i < 20; i++) {
+            source.append("  when player says \"").append((char) ('z' - i)).append("q open the gate\" {\n")
+                  .append("    Guard responds \"Trigger ").append(i).append(".\"\n  }\n");
+        }
+        source.append("}\n");
+        Session session = CompiledProgram.compile(new Parser(new Lexer(source.toString()).scanTokens()).parse()).newSession();
+        session.setScene("docks");
+        session.setFuzzyThreshold(0.6);
+        assertEquals("Guard: Trigger 0.", session.processInput("open the gate"));
+    }
+
+    @Test
+    public void testFindsPhraseAmongThousands() {
+        Random random = new Random(42);
+        String[] words = new String[400];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int j = 3 + random.nextInt(6); j > 0; j--) word.append((char) ('a' + random.nextInt(26)));
+            words[i] = word.toString();
+        }
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder phrase = new StringBuilder("tell me about");
+            for (int j = 2 + random.nextInt(4); j > 0; j--) phrase.append(' ').append(words[random.nextInt(words.length)]);
+            phrases.add(phrase.toString());
+        }
+        FuzzyIndex index = new FuzzyIndex(phrases);
+
+        String target = phrases.get(4210);
+        String query = target.substring(0, 20) + target.substring(21);
+        List<FuzzyIndex.Match> matches = index.search(query, 0.6);
+        assertEquals(target, matches.get(0).text);
+        assertEquals(4210, matches.get(0).phrase);
+    }
+}
@@ -25,4 +25,84 @@ public class InterpreterTests {
         Object result = interpreter.getVariable("result");
         assertEquals("pass", result);
     }
+
+    @Test
+    public void testTriggerWithStateGuard() {
+        String source = """
+            fact attempts(4)
+            scene "rooftop" {
+              npc "Jade" feels "anxious"
+              when player says "Ready?" and mood("Jade") == "calm" {
+                Jade responds "Let's go."
+              }
+              when player says "Ready?" and attempts >= 3 {
+                mood("Jade") = "calm"
+                Jade responds "Not again..."
+              }
+            }
+            """;
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(source).scanTokens()).parse());
+        interpreter.setScene("rooftop");
+
+        assertEquals("Jade: Not again...", interpreter.processInput("Ready?"));
+        assertEquals("Jade: Let's go.", interpreter.processInput("Ready?"));
+        assertEquals("I don't know how to respond to that.", interpreter.processInput("Hello"));
+    }
+
+    @Test
+    public void testTriggerDispatchKeepsDeclarationOrder() {
+        String source = """
+            fact alarm(0)
+            scene "lobby" {
+              when player says "Help" and alarm > 0 {
+                Guard responds "Stay calm."
+              }
+              when player says "Where am I?" or alarm > 0 {
+                Guard responds "The lobby."
+              }
+              when player says "help" {
+                Guard responds "How can I help?"
+              }
+            }
+            """;
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(source).scanTokens()).parse());
+        interpreter.setScene("lobby");
+
+        assertEquals("Guard: How can I help?", interpreter.processInput("  HELP "));
+        assertEquals("Guard: The lobby.", interpreter.processInput("where am  i?"));
+    }
+
+    @Test
+    public void testRulesSeeStateChangedByInput() {
+        String source = """
+            fact attempts(0)
+            rule frustrated if attempts > 3 {
+              mood("Jade") = "frustrated"
+              calm = 0
+            }
+            rule calm if calm == 0 {
+              status = "needs reassurance"
+            }
+            scene "vault" {
+              when player says "Try again" {
+                attempts = 4
+              }
+            }
+            """;
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(source).scanTokens()).parse());
+        interpreter.evaluateRules();
+        assertEquals("neutral", interpreter.getNPCState("Jade", "mood"));
+
+        interpreter.setScene("vault");
+        interpreter.processInput("Try again");
+        interpreter.evaluateRules();
+        assertEquals("frustrated", interpreter.getNPCState("Jade", "mood"));
+        assertEquals("needs reassurance", interpreter.getVariable("status"));
+    }
 }
@@ -0,0 +1,180 @@
+package noema.tests;
+
+import noema.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JournalTests {
+
+    private static final String SOURCE = """
+        fact visits(0)
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" {
+            mood("Jade") = "warm"
+            visits = 1
+            Jade responds "Hi."
+          }
+        }
+        scene "alley" {
+        }
+        """;
+
+    private static CompiledProgram compile() {
+        return CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+    }
+
+    private static Path log(Path directory, Journal journal) {
+        return directory.resolve("journal-" + journal.generation() + ".log");
+    }
+
+    @Test
+    public void testReplayRestoresSession() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        CompiledProgram program = compile();
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            session.setJournal(journal);
+            session.setScene("rooftop");
+            session.processInput("hello");
+            session.setVariable("unknown", true);
+            session.setNPCState("Kai", "trust", 0.5);
+            session.setVariable("gone", "yes");
+            session.setVariable("gone", null);
+        }
+
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            assertEquals(7, journal.replay(session));
+            assertEquals("rooftop", session.getSceneName());
+            assertEquals("warm", session.getNPCState("Jade", "mood"));
+            assertEquals(1.0, session.getVariable("visits"));
+            assertEquals(Boolean.TRUE, session.getVariable("unknown"));
+            assertEquals(0.5, session.getNPCState("Kai", "trust"));
+            assertNull(session.getVariable("gone"));
+        }
+    }
+
+    @Test
+    public void testTornFrameIsDropped() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        CompiledProgram program = compile();
+        Path log;
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            session.setJournal(journal);
+            session.setVariable("visits", 3.0);
+            journal.flush();
+            log = log(directory, journal);
+        }
+        long good = Files.size(log);
+        // A crash in the middle of writing the next frame
+        Files.write(log, new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 2, 0 }, StandardOpenOption.APPEND);
+
+        try (Journal journal = Journal.open(directory)) {
+            assertEquals(good, Files.size(log));
+            Session session = program.newSession();
+            journal.replay(session);
+            assertEquals(3.0, session.getVariable("visits"));
+            session.setJournal(journal);
+            session.setVariable("visits", 4.0);
+        }
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            assertEquals(2, journal.replay(session));
+            assertEquals(4.0, session.getVariable("visits"));
+        }
+    }
+
+    @Test
+    public void testCompactionWritesSnapshot() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        CompiledProgram program = compile();
+        try (Journal journal = Journal.open(directory).setCompactEvery(100)) {
+            Session session = program.newSession();
+            session.setJournal(journal);
+            session.setScene("rooftop");
+            for (int i = 0; i < 250; i++) {
+                session.setVariable("visits", (double) i);
+                session.processInput("nothing matches this");
+            }
+            session.setScene("alley");
+            assertEquals(2, journal.generation());
+            assertTrue(Files.exists(directory.resolve("snapshot")));
+            assertFalse(Files.exists(directory.resolve("journal-0.log")));
+            assertTrue(journal.recordCount() < 100);
+        }
+
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            journal.replay(session);
+            assertEquals(249.0, session.getVariable("visits"));
+            assertEquals("alley", session.getSceneName());
+        }
+    }
+
+    @Test
+    public void testReplaysMillionsOfChanges() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        CompiledProgram program = compile();
+        int changes = 2_000_000;
+        try (Journal journal = Journal.open(directory).setCompactEvery(Long.MAX_VALUE)) {
+            Session session = program.newSession();
+            session.setJournal(journal);
+            for (int i = 0; i < changes; i++) {
+                if (i % 2 == 0) session.setVariable("counter_" + (i % 100), (double) i);
+                else session.setNPCState("npc_" + (i % 50), "mood", i % 3 == 0 ? "calm" : "tense");
+            }
+        }
+
+        try (Journal journal = Journal.open(directory)) {
+            assertEquals(changes, journal.recordCount());
+            Session session = program.newSession();
+            assertEquals(changes, journal.replay(session));
+            assertEquals((double) (changes - 2), session.getVariable("counter_98"));
+            assertEquals("tense", session.getNPCState("npc_49", "mood"));
+        }
+    }
+
+    @Test
+    public void testServerResumesSessionFromJournal() throws Exception {
+        Path directory = Files.createTempDirectory("journals");
+        String id;
+        try (SessionServer server = new SessionServer(compile(), 0, 4, Duration.ofSeconds(10))
+                .setJournalDirectory(directory).start();
+             Socket socket = new Socket("localhost", server.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            out.println("NEW");
+            id = in.readLine().substring(3);
+            out.println("SCENE rooftop");
+            assertEquals("OK rooftop", in.readLine());
+            out.println("SAY hello");
+            assertEquals("OK Jade: Hi.", in.readLine());
+        }
+
+        try (SessionServer server = new SessionServer(compile(), 0, 4, Duration.ofSeconds(10))
+                .setJournalDirectory(directory).start();
+             Socket socket = new Socket("localhost", server.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            out.println("RESUME " + id);
+            assertEquals("OK " + id, in.readLine());
+            out.println("SAY hello");
+            assertEquals("OK Jade: Hi.", in.readLine());
+            out.println("RESUME 00000000-0000-0000-0000-000000000000");
+            assertEquals("ERR unknown session", in.readLine());
+            assertEquals(1, server.getSessionCount());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeywordAutomatonTests {
+
+    private static final String SOURCE = """
+        scene "cell" {
+          when player says "open the door" {
+            Guard responds "Not a chance."
+          }
+          when player mentions "key" and mood("Guard") == "sleepy" {
+            Guard responds "Zzz..."
+          }
+          when player mentions "the key" {
+            Guard responds "What key?"
+          }
+          when player mentions "door" {
+            Guard responds "It stays shut."
+          }
+        }
+        """;
+
+    private static boolean[] found(KeywordAutomaton automaton, String text) {
+        long[] bits = automaton.scan(text);
+        boolean[] found = new boolean[automaton.phraseCount()];
+        for (int i = 0; i < found.length; i++) found[i] = (bits[i >>> 6] & (1L << i)) != 0;
+        return found;
+    }
+
+    @Test
+    public void testFindsOverlappingPhrasesAsWholeWords() {
+        KeywordAutomaton automaton = new KeywordAutomaton(List.of("key", "the key", "monkey", "he", "Key Ring!"));
+        assertArrayEquals(new boolean[] { true, true, false, false, true },
+                found(automaton, "Where's   THE key-ring?"));
+        assertArrayEquals(new boolean[] { false, false, true, false, false },
+                found(automaton, "a monkey"));
+        assertArrayEquals(new boolean[] { false, false, false, true, false },
+                found(automaton, "he said"));
+        assertArrayEquals(new boolean[5], found(automaton, "keys, the monkeys"));
+    }
+
+    @Test
+    public void testManyPhrasesInOnePass() {
+        List<String> phrases = new ArrayList<>();
+        for (int i = 0; i < 500; i++) phrases.add("word" + i);
+        KeywordAutomaton automaton = new KeywordAutomaton(phrases);
+        boolean[] found = found(automaton, "say word7, then WORD499 and word70");
+        for (int i = 0; i < 500; i++) {
+            assertEquals("word" + i, i == 7 || i == 499 || i == 70, found[i]);
+        }
+    }
+
+    @Test
+    public void testFold() {
+        assertEquals("where s the key", KeywordAutomaton.fold("  Where's the KEY?! "));
+        assertTrue(KeywordAutomaton.mentions("Got the key.", "the key"));
+        assertFalse(KeywordAutomaton.mentions("Got the keys.", "the key"));
+    }
+
+    @Test
+    public void testScenesMatchMentionsInDeclarationOrder() {
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        Session session = program.newSession();
+        session.setScene("cell");
+
+        assertEquals("Guard: Not a chance.", session.processInput("Open the door"));
+        assertEquals("Guard: What key?", session.processInput("Give me THE KEY, now!"));
+        assertEquals("Guard: It stays shut.", session.processInput("Is that door locked?"));
+        assertEquals("I don't know how to respond to that.", session.processInput("doorway keys"));
+
+        session.setNPCState("Guard", "mood", "sleepy");
+        assertEquals("Guard: Zzz...", session.processInput("the key, the door"));
+    }
+
+    @Test
+    public void testMentionsSurviveBinaryRoundTrip() throws Exception {
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        CompiledProgram loaded = BinaryProgram.decode(ByteBuffer.wrap(BinaryProgram.encode(program)));
+        Session session = loaded.newSession();
+        session.setScene("cell");
+        assertEquals("Guard: What key?", session.processInput("the key?"));
+    }
+}
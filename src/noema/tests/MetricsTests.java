@@ -0,0 +1,72 @@
+package noema.tests;
+
+import noema.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MetricsTests {
+
+    private static final String SOURCE = """
+        fact score(60)
+        rule pass if score > 50 {
+          result = "pass"
+        }
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" {
+            Jade responds "Hi."
+          }
+          when player says "bye" {
+            Jade responds "See you."
+          }
+        }
+        """;
+
+    @Test
+    public void testCountsMatchesMissesAndFires() {
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        Metrics metrics = new Metrics();
+        interpreter.setMetrics(metrics);
+        interpreter.setScene("rooftop");
+
+        interpreter.processInput("hello");
+        interpreter.processInput("Hello ");
+        interpreter.processInput("bye");
+        interpreter.processInput("what?");
+        interpreter.evaluateRules();
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        Metrics.SceneStats scene = snapshot.scene("rooftop");
+        assertEquals(4, scene.inputs);
+        assertEquals(3, scene.matches);
+        assertEquals(1, scene.misses);
+        assertEquals(4, scene.latency.count());
+        assertEquals(2, scene.triggers.size());
+        assertEquals(0, scene.triggers.get(0).index);
+        assertEquals(2, scene.triggers.get(0).matches);
+        assertEquals(1, scene.triggers.get(1).matches);
+        assertEquals(1, snapshot.rule("pass").fires);
+        assertEquals(1, snapshot.rulePasses);
+
+        interpreter.setMetrics(null);
+        interpreter.processInput("hello");
+        assertEquals(4, metrics.snapshot().scene("rooftop").inputs);
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (long v = 1; v <= 100_000; v++) histogram.record(v);
+        Metrics.HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertEquals(100_000, snapshot.count());
+        assertEquals(50_000.5, snapshot.mean(), 0.001);
+        long p50 = snapshot.percentile(50);
+        long p99 = snapshot.percentile(99);
+        assertTrue(p50 >= 50_000 && p50 <= 50_000 * 1.125);
+        assertTrue(p99 >= 99_000 && p99 <= 99_000 * 1.125);
+        assertTrue(snapshot.max() >= 100_000);
+    }
+}
@@ -0,0 +1,165 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OffHeapStatesTests {
+
+    private static final String SOURCE = """
+        rule trusting if trust("Jade") > 2 {
+          mood("Jade") = "warm"
+        }
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" and mood("Jade") == "warm" {
+            Jade responds "Good to see you."
+          }
+          when player says "hello" {
+            trust("Jade") = 3
+            Jade responds "Oh. Hi."
+          }
+        }
+        """;
+
+    private static CompiledProgram compile() {
+        return CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+    }
+
+    @Test
+    public void testScriptsBehaveAsOnHeap() {
+        for (boolean offHeap : new boolean[] { false, true }) {
+            Session session = compile().newSession();
+            session.setNPCState("Kai", "mood", "bored");
+            if (offHeap) session.setOffHeapStates(new OffHeapStates());
+            session.setScene("rooftop");
+
+            assertEquals("anxious", session.getNPCState("Jade", "mood"));
+            assertEquals("Jade: Oh. Hi.", session.processInput("hello"));
+            session.evaluateRules();
+            assertEquals("warm", session.getNPCState("Jade", "mood"));
+            assertEquals("Jade: Good to see you.", session.processInput("hello"));
+            assertEquals("bored", session.getNPCState("Kai", "mood"));
+            assertEquals("neutral", session.getNPCState("Kai", "trust"));
+
+            session.setNPCState("Jade", "mood", null);
+            assertEquals("anxious", session.getNPCState("Jade", "mood"));
+        }
+    }
+
+    @Test
+    public void testValuesRoundTrip() {
+        OffHeapStates store = new OffHeapStates(1);
+        Object[] values = { 0.0, -0.0, 1.5, -3.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, -Double.MAX_VALUE, true, false, "calm", 7, 7L,
+                Double.longBitsToDouble(0xfff8000000000001L) };
+        for (int i = 0; i < values.length; i++) store.set("npc", "key" + i, values[i]);
+        for (int i = 0; i < values.length; i++) assertEquals(values[i], store.get("npc", "key" + i));
+        assertNull(store.get("npc", "missing"));
+        assertNull(store.get("nobody", "key0"));
+        store.set("npc", "key0", null);
+        assertNull(store.get("npc", "key0"));
+        assertEquals(1, store.npcCount());
+    }
+
+    @Test
+    public void testCompactDropsValuesNoCellHolds() {
+        OffHeapStates store = new OffHeapStates(2);
+        for (int i = 0; i < 1000; i++) store.set("Jade", "thought", "thought " + i);
+        store.set("Kai", "mood", "calm");
+        store.set("Kai", "thought", "thought 998");
+        store.set("Kai", "wary", true);
+        store.set("Kai", "depth", Double.NEGATIVE_INFINITY);
+        assertEquals(1001, store.valueCount());
+
+        assertEquals(998, store.compact());
+        assertEquals(3, store.valueCount());
+        assertEquals("thought 999", store.get("Jade", "thought"));
+        assertEquals("thought 998", store.get("Kai", "thought"));
+        assertEquals("calm", store.get("Kai", "mood"));
+        assertEquals(true, store.get("Kai", "wary"));
+        assertEquals(Double.NEGATIVE_INFINITY, store.get("Kai", "depth"));
+
+        // Known values keep their new ids, new ones are added after them
+        store.set("Jade", "mood", "calm");
+        store.set("Jade", "thought", "thought 1000");
+        assertEquals(4, store.valueCount());
+        assertEquals("calm", store.get("Jade", "mood"));
+        assertEquals("thought 1000", store.get("Jade", "thought"));
+        assertEquals("thought 998", store.get("Kai", "thought"));
+        assertEquals(1, store.compact());
+    }
+
+    @Test
+    public void testParallelRulesWriteOffHeapState() {
+        int npcs = 20_000;
+        StringBuilder source = new StringBuilder("fact visits(1)\n");
+        for (int i = 0; i < npcs; i++) {
+            source.append("rule r").append(i).append(" if visits > 0 {\n  mood(\"npc").append(i)
+                  .append("\") = \"mood").append(i).append("\"\n}\n");
+        }
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(source.toString()).scanTokens()).parse());
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            for (int run = 0; run < 5; run++) {
+                Session session = program.newSession();
+                session.setOffHeapStates(new OffHeapStates());
+                session.evaluateRules(pool);
+                for (int i = 0; i < npcs; i++) assertEquals("mood" + i, session.getNPCState("npc" + i, "mood"));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMillionNpcs() {
+        OffHeapStates store = new OffHeapStates();
+        int npcs = 1_000_000;
+        for (int i = 0; i < npcs; i++) {
+            store.set("villager_" + i, "mood", i % 2 == 0 ? "calm" : "tense");
+            store.set("villager_" + i, "wealth", (double) i);
+        }
+        // A third key widens every record
+        store.set("villager_7", "age", 40.0);
+
+        assertEquals(npcs, store.npcCount());
+        assertEquals("tense", store.get("villager_999999", "mood"));
+        assertEquals(123456.0, store.get("villager_123456", "wealth"));
+        assertEquals(40.0, store.get("villager_7", "age"));
+        assertNull(store.get("villager_8", "age"));
+        assertTrue(store.offHeapBytes() < 200L * npcs);
+
+        Map<String, Integer> perKey = new HashMap<>();
+        store.forEach((npc, key, value) -> perKey.merge(key, 1, Integer::sum));
+        assertEquals(Integer.valueOf(npcs), perKey.get("wealth"));
+        assertEquals(Integer.valueOf(1), perKey.get("age"));
+    }
+
+    @Test
+    public void testJournalSnapshotIncludesOffHeapState() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        CompiledProgram program = compile();
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            session.setOffHeapStates(new OffHeapStates());
+            session.setJournal(journal);
+            session.setNPCState("Jade", "trust", 2.0);
+            session.setNPCState("Kai", "mood", "bored");
+            journal.snapshot(session);
+        }
+        try (Journal journal = Journal.open(directory)) {
+            Session session = program.newSession();
+            journal.replay(session);
+            assertEquals(2.0, session.getNPCState("Jade", "trust"));
+            assertEquals("bored", session.getNPCState("Kai", "mood"));
+        }
+    }
+}
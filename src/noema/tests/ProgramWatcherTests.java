@@ -0,0 +1,303 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProgramWatcherTests {
+
+    private static final String SOURCE = """
+        fact visits(0)
+        rule warm if visits > 2 {
+          mood("Jade") = "warm"
+        }
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" {
+            Jade responds "Hi."
+          }
+        }
+        scene "alley" {
+          when player says "hello" {
+            Kai responds "Keep moving."
+          }
+        }
+        """;
+
+    private static Path write(String source) throws Exception {
+        Path file = Files.createTempFile("watch", ".noema");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, source);
+        return file;
+    }
+
+    @Test
+    public void testReloadRecompilesOnlyChangedDeclarations() throws Exception {
+        Path file = write(SOURCE);
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            CompiledProgram before = watcher.program();
+            Files.writeString(file, SOURCE.replace("Hi.", "Hey there.") + "fact visits_total(5)\n");
+
+            ProgramWatcher.Reload reload = watcher.reload(file);
+            assertEquals(1, reload.diff.changed.size());
+            assertEquals(1, reload.diff.added.size());
+            assertEquals(0, reload.diff.removed.size());
+            assertEquals(3, reload.diff.unchanged);
+
+            CompiledProgram after = watcher.program();
+            assertSame(after, reload.program);
+            assertSame(before.scene("alley"), after.scene("alley"));
+            assertNotSame(before.scene("rooftop"), after.scene("rooftop"));
+            assertEquals(5.0, after.variable("visits_total"));
+
+            assertNull(watcher.reload(file));
+        }
+    }
+
+    @Test
+    public void testSessionKeepsStateAcrossReload() throws Exception {
+        Path file = write(SOURCE);
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            Session session = watcher.program().newSession();
+            session.setScene("rooftop");
+            session.setVariable("visits", 3.0);
+            session.setNPCState("Jade", "mood", "curious");
+
+            Files.writeString(file, SOURCE.replace("Hi.", "Hey there."));
+            session.setProgram(watcher.reload(file).program);
+
+            assertEquals("rooftop", session.getSceneName());
+            assertEquals("Jade: Hey there.", session.processInput("hello"));
+            assertEquals(3.0, session.getVariable("visits"));
+            assertEquals("curious", session.getNPCState("Jade", "mood"));
+        }
+    }
+
+    @Test
+    public void testRemovedAndChangedRulesAndFacts() throws Exception {
+        Path file = write(SOURCE + "rule cold if visits > 5 {\n  mood(\"Jade\") = \"cold\"\n}\n");
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            Files.writeString(file, SOURCE.replace("visits > 2", "visits > 1").replace("visits(0)", "visits(2)"));
+            ProgramWatcher.Reload reload = watcher.reload(file);
+            assertEquals(2, reload.diff.removed.size());
+            assertEquals(1, reload.diff.changed.size());
+            assertEquals(1, reload.diff.added.size());
+
+            CompiledProgram program = reload.program;
+            assertEquals(1, program.rules().size());
+            assertEquals("warm", program.rules().get(0).name);
+            assertEquals(2.0, program.variable("visits"));
+            assertFalse(program.facts().contains("visits", 0.0));
+
+            Session session = program.newSession();
+            session.evaluateRules();
+            assertEquals("warm", session.getNPCState("Jade", "mood"));
+        }
+    }
+
+    @Test
+    public void testWhitespaceEditWithImportIsNoChange() throws Exception {
+        String source = "import \"common.noema\"\n" + SOURCE;
+        String edited = "import   \"common.noema\"\n\n" + SOURCE.replace("{\n", "{\n\n");
+        ProgramDiff diff = ProgramDiff.between(new Parser(new Lexer(source).scanTokens()).parse(),
+                new Parser(new Lexer(edited).scanTokens()).parse());
+        assertTrue(diff.toString(), diff.isEmpty());
+
+        Path file = write(source);
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            Files.writeString(file, edited);
+            assertNull(watcher.reload(file));
+        }
+    }
+
+    @Test
+    public void testRemovalTakesBackOnlyItsOwnFile() throws Exception {
+        String first = """
+            fact visits(0)
+            rule warm if visits > 2 {
+              mood("Jade") = "warm"
+            }
+            scene "market" {
+              npc "Kai" feels "calm"
+            }
+            scene "alley" {
+              when player says "hello" {
+                Kai responds "From the first file."
+              }
+            }
+            """;
+        String second = """
+            fact seen(mood("Kai"))
+            rule warm if visits > 5 {
+              mood("Jade") = "warm"
+            }
+            scene "alley" {
+              when player says "hello" {
+                Kai responds "From the second file."
+              }
+            }
+            """;
+        Path a = write(first);
+        Path b = write(second);
+        try (ProgramWatcher watcher = new ProgramWatcher(a, b)) {
+            Session session = watcher.program().newSession();
+            session.setScene("alley");
+            assertEquals("Kai: From the second file.", session.processInput("hello"));
+            assertEquals("calm", watcher.program().variable("seen"));
+
+            // Editing or removing the first file's versions leaves the second's in effect
+            Files.writeString(a, first.replace("From the first", "Still from the first").replace("\"calm\"", "\"tense\""));
+            watcher.reload(a);
+            Files.writeString(a, "fact visits(3)\n");
+            CompiledProgram program = watcher.reload(a).program;
+            assertEquals(1, program.rules().size());
+            session = program.newSession();
+            session.evaluateRules();
+            assertEquals("neutral", session.getNPCState("Jade", "mood"));
+            session.setScene("alley");
+            assertEquals("Kai: From the second file.", session.processInput("hello"));
+
+            // The fact is retracted by the value it was added with, not by Kai's mood now
+            Files.writeString(b, second.replace("fact seen(mood(\"Kai\"))\n", ""));
+            program = watcher.reload(b).program;
+            assertFalse(program.facts().contains("seen", "calm"));
+            assertNull(program.variable("seen"));
+
+            Files.writeString(b, "");
+            program = watcher.reload(b).program;
+            assertTrue(program.rules().isEmpty());
+            assertNull(program.scene("alley"));
+        }
+    }
+
+    private static final String COLD = """
+        rule warm if visits < 1 {
+          mood("Jade") = "cold"
+        }
+        scene "market" {
+          npc "Kai" feels "calm"
+        }
+        """;
+
+    @Test
+    public void testProjectWatcherStartsFromCachedProgram() throws Exception {
+        Path dir = Files.createTempDirectory("project");
+        Path common = dir.resolve("common.noema");
+        Path root = dir.resolve("main.noema");
+        Files.writeString(common, COLD);
+        Files.writeString(root, "import \"common.noema\"\n" + SOURCE);
+        Project project = new Project(dir.resolve(".noema-cache"));
+        project.load(root);
+        Project.Result loaded = project.load(root);
+        assertEquals(2, loaded.cached());
+
+        try (ProgramWatcher watcher = new ProgramWatcher(loaded)) {
+            assertSame(loaded.program, watcher.program());
+
+            Files.writeString(common, COLD.replace("\"calm\"", "\"tense\"") + "fact visits_total(5)\n");
+            ProgramWatcher.Reload reload = watcher.reload(common);
+            assertEquals(1, reload.diff.changed.size());
+            assertEquals(1, reload.diff.added.size());
+            assertEquals(5.0, reload.program.variable("visits_total"));
+            assertEquals("tense", reload.program.npcState("Kai", "mood"));
+
+            // The root file's rule still wins over the imported one
+            Session session = reload.program.newSession();
+            session.evaluateRules();
+            assertNotEquals("cold", session.getNPCState("Jade", "mood"));
+        }
+    }
+
+    @Test
+    public void testAddedImportIsLoadedAndRemovedImportDropped() throws Exception {
+        Path dir = Files.createTempDirectory("project");
+        Path root = dir.resolve("main.noema");
+        Path cold = dir.resolve("cold.noema");
+        Path extra = dir.resolve("extra.noema");
+        Files.writeString(root, SOURCE);
+        Files.writeString(cold, "import \"extra.noema\"\n" + COLD);
+        Files.writeString(extra, "fact visits_total(5)\n");
+
+        try (ProgramWatcher watcher = new ProgramWatcher(root)) {
+            Files.writeString(root, "import \"cold.noema\"\n" + SOURCE);
+            ProgramWatcher.Reload reload = watcher.reload(root);
+            assertEquals(List.of(cold, extra), reload.imported);
+            assertNotNull(reload.program.scene("market"));
+            assertEquals(5.0, reload.program.variable("visits_total"));
+            Session session = reload.program.newSession();
+            session.evaluateRules();
+            assertNotEquals("cold", session.getNPCState("Jade", "mood"));
+
+            // Imported files are watched from then on
+            Files.writeString(cold, "import \"extra.noema\"\n" + COLD.replace("market", "bazaar"));
+            reload = watcher.reload(cold);
+            assertNull(reload.program.scene("market"));
+            assertNotNull(reload.program.scene("bazaar"));
+
+            Files.writeString(root, SOURCE);
+            reload = watcher.reload(root);
+            assertEquals(List.of(cold, extra), reload.dropped);
+            assertNull(reload.program.scene("bazaar"));
+            assertNull(reload.program.variable("visits_total"));
+            assertEquals(1, reload.program.rules().size());
+            assertThrows(IllegalArgumentException.class, () -> watcher.reload(cold));
+
+            // Imported again, the file ranks below its importer as before
+            Files.writeString(root, "import \"cold.noema\"\n" + SOURCE);
+            reload = watcher.reload(root);
+            assertEquals(2, reload.imported.size());
+            session = reload.program.newSession();
+            session.evaluateRules();
+            assertNotEquals("cold", session.getNPCState("Jade", "mood"));
+        }
+    }
+
+    @Test
+    public void testMissingImportKeepsRunningProgram() throws Exception {
+        Path file = write(SOURCE);
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            CompiledProgram before = watcher.program();
+            Files.writeString(file, "import \"missing.noema\"\n" + SOURCE);
+            assertNull(watcher.reload(file));
+            assertSame(before, watcher.program());
+        }
+    }
+
+    @Test
+    public void testSyntaxErrorKeepsRunningProgram() throws Exception {
+        Path file = write(SOURCE);
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            CompiledProgram before = watcher.program();
+            Files.writeString(file, SOURCE.replace("scene \"alley\" {", "scene \"alley\""));
+            assertNull(watcher.reload(file));
+            assertSame(before, watcher.program());
+        }
+    }
+
+    @Test
+    public void testWatcherReloadsOnFileChange() throws Exception {
+        Path file = write(SOURCE);
+        try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+            CountDownLatch reloaded = new CountDownLatch(1);
+            AtomicReference<ProgramWatcher.Reload> seen = new AtomicReference<>();
+            watcher.onReload(reload -> {
+                seen.set(reload);
+                reloaded.countDown();
+            }).start();
+
+            Files.writeString(file, SOURCE.replace("Keep moving.", "Over here."));
+            assertTrue(reloaded.await(30, TimeUnit.SECONDS));
+            Session session = seen.get().program.newSession();
+            session.setScene("alley");
+            assertEquals("Kai: Over here.", session.processInput("hello"));
+        }
+    }
+}
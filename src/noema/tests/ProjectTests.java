@@ -0,0 +1,122 @@
+package noema.tests;
+
+import noema.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProjectTests {
+
+    private static final String MAIN = """
+        import "common.noema"
+        import "npcs/jade.noema"
+        fact visits(3)
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" and visits > 2 {
+            Jade responds "Back again?"
+          }
+        }
+        """;
+
+    private static final String JADE = """
+        import "../common.noema"
+        rule warm if visits > 2 {
+          mood("Jade") = "warm"
+        }
+        """;
+
+    private static final String COMMON = """
+        fact visits(0)
+        fact trust("Jade", "low")
+        scene "alley" {
+          when player says "hello" {
+            Kai responds "Keep moving."
+          }
+        }
+        """;
+
+    private static Path project() throws IOException {
+        Path dir = Files.createTempDirectory("project");
+        Files.createDirectories(dir.resolve("npcs"));
+        Files.writeString(dir.resolve("main.noema"), MAIN);
+        Files.writeString(dir.resolve("npcs/jade.noema"), JADE);
+        Files.writeString(dir.resolve("common.noema"), COMMON);
+        return dir;
+    }
+
+    private static void check(CompiledProgram program) {
+        assertEquals(3.0, program.variable("visits"));
+        assertEquals("low", program.npcState("Jade", "trust"));
+        assertEquals(1, program.rules().size());
+
+        Session session = program.newSession();
+        session.setScene("rooftop");
+        assertEquals("Jade: Back again?", session.processInput("hello"));
+        session.setScene("alley");
+        assertEquals("Kai: Keep moving.", session.processInput("hello"));
+        session.evaluateRules();
+        assertEquals("warm", session.getNPCState("Jade", "mood"));
+    }
+
+    @Test
+    public void testImportsAreLoadedOnceInDependencyOrder() throws Exception {
+        Path dir = project();
+        Project.Result result = new Project().load(dir.resolve("main.noema"));
+
+        assertEquals(3, result.modules.size());
+        assertEquals(dir.resolve("common.noema").toAbsolutePath(), result.files().get(0));
+        assertEquals(dir.resolve("npcs/jade.noema").toAbsolutePath(), result.files().get(1));
+        assertEquals(dir.resolve("main.noema").toAbsolutePath(), result.files().get(2));
+        assertEquals(0, result.cached());
+        check(result.program);
+    }
+
+    @Test
+    public void testCacheSkipsUnchangedFiles() throws Exception {
+        Path dir = project();
+        Path cache = dir.resolve("cache");
+        Path main = dir.resolve("main.noema");
+
+        assertEquals(0, new Project(cache).load(main).cached());
+        Project.Result warm = new Project(cache).load(main);
+        assertEquals(3, warm.cached());
+        check(warm.program);
+
+        Files.writeString(dir.resolve("npcs/jade.noema"), JADE.replace("\"warm\"", "\"glad\""));
+        Project.Result edited = new Project(cache).load(main);
+        assertEquals(2, edited.cached());
+        Session session = edited.program.newSession();
+        session.evaluateRules();
+        assertEquals("glad", session.getNPCState("Jade", "mood"));
+    }
+
+    @Test
+    public void testErrorsNameTheirFile() throws Exception {
+        Path dir = project();
+        Files.writeString(dir.resolve("common.noema"), COMMON + "scene \"broken\"\n");
+        try {
+            new Project().load(dir.resolve("main.noema"));
+            fail("Expected syntax errors");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("common.noema"));
+        }
+    }
+
+    @Test
+    public void testReportersAreIndependent() {
+        ErrorReporter broken = new ErrorReporter();
+        ErrorReporter clean = new ErrorReporter();
+        new Parser(new Lexer("fact visits(1) @", broken).scanTokens(), broken).parse();
+        new Parser(new Lexer(COMMON, clean).scanTokens(), clean).parse();
+
+        assertTrue(broken.hadError());
+        assertFalse(broken.getErrors().isEmpty());
+        assertFalse(clean.hadError());
+        assertTrue(clean.getErrors().isEmpty());
+    }
+}
@@ -0,0 +1,160 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class QueryEngineTests {
+
+    private static final String SOURCE = """
+        fact knows("Jade", "Kai")
+        fact knows("Kai", "Mira")
+        fact knows("Mira", "Jade")
+        fact knows("Mira", "Oren")
+        fact knows("Jade", "Mira")
+        fact friends("Alice", "Bob")
+        fact trusts(X, Z) if knows(X, Z)
+        fact trusts(X, Z) if trusts(X, Y) and knows(Y, Z)
+        fact mutual(X, Y) if knows(X, Y) and knows(Y, X)
+        fact trusted(Y) if trusts(_, Y)
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "who do you trust?" and trusts(Jade, "Oren") {
+            Jade responds "Oren, through Mira."
+          }
+          when player says "who do you trust?" {
+            Jade responds "Nobody."
+          }
+          when player says "any friends?" and friends(Alice, X) and knows(X, _) {
+            Jade responds "Bob knows someone."
+          }
+          when player says "any friends?" {
+            Jade responds "No."
+          }
+        }
+        """;
+
+    private static CompiledProgram compile(String source) {
+        return CompiledProgram.compile(new Parser(new Lexer(source).scanTokens()).parse());
+    }
+
+    private static Set<Object> values(List<Map<String, Object>> solutions, String variable) {
+        Set<Object> values = new HashSet<>();
+        for (Map<String, Object> solution : solutions) values.add(solution.get(variable));
+        return values;
+    }
+
+    @Test
+    public void testQueriesFacts() {
+        CompiledProgram program = compile(SOURCE);
+        assertEquals(List.of(Map.of("X", "Bob")), program.query("friends(\"Alice\", X)"));
+        assertEquals(List.of(Map.of()), program.query("friends(Alice, Bob)"));
+        assertEquals(List.of(), program.query("friends(Bob, Alice)"));
+        assertEquals(Set.of("Jade", "Mira"), values(program.query("knows(X, Y) and knows(Y, X)"), "X"));
+        assertEquals(Set.of(Map.of("X", "Jade", "Y", "Mira"), Map.of("X", "Mira", "Y", "Jade")),
+                new HashSet<>(program.query("mutual(X, Y)")));
+    }
+
+    @Test
+    public void testRecursiveTrustTerminates() {
+        CompiledProgram program = compile(SOURCE);
+        assertEquals(Set.of("Kai", "Mira", "Jade", "Oren"), values(program.query("trusts(\"Jade\", Z)"), "Z"));
+        assertEquals(Set.of("Jade", "Kai", "Mira"), values(program.query("trusts(X, \"Jade\")"), "X"));
+        assertEquals(Set.of(), values(program.query("trusts(Oren, Z)"), "Z"));
+        assertEquals(Set.of("Kai", "Mira", "Jade", "Oren"), values(program.query("trusted(Y)"), "Y"));
+        assertEquals(12, program.query("trusts(X, Y)").size());
+    }
+
+    @Test
+    public void testRepeatedQueriesUseTables() {
+        StringBuilder source = new StringBuilder();
+        int n = 2000;
+        for (int i = 0; i < n; i++) source.append("fact knows(\"npc").append(i).append("\", \"npc").append(i + 1).append("\")\n");
+        source.append("fact trusts(X, Z) if knows(X, Z)\n");
+        source.append("fact trusts(X, Z) if trusts(X, Y) and knows(Y, Z)\n");
+        CompiledProgram program = compile(source.toString());
+        QueryEngine engine = program.queries();
+
+        assertEquals(n, program.query("trusts(\"npc0\", Z)").size());
+        long evaluations = engine.evaluations();
+        int tables = engine.tableCount();
+        assertEquals(n, program.query("trusts(npc0, Z)").size());
+        assertEquals(evaluations, engine.evaluations());
+        assertEquals(tables, engine.tableCount());
+
+        // A new call reads the complete table of trusts("npc0", Y)
+        assertEquals(1, program.query("trusts(npc0, \"npc2000\")").size());
+        assertEquals(tables + 1, engine.tableCount());
+    }
+
+    @Test
+    public void testMaterializesDerivedFacts() {
+        CompiledProgram program = compile(SOURCE);
+        QueryEngine.Derivation derivation = program.queries().materialize();
+        assertEquals(3, derivation.strata);
+        assertEquals(12 + 2 + 4, derivation.derived);
+        assertTrue(derivation.facts.contains("trusts", "Kai", "Oren"));
+        assertSame(derivation, program.queries().materialize());
+
+        assertEquals(Set.of("Kai", "Mira", "Jade", "Oren"), values(program.query("trusts(\"Jade\", Z)"), "Z"));
+        assertEquals(Set.of("Kai", "Mira", "Jade", "Oren"), values(program.query("trusted(Y)"), "Y"));
+        assertEquals(0, program.queries().tableCount());
+    }
+
+    @Test
+    public void testSemiNaiveRoundsFollowDerivationDepth() {
+        StringBuilder source = new StringBuilder();
+        int n = 300;
+        for (int i = 0; i < n; i++) source.append("fact knows(\"npc").append(i).append("\", \"npc").append(i + 1).append("\")\n");
+        source.append("fact trusts(X, Z) if knows(X, Z)\n");
+        source.append("fact trusts(X, Z) if knows(X, Y) and trusts(Y, Z)\n");
+        CompiledProgram program = compile(source.toString());
+
+        QueryEngine.Derivation derivation = program.queries().materialize();
+        assertEquals(n * (n + 1) / 2, derivation.derived);
+        assertEquals(n + 1, derivation.rounds);
+        assertEquals(n, program.query("trusts(npc0, Z)").size());
+    }
+
+    @Test
+    public void testGoalsInConditions() {
+        Session session = compile(SOURCE).newSession();
+        session.setScene("rooftop");
+        assertEquals("Jade: Oren, through Mira.", session.processInput("who do you trust?"));
+        assertEquals("Jade: No.", session.processInput("any friends?"));
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(new Parser(new Lexer(SOURCE + "fact knows(\"Bob\", \"Jade\")\n").scanTokens()).parse());
+        interpreter.setScene("rooftop");
+        assertEquals("Jade: Bob knows someone.", interpreter.processInput("any friends?"));
+        assertEquals(Set.of("Jade"), values(interpreter.query("knows(\"Bob\", X)"), "X"));
+    }
+
+    @Test
+    public void testClausesSurviveBinaryRoundTrip() throws Exception {
+        CompiledProgram program = BinaryProgram.decode(ByteBuffer.wrap(BinaryProgram.encode(compile(SOURCE))));
+        assertEquals(Set.of("Kai", "Mira", "Jade", "Oren"), values(program.query("trusts(Jade, Z)"), "Z"));
+        Session session = program.newSession();
+        session.setScene("rooftop");
+        assertEquals("Jade: Oren, through Mira.", session.processInput("who do you trust?"));
+    }
+
+    @Test
+    public void testUnsafeClauseIsAnError() {
+        Parser parser = new Parser(new Lexer("fact trusts(X, Y) if knows(X, \"Kai\")").scanTokens());
+        parser.parse();
+        assertTrue(parser.hadError());
+        try {
+            compile(SOURCE).query("trusts(X,");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package noema.tests;
+
+import noema.*;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResponseTemplateTests {
+
+    private static final String SOURCE = """
+        fact visits(2)
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "hello" {
+            Jade responds "I feel {mood(Jade)} after {visits} visits."
+            visits = 3
+            Jade responds "Visit {visits}, {mood(Jade)}. {{not a value}} {unknown thing}"
+          }
+          when player says "nothing" {
+            visits = 0
+          }
+        }
+        """;
+
+    private static Session session() {
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        Session session = program.newSession();
+        session.setScene("rooftop");
+        return session;
+    }
+
+    @Test
+    public void testInterpolatesVariablesAndState() {
+        Session session = session();
+        assertEquals("Jade: I feel anxious after 2 visits.\nJade: Visit 3, anxious. {not a value} {unknown thing}",
+                session.processInput("hello"));
+
+        session.setNPCState("Jade", "mood", "calm");
+        session.setVariable("visits", 1.5);
+        assertEquals("Jade: I feel calm after 1.5 visits.\nJade: Visit 3, calm. {not a value} {unknown thing}",
+                session.processInput("hello"));
+    }
+
+    @Test
+    public void testWritesIntoCallerBuffer() throws Exception {
+        Session session = session();
+        CharBuffer buffer = CharBuffer.allocate(256);
+        assertEquals(0, session.processInput("hello", buffer));
+        buffer.flip();
+        assertEquals("Jade: I feel anxious after 2 visits.\nJade: Visit 3, anxious. {not a value} {unknown thing}",
+                buffer.toString());
+
+        StringBuilder out = new StringBuilder();
+        assertEquals(1, session.processInput("nothing", out));
+        assertEquals("", out.toString());
+        assertEquals(-1, session.processInput("goodbye", out));
+        assertEquals("I don't know how to respond to that.", out.toString());
+    }
+
+    @Test
+    public void testTemplatesSurviveBinaryRoundTrip() throws Exception {
+        CompiledProgram program = CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+        Session session = BinaryProgram.decode(ByteBuffer.wrap(BinaryProgram.encode(program))).newSession();
+        session.setScene("rooftop");
+        assertTrue(session.processInput("hello").startsWith("Jade: I feel anxious after 2 visits."));
+    }
+}
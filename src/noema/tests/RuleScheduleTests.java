@@ -0,0 +1,215 @@
+package noema.tests;
+
+import noema.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RuleScheduleTests {
+
+    private static CompiledProgram compile(String source) {
+        return CompiledProgram.compile(new Parser(new Lexer(source).scanTokens()).parse());
+    }
+
+    @Test
+    public void testConflictingRulesAreLevelled() {
+        CompiledProgram program = compile("""
+            fact a(5)
+            fact b(0)
+            rule first if a > 3 {
+              b = 1
+            }
+            rule second if b > 0 {
+              c = 1
+            }
+            rule third if a > 3 {
+              d = 1
+            }
+            """);
+        RuleSchedule schedule = program.schedule();
+        assertEquals(2, schedule.levelCount());
+        assertArrayEquals(new int[] {0, 2}, schedule.level(0));
+        assertArrayEquals(new int[] {1}, schedule.level(1));
+
+        Session session = program.newSession();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            session.evaluateRules(pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1.0, session.getVariable("c"));
+        assertEquals(1.0, session.getVariable("d"));
+    }
+
+    @Test
+    public void testFixpointFiresRulesEnabledLater() {
+        CompiledProgram program = compile("""
+            fact a(1)
+            fact b(0)
+            fact c(0)
+            rule third if b > 0 {
+              c = 1
+            }
+            rule second if a > 0 {
+              b = 1
+            }
+            rule fourth if c > 0 {
+              mood("Jade") = "calm"
+            }
+            """);
+        RuleSchedule schedule = program.schedule();
+        assertEquals(3, schedule.strataCount());
+        assertArrayEquals(new int[] {1}, schedule.stratum(0));
+        assertArrayEquals(new int[] {0}, schedule.stratum(1));
+        assertArrayEquals(new int[] {2}, schedule.stratum(2));
+
+        Session single = program.newSession();
+        single.evaluateRules();
+        assertEquals(0.0, single.getVariable("c"));
+
+        Session session = program.newSession();
+        Session.Fixpoint fixpoint = session.evaluateRulesToFixpoint();
+        assertTrue(fixpoint.reached);
+        assertEquals(3, fixpoint.rounds);
+        assertEquals(3, fixpoint.changes);
+        assertEquals(1.0, session.getVariable("c"));
+        assertEquals("calm", session.getNPCState("Jade", "mood"));
+        assertEquals(0, session.evaluateRulesToFixpoint().changes);
+    }
+
+    @Test
+    public void testRecursiveStratumRunsOnlyAffectedRules() {
+        CompiledProgram program = compile("""
+            fact x(0)
+            fact turn("ping")
+            rule step2 if x == 1 {
+              x = 2
+            }
+            rule step1 if x == 0 {
+              x = 1
+            }
+            rule ping if turn == "ping" {
+              turn = "pong"
+            }
+            rule pong if turn == "pong" {
+              turn = "ping"
+            }
+            """);
+        assertEquals(2, program.schedule().strataCount());
+
+        Session session = program.newSession();
+        Session.Fixpoint fixpoint = session.evaluateRulesToFixpoint(10);
+        assertEquals(2.0, session.getVariable("x"));
+        // x: step1, then step2, then a round in which neither is activated
+        assertFalse(fixpoint.reached);
+        assertEquals(3 + 10, fixpoint.rounds);
+        assertEquals(2 + 20, fixpoint.fired);
+    }
+
+    @Test
+    public void testRuleQueuedTwiceInARoundFiresOnce() {
+        CompiledProgram program = compile("""
+            fact x(0)
+            fact y(0)
+            rule a if x == 0 {
+              y = 1
+            }
+            rule b if y >= 1 {
+              x = 1
+              y = 2
+            }
+            """);
+        assertEquals(1, program.schedule().strataCount());
+
+        // a queues b, then b queues a and itself; the next round fires b alone, once
+        Session.Fixpoint fixpoint = program.newSession().evaluateRulesToFixpoint();
+        assertTrue(fixpoint.reached);
+        assertEquals(2, fixpoint.rounds);
+        assertEquals(3, fixpoint.fired);
+        assertEquals(3, fixpoint.changes);
+    }
+
+    @Test
+    public void testPassSkipsRulesWhoseInputsDidNotChange() {
+        StringBuilder source = new StringBuilder();
+        int n = 100;
+        for (int i = 0; i < n; i++) {
+            source.append("fact v").append(i).append("(0)\n");
+            source.append("rule r").append(i).append(" if v").append(i).append(" > 0 and mood(\"Jade\") == \"calm\" {\n")
+                  .append("  w").append(i).append(" = 1\n}\n");
+        }
+        Session session = compile(source.toString()).newSession();
+        assertNull(session.getRuleStats());
+        session.evaluateRules();
+        assertEquals(n, session.getRuleStats().evaluatedCount);
+        assertEquals(2 * n, session.getRuleStats().tests);
+
+        session.setVariable("v7", 1.0);
+        session.evaluateRules();
+        RuleNetwork.Stats stats = session.getRuleStats();
+        assertEquals(Arrays.asList("r7"), stats.evaluated());
+        assertEquals(n - 1, stats.skippedCount);
+        assertEquals(1, stats.tests);
+        assertFalse(stats.wasEvaluated(8));
+        assertNull(session.getVariable("w7"));
+
+        session.setNPCState("Jade", "mood", "calm");
+        session.evaluateRules();
+        assertEquals(n, session.getRuleStats().evaluatedCount);
+        assertEquals(1.0, session.getVariable("w7"));
+        assertNull(session.getVariable("w8"));
+
+        session.evaluateRules();
+        assertEquals(0, session.getRuleStats().evaluatedCount);
+        assertEquals("0 of 100 rules evaluated, 100 skipped, 0 comparisons tested", session.getRuleStats().toString());
+    }
+
+    @Test
+    public void testParallelPassMatchesSequentialPass() {
+        Random random = new Random(7);
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            for (int round = 0; round < 50; round++) {
+                StringBuilder source = new StringBuilder();
+                for (int v = 0; v < 12; v++) source.append("fact v").append(v).append("(").append(random.nextInt(10)).append(")\n");
+                for (int r = 0; r < 200; r++) {
+                    source.append("rule r").append(r).append(" if v").append(random.nextInt(12))
+                            .append(random.nextBoolean() ? " > " : " < ").append(random.nextInt(10));
+                    if (random.nextInt(4) == 0) {
+                        source.append(" and mood(\"npc").append(random.nextInt(4)).append("\") == \"calm\"");
+                    }
+                    source.append(" {\n");
+                    source.append("  v").append(random.nextInt(12)).append(" = ").append(random.nextInt(10)).append("\n");
+                    if (random.nextInt(3) == 0) {
+                        source.append("  mood(\"npc").append(random.nextInt(4)).append("\") = \"")
+                                .append(random.nextBoolean() ? "calm" : "tense").append("\"\n");
+                    }
+                    source.append("}\n");
+                }
+                CompiledProgram program = compile(source.toString());
+
+                Session sequential = program.newSession();
+                Session parallel = program.newSession();
+                for (int pass = 0; pass < 3; pass++) {
+                    sequential.evaluateRules();
+                    parallel.evaluateRules(pool);
+                    assertEquals(state(sequential), state(parallel));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String state(Session session) {
+        Object[] values = new Object[16];
+        for (int v = 0; v < 12; v++) values[v] = session.getVariable("v" + v);
+        for (int n = 0; n < 4; n++) values[12 + n] = session.getNPCState("npc" + n, "mood");
+        return Arrays.toString(values);
+    }
+}
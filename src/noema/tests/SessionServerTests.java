@@ -0,0 +1,91 @@
+package noema.tests;
+
+import noema.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionServerTests {
+
+    private static final String SOURCE = """
+        scene "greeting" {
+          when player says "hello" {
+            Guide responds "Hello there!"
+            Guide responds "How can I help you?"
+          }
+        }
+        """;
+
+    private static CompiledProgram compile() {
+        return CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+    }
+
+    @Test
+    public void testCreateResumeAndSay() throws Exception {
+        try (SessionServer server = new SessionServer(compile(), 0, 4, Duration.ofSeconds(10)).start()) {
+            String id;
+            try (Socket socket = new Socket("localhost", server.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println("SAY hello");
+                assertEquals("ERR no session", in.readLine());
+                out.println("NEW");
+                id = in.readLine().substring(3);
+                out.println("SCENE greeting");
+                assertEquals("OK greeting", in.readLine());
+                out.println("QUIT");
+                assertEquals("OK bye", in.readLine());
+            }
+            try (Socket socket = new Socket("localhost", server.getPort());
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                out.println("RESUME " + id);
+                assertEquals("OK " + id, in.readLine());
+                out.println("SAY hello");
+                assertEquals("OK Guide: Hello there!\\nGuide: How can I help you?", in.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testLoadClient() throws Exception {
+        try (SessionServer server = new SessionServer(compile(), 0, 8, Duration.ofSeconds(10)).start()) {
+            LoadClient.Result result = LoadClient.run("localhost", server.getPort(), 32, 50, "greeting", "hello");
+            assertEquals(32 * 50, result.requests);
+            assertEquals(0, result.errors);
+            assertEquals(32, server.getSessionCount());
+        }
+    }
+
+    @Test
+    public void testLoadClientCountsOnlyUnansweredInputsAsErrors() throws Exception {
+        // Answers NEW, SCENE and three inputs, then hangs up
+        try (ServerSocket listener = new ServerSocket(0)) {
+            Thread server = new Thread(() -> {
+                try (Socket socket = listener.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                     PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                    for (int i = 0; i < 5; i++) {
+                        in.readLine();
+                        out.println("OK");
+                    }
+                } catch (Exception e) {
+                    // The test fails on the counts
+                }
+            });
+            server.start();
+            LoadClient.Result result = LoadClient.run("localhost", listener.getLocalPort(), 1, 10, "greeting", "hello");
+            server.join();
+            assertEquals(3, result.requests);
+            assertEquals(7, result.errors);
+            assertTrue(result.p50Micros > 0);
+        }
+    }
+}
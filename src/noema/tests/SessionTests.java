@@ -0,0 +1,108 @@
+package noema.tests;
+
+import noema.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionTests {
+
+    private static final String SOURCE = """
+        scene "rooftop" {
+          npc "Jade" feels "anxious"
+          when player says "I believe in you" and mood("Jade") == "anxious" {
+            mood("Jade") = "hopeful"
+            Jade responds "Thanks... that means a lot."
+          }
+          when player says "I believe in you" {
+            Jade responds "You said that already."
+          }
+        }
+        """;
+
+    private static CompiledProgram compile() {
+        return CompiledProgram.compile(new Parser(new Lexer(SOURCE).scanTokens()).parse());
+    }
+
+    @Test
+    public void testSessionsShareProgramButNotState() {
+        CompiledProgram program = compile();
+        Session alice = program.newSession();
+        Session bob = program.newSession();
+        alice.setScene("rooftop");
+        bob.setScene("rooftop");
+
+        assertEquals("Jade: Thanks... that means a lot.", alice.processInput("I believe in you"));
+        assertEquals("Jade: You said that already.", alice.processInput("I believe in you"));
+        assertEquals("hopeful", alice.getNPCState("Jade", "mood"));
+
+        assertEquals("anxious", bob.getNPCState("Jade", "mood"));
+        assertEquals("Jade: Thanks... that means a lot.", bob.processInput("I believe in you"));
+    }
+
+    @Test
+    public void testStateSurvivesProgramWithDifferentSlots() {
+        Session session = compile().newSession();
+        session.setScene("rooftop");
+        session.processInput("I believe in you");
+        session.setVariable("trust", 3.0);
+
+        String reordered = "fact trust(0)\nfact visits(1)\n" + SOURCE;
+        session.setProgram(CompiledProgram.compile(new Parser(new Lexer(reordered).scanTokens()).parse()));
+
+        assertEquals("hopeful", session.getNPCState("Jade", "mood"));
+        assertEquals(3.0, session.getVariable("trust"));
+        assertEquals(1.0, session.getVariable("visits"));
+        assertEquals("Jade: You said that already.", session.processInput("I believe in you"));
+    }
+
+    @Test
+    public void testGuardsAreRetestedOnlyAfterTheirInputsChange() {
+        Session session = compile().newSession();
+        session.setScene("rooftop");
+        assertNull(session.getGuardStats());
+        assertEquals("Jade: Thanks... that means a lot.", session.processInput("I believe in you"));
+        assertEquals(1, session.getGuardStats().tested);
+
+        // The guard's own action changed the mood, so it is tested again once
+        assertEquals("Jade: You said that already.", session.processInput("I believe in you"));
+        assertEquals("Jade: You said that already.", session.processInput("I believe in you"));
+        assertEquals(2, session.getGuardStats().tested);
+        assertEquals(1, session.getGuardStats().reused);
+
+        session.setVariable("trust", 3.0);
+        assertEquals("Jade: You said that already.", session.processInput("i believe in you"));
+        assertEquals(2, session.getGuardStats().reused);
+
+        session.setNPCState("Jade", "mood", "anxious");
+        assertEquals("Jade: Thanks... that means a lot.", session.processInput("I believe in you"));
+        assertEquals(3, session.getGuardStats().tested);
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        CompiledProgram program = compile();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                results.add(pool.submit(() -> {
+                    Session session = program.newSession();
+                    session.setScene("rooftop");
+                    return session.processInput("I believe in you") + "|" + session.processInput("I believe in you");
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals("Jade: Thanks... that means a lot.|Jade: You said that already.", result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package noema.tests;
+
+import noema.TimeBasedCondition;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TimeBasedConditionTests {
+
+    private static final LocalDateTime START = TimeBasedCondition.parseTime("2024-01-01 12:00:00");
+
+    @Test
+    public void testRepeatedEventWithin() {
+        TimeBasedCondition time = new TimeBasedCondition();
+        time.recordEvent("X", "login", START);
+        time.recordEvent("X", "login", START.plusMinutes(5));
+        assertFalse(time.eventsWithinDuration("X", "login", "login", Duration.ofMinutes(1)));
+
+        // Out of order: lands between the two earlier logins
+        time.recordEvent("X", "login", START.plusSeconds(30));
+        assertTrue(time.eventsWithinDuration("X", "login", "login", Duration.ofMinutes(1)));
+        assertEquals(START.plusMinutes(5), time.getEventTime("X", "login"));
+        assertEquals(2, time.countEvents("X", "login", START, START.plusMinutes(1)));
+    }
+
+    @Test
+    public void testBeforeAndAfter() {
+        TimeBasedCondition time = new TimeBasedCondition();
+        time.recordEvent("Jade", "argue", START.plusHours(1));
+        time.recordEvent("Jade", "apologize", START.plusHours(3));
+
+        assertTrue(time.test("Jade", "argue", "before", "Jade", "apologize", null));
+        assertFalse(time.test("Jade", "argue", "before", "Jade", "apologize", Duration.ofHours(1)));
+        assertTrue(time.test("Jade", "apologize", "after", "Jade", "argue", Duration.ofHours(2)));
+        assertFalse(time.test("Jade", "argue", "after", "Jade", "apologize", null));
+        assertTrue(time.test("Jade", "argue", "within", "Jade", "apologize", Duration.ofHours(2)));
+    }
+
+    @Test
+    public void testRetention() {
+        TimeBasedCondition time = new TimeBasedCondition(1000, Duration.ofMinutes(10));
+        for (int i = 0; i < 100_000; i++) {
+            time.recordEvent("X", "tick", START.plusSeconds(i));
+        }
+        assertEquals(601, time.countEvents("X", "tick"));
+        assertEquals(START.plusSeconds(99_999), time.getEventTime("X", "tick"));
+
+        TimeBasedCondition bounded = new TimeBasedCondition(3, null);
+        for (int i = 0; i < 10; i++) bounded.recordEvent("X", "tick", START.plusSeconds(i));
+        assertEquals(3, bounded.countEvents("X", "tick"));
+        assertEquals(1, bounded.countEvents("X", "tick", START, START.plusSeconds(7)));
+    }
+
+    @Test
+    public void testClockAndLocalTimesMixOutsideUtc() {
+        TimeZone zone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+        try {
+            Instant now = Instant.parse("2024-01-01T03:00:00Z");
+            TimeBasedCondition time = new TimeBasedCondition(16, null,
+                    () -> now.getEpochSecond() * 1_000_000_000L + now.getNano());
+            time.recordEvent("X", "login");
+            time.recordEvent("X", "logout", LocalDateTime.ofInstant(now.plusSeconds(30), ZoneId.systemDefault()));
+
+            assertEquals(TimeBasedCondition.parseTime("2024-01-01 12:00:00"), time.getEventTime("X", "login"));
+            assertTrue(time.eventsWithinDuration("X", "login", "logout", Duration.ofMinutes(1)));
+            assertTrue(time.eventBefore("X", "login", "X", "logout", Duration.ofMinutes(1)));
+            assertFalse(time.eventAfter("X", "login", "X", "logout", null));
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package noema.tests;
+
+import noema.TimeBasedCondition;
+import noema.TimerWheel;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TimerWheelTests {
+
+    private static final long MS = 1_000_000L;
+
+    /** Clock moved by hand */
+    private static final class ManualClock implements TimerWheel.Clock {
+        long now = 1_700_000_000_000L * MS;
+
+        @Override
+        public long nanos() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testTimersFireInOrderAndNeverEarly() {
+        ManualClock clock = new ManualClock();
+        TimerWheel wheel = new TimerWheel(Duration.ofMillis(1), clock);
+        long start = clock.now;
+        Random random = new Random(42);
+        List<Long> fired = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            long deadline = start + (random.nextInt(5_000_000) + 1) * MS;
+            wheel.scheduleAt(deadline, () -> {
+                assertTrue(clock.now >= deadline);
+                fired.add(deadline);
+            });
+        }
+        assertEquals(10_000, wheel.size());
+
+        while (fired.size() < 10_000) {
+            clock.now += random.nextInt(200_000) * MS;
+            wheel.advance();
+        }
+        for (int i = 1; i < fired.size(); i++) {
+            assertTrue(fired.get(i - 1) <= fired.get(i));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancel() {
+        ManualClock clock = new ManualClock();
+        TimerWheel wheel = new TimerWheel(Duration.ofMillis(1), clock);
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timer kept = wheel.schedule(Duration.ofHours(1), fired::incrementAndGet);
+        TimerWheel.Timer cancelled = wheel.schedule(Duration.ofHours(1), fired::incrementAndGet);
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        clock.now += Duration.ofHours(1).toNanos();
+        assertEquals(1, wheel.advance());
+        assertEquals(1, fired.get());
+        assertFalse(kept.cancel());
+    }
+
+    @Test
+    public void testExpectedEventResetsDeadline() {
+        ManualClock clock = new ManualClock();
+        TimerWheel wheel = new TimerWheel(Duration.ofSeconds(1), clock);
+        TimeBasedCondition time = new TimeBasedCondition(16, null, clock);
+        AtomicInteger missed = new AtomicInteger();
+        time.expect("Jade", "spoke", Duration.ofHours(2), wheel, missed::incrementAndGet);
+
+        clock.now += Duration.ofMinutes(90).toNanos();
+        wheel.advance();
+        time.recordEvent("Jade", "spoke");
+
+        clock.now += Duration.ofMinutes(90).toNanos();
+        wheel.advance();
+        assertEquals(0, missed.get());
+
+        clock.now += Duration.ofMinutes(31).toNanos();
+        wheel.advance();
+        assertEquals(1, missed.get());
+
+        clock.now += Duration.ofHours(10).toNanos();
+        wheel.advance();
+        assertEquals(1, missed.get());
+    }
+}